@@ -0,0 +1,25 @@
+precision mediump float;
+
+/* Built once for each pass.  With BRUSH defined it draws dabs onto the
+ * tiles, otherwise it draws the tiles to the screen. */
+
+varying vec2 vTextureCoord;
+
+#ifdef BRUSH
+/* Premultiplied by its alpha, which is the dab opacity */
+uniform vec4 uColor;
+uniform sampler2D uMask;
+#else
+uniform sampler2D uTexture;
+#endif
+
+void main() {
+#ifdef BRUSH
+	/* The mask's alpha scales the whole premultiplied color, so soft and
+	 * filtered mask edges blend into the canvas instead of being cut off */
+	gl_FragColor = uColor * texture2D(uMask, vTextureCoord).a;
+#else
+	/* Tiles are opaque, so they are copied to the screen unblended */
+	gl_FragColor = texture2D(uTexture, vTextureCoord);
+#endif
+}
@@ -0,0 +1,77 @@
+package com.alizarinarts.paintpaint;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Dabs per second composited by the CPU backend, for a scribble of dabs
+ * spread over a 2048 pixel canvas.  A hard mask with an opaque color is
+ * drawn by copying the color, anything else has to be blended.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CpuBackendBenchmark {
+
+    private static final int DABS = 4096;
+    private static final int CANVAS = 2048;
+
+    @Param({"4", "32"})
+    public float radius;
+
+    @Param({"hard", "soft"})
+    public String edge;
+
+    private final float[] xs = new float[DABS];
+    private final float[] ys = new float[DABS];
+    private CanvasCpuBackend backend;
+
+    @Setup
+    public void setup() {
+        backend = new CanvasCpuBackend(CANVAS, CANVAS);
+        int size = 32;
+        int[] mask = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float dx = x + 0.5f - size / 2f;
+                float dy = y + 0.5f - size / 2f;
+                float d = (float) Math.sqrt(dx * dx + dy * dy) / (size / 2f);
+                int alpha;
+                if (edge.equals("hard"))
+                    alpha = d < 1 ? 0xff : 0;
+                else
+                    alpha = (int) (Math.max(0, 1 - d) * 0xff);
+                mask[y * size + x] = alpha << 24;
+            }
+        }
+        backend.setMask(backend.addMask(size, size, mask));
+        backend.setColor(0x000000ff);
+        for (int i = 0; i < DABS; i++) {
+            double a = i * 0.01;
+            xs[i] = CANVAS / 2 + (float) (Math.cos(a * 3) * CANVAS * 0.45);
+            ys[i] = CANVAS / 2 + (float) (Math.sin(a * 2) * CANVAS * 0.45);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DABS)
+    public long dabs() {
+        backend.beginDabs();
+        for (int i = 0; i < DABS; i++)
+            backend.addDab(xs[i], ys[i], radius);
+        backend.endDabs();
+        return backend.getDabsDrawn();
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.alizarinarts.paintpaint;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of handing touch samples from one thread to another through
+ * the input ring, the way the UI thread hands them to the renderer.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InputRingBenchmark {
+
+    /* Samples in each committed batch, like a move event with history */
+    private static final int BATCH = 8;
+
+    private final CanvasInputRing ring = new CanvasInputRing(
+            CanvasInputRing.DEFAULT_CAPACITY, CanvasInputRing.OVERFLOW_DROP);
+
+    private long time;
+
+    @Benchmark
+    @Group("handoff")
+    public void produce() {
+        for (int i = 0; i < BATCH; i++)
+            ring.offer(i, i, 1f, 0, time++, 0);
+        ring.commit();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    public float consume() {
+        int n = ring.size();
+        float sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += ring.getX(i) + ring.getY(i) + ring.getPressure(i);
+        ring.advance(n);
+        return sum;
+    }
+
+}
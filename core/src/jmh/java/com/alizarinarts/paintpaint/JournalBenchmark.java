@@ -0,0 +1,92 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Samples per second decoded from a stroke journal of random walk strokes.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JournalBenchmark {
+
+    private static final int SAMPLES = 200000;
+    private static final int STROKE = 50;
+
+    private File dir;
+    private CanvasJournalReader reader;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "paintpaint-journal-" + System.nanoTime());
+        CanvasJournal journal = new CanvasJournal(dir, new Executor() {
+            public void execute(Runnable task) {
+                task.run();
+            }
+        });
+        journal.setBrush(20f, 0x000000ff, 10, 360f, -1);
+        Random random = new Random(1);
+        float x = 500;
+        float y = 500;
+        for (int i = 0; i < SAMPLES; i++) {
+            x += random.nextFloat() * 4 - 2;
+            y += random.nextFloat() * 4 - 2;
+            int flags = i % STROKE == 0 ? CanvasDab.NEW_STROKE
+                    : i % STROKE == STROKE - 1 ? CanvasDab.END_STROKE : 0;
+            journal.addSample(0, x, y, random.nextFloat(), flags, i * 8L);
+        }
+        journal.flush();
+        journal.waitForWrites();
+        reader = new CanvasJournalReader(dir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long read(final Blackhole blackhole) throws IOException {
+        return reader.read(new CanvasJournalReader.Handler() {
+            public void brush(float size, int color, int spacing, float pixelScale, int mask) {
+            }
+
+            public void mask(int mask, int width, int height, int[] argb) {
+            }
+
+            public void clear() {
+            }
+
+            public void undo() {
+            }
+
+            public void redo() {
+            }
+
+            public void sample(int pointer, float x, float y, float pressure, int flags, long time) {
+                blackhole.consume(x + y + pressure);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.alizarinarts.paintpaint;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Time taken by the pixel operations on a square image of the given size.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PixelOpsBenchmark {
+
+    @Param({"256", "2048"})
+    public int size;
+
+    private int[] argb;
+    private ByteBuffer rgba;
+
+    @Setup
+    public void setup() {
+        argb = new int[size * size];
+        for (int i = 0; i < argb.length; i++)
+            argb[i] = 0xff000000 | (i * 0x9e3779b9) >>> 8;
+        rgba = ByteBuffer.allocateDirect(size * size * 4);
+    }
+
+    @Benchmark
+    public int[] flipInts() {
+        CanvasPixelOps.flipVertical(argb, size, size);
+        return argb;
+    }
+
+    @Benchmark
+    public ByteBuffer flipBuffer() {
+        CanvasPixelOps.flipVertical(rgba, size * 4, size);
+        return rgba;
+    }
+
+    @Benchmark
+    public ByteBuffer argbToRgba() {
+        CanvasPixelOps.argbToRgba(argb, 0, size, rgba, size, size);
+        return rgba;
+    }
+
+    @Benchmark
+    public int[] swapRedBlue() {
+        CanvasPixelOps.swapRedBlue(argb, 0, argb.length);
+        return argb;
+    }
+
+    @Benchmark
+    public ByteBuffer fill() {
+        CanvasPixelOps.fill(rgba, 0xffffffff, size * size);
+        return rgba;
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.alizarinarts.paintpaint;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of placing dabs along a stroke, for a circle of touch samples
+ * drawn with a brush of the given diameter.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StrokeBenchmark {
+
+    private static final int SAMPLES = 1000;
+
+    @Param({"8", "64"})
+    public float diameter;
+
+    private final float[] xs = new float[SAMPLES];
+    private final float[] ys = new float[SAMPLES];
+    private final float[] ps = new float[SAMPLES];
+    private final CanvasStroke stroke = new CanvasStroke();
+
+    private Blackhole blackhole;
+    private final CanvasStroke.DabSink sink = new CanvasStroke.DabSink() {
+        public void dab(float x, float y, float pressure) {
+            blackhole.consume(x + y + pressure);
+        }
+    };
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < SAMPLES; i++) {
+            double a = 2 * Math.PI * i / SAMPLES;
+            xs[i] = 500 + (float) Math.cos(a) * 400;
+            ys[i] = 500 + (float) Math.sin(a) * 400;
+            ps[i] = 0.5f + 0.5f * (float) Math.sin(a * 7);
+        }
+        stroke.setDiameter(diameter);
+        stroke.setSpacing(0.1f);
+    }
+
+    /* One stroke of SAMPLES touch samples */
+    @Benchmark
+    public int stroke(Blackhole bh) {
+        blackhole = bh;
+        stroke.begin(xs[0], ys[0], ps[0], sink);
+        for (int i = 1; i < SAMPLES; i++)
+            stroke.addSample(xs[i], ys[i], ps[i], sink);
+        stroke.end(sink);
+        return stroke.getDabCount();
+    }
+
+}
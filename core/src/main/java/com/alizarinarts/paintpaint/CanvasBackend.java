@@ -0,0 +1,74 @@
+package com.alizarinarts.paintpaint;
+
+/**
+ * Something that can composite brush dabs onto a canvas.
+ *
+ * Dabs are squares centered on a point, blended over the canvas with the
+ * brush color.  The brush mask's alpha times the color's alpha is how much
+ * of the color each pixel gets, so masks can have soft edges and the
+ * color's alpha is the opacity of the dabs.  A backend holds any
+ * number of masks, or brush tips, and each dab is drawn with the one that
+ * was selected when it was added.  Coordinates are canvas pixels with the
+ * origin at the bottom left.  Dabs are added between beginDabs()
+ * and endDabs() and are drawn in the order they were added, so later dabs
+ * cover earlier ones.
+ *
+ * CanvasGLBackend draws with OpenGL ES on the GPU.  CanvasCpuBackend draws
+ * into memory and needs no GPU at all.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public interface CanvasBackend {
+
+    /**
+     * Set the brush color.
+     *
+     * @param color The color as an int in RGBA order.  The alpha is the
+     * opacity of the dabs.
+     */
+    void setColor(int color);
+
+    /**
+     * Add a brush mask, the shape of a dab.  Adding masks may be slow but
+     * switching between them with setMask() is not.
+     *
+     * @param width The width of the mask
+     * @param height The height of the mask
+     * @param argb The mask's pixels as ARGB ints, top row first.  Only the
+     * alpha is used.  The backend may keep the array.
+     * @return The number of the mask, counting from 0 in the order added
+     */
+    int addMask(int width, int height, int[] argb);
+
+    /**
+     * Select the mask the following dabs are drawn with.
+     *
+     * @param mask A number returned by addMask()
+     */
+    void setMask(int mask);
+
+    /**
+     * Start adding dabs.
+     */
+    void beginDabs();
+
+    /**
+     * Add a dab.  It may not be drawn until endDabs() is called.
+     *
+     * @param x The X coordinate of the dab's center
+     * @param y The Y coordinate of the dab's center
+     * @param radius Half the width of the dab
+     */
+    void addDab(float x, float y, float radius);
+
+    /**
+     * Draw any dabs that haven't been drawn yet.
+     */
+    void endDabs();
+
+    /**
+     * Return the whole canvas to the background color.
+     */
+    void clear();
+
+}
@@ -0,0 +1,379 @@
+package com.alizarinarts.paintpaint;
+
+import static com.alizarinarts.paintpaint.CanvasPixelOps.multiply;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Composites dabs into memory on the CPU, for when there is no GPU to draw
+ * with.
+ *
+ * It follows the OpenGL pipeline: a pixel is covered by a dab if its center
+ * falls inside the dab, the mask texel under it is picked with nearest
+ * filtering and the brush color, premultiplied and scaled by the texel's
+ * alpha, is blended over the pixel with premultiplied alpha.  The GPU
+ * filters the mask between texels and mipmap levels, so the results only
+ * match within a pixel or so at the edges of a dab, and to within a step or
+ * two of rounding.  Pixels are kept premultiplied.
+ *
+ * The canvas is split into tiles of TILE_SIZE pixels, allocated the first
+ * time something is drawn on them.  Dabs are collected until endDabs(),
+ * sorted by the tiles they touch and each touched tile is drawn as a
+ * separate task in a ForkJoinPool.  Tiles don't share pixels so the tasks
+ * need no locking, and every tile draws its dabs in order.
+ *
+ * ForkJoinPool is only available on Android from API level 21, so on
+ * Android this is only usable on newer devices.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasCpuBackend implements CanvasBackend {
+
+    /* Width and height of a tile in pixels, the same as the GPU canvas */
+    public static final int TILE_SIZE = 256;
+
+    /* Color of pixels that haven't been drawn on, as ARGB */
+    public static final int BACKGROUND = 0xffffffff;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+
+    /* Pixels of each tile as premultiplied ARGB, bottom row first.  null
+     * if undrawn. */
+    private final int[][] tiles;
+
+    private final ForkJoinPool pool;
+
+    /* The brush color as premultiplied ARGB */
+    private int color = 0xff000000;
+
+    /* A mask's alpha, bottom row first like an OpenGL texture */
+    private static class Mask {
+        final int width;
+        final int height;
+        final byte[] coverage;
+
+        Mask(int width, int height, byte[] coverage) {
+            this.width = width;
+            this.height = height;
+            this.coverage = coverage;
+        }
+    }
+
+    /* Until a mask is added the whole dab is covered */
+    private final List<Mask> masks = new ArrayList<Mask>();
+    private Mask mask = new Mask(1, 1, new byte[] { (byte) 0xff });
+
+    /* Dabs waiting to be drawn, as x, y, radius, and the mask of each */
+    private float[] dabs = new float[3 * 256];
+    private Mask[] dabMasks = new Mask[256];
+    private int count;
+
+    /* Dabs sorted by tile, see CanvasDabBatch */
+    private int[] tileStarts;
+    private int[] tileDabs = new int[256];
+
+    /* Statistics */
+    private long dabsDrawn;
+    private long drawNanos;
+
+    /**
+     * @param width The width of the canvas in pixels
+     * @param height The height of the canvas in pixels
+     * @param pool The pool to draw tiles in
+     */
+    public CanvasCpuBackend(int width, int height, ForkJoinPool pool) {
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new int[columns * rows][];
+        tileStarts = new int[columns * rows + 1];
+    }
+
+    public CanvasCpuBackend(int width, int height) {
+        this(width, height, new ForkJoinPool());
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setColor(int color) {
+        /* Dabs already added keep the old color */
+        draw();
+        /* RGBA to premultiplied ARGB */
+        int a = color & 0xff;
+        this.color = (a << 24) | (multiply(color >>> 24, a) << 16)
+                | (multiply((color >> 16) & 0xff, a) << 8) | multiply((color >> 8) & 0xff, a);
+    }
+
+    public int addMask(int w, int h, int[] argb) {
+        byte[] coverage = new byte[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++)
+                coverage[(h - 1 - y) * w + x] = (byte) (argb[y * w + x] >>> 24);
+        }
+        masks.add(new Mask(w, h, coverage));
+        return masks.size() - 1;
+    }
+
+    public void setMask(int mask) {
+        this.mask = masks.get(mask);
+    }
+
+    public void beginDabs() {
+        count = 0;
+    }
+
+    public void addDab(float x, float y, float radius) {
+        if (count * 3 == dabs.length) {
+            float[] grown = new float[dabs.length * 2];
+            System.arraycopy(dabs, 0, grown, 0, dabs.length);
+            dabs = grown;
+            Mask[] grownMasks = new Mask[count * 2];
+            System.arraycopy(dabMasks, 0, grownMasks, 0, count);
+            dabMasks = grownMasks;
+        }
+        dabs[count * 3] = x;
+        dabs[count * 3 + 1] = y;
+        dabs[count * 3 + 2] = radius;
+        dabMasks[count] = mask;
+        count++;
+    }
+
+    public void endDabs() {
+        draw();
+    }
+
+    /* Draw the dabs added so far */
+    private void draw() {
+        if (count == 0)
+            return;
+        long start = System.nanoTime();
+        sortByTile();
+
+        List<TileTask> tasks = new ArrayList<TileTask>();
+        for (int tile = 0; tile < columns * rows; tile++) {
+            if (tileStarts[tile + 1] > tileStarts[tile])
+                tasks.add(new TileTask(tile));
+        }
+        pool.invoke(new DrawTiles(tasks));
+
+        dabsDrawn += count;
+        drawNanos += System.nanoTime() - start;
+        count = 0;
+    }
+
+    /* Draws all of the touched tiles in parallel */
+    @SuppressWarnings("serial") // Never serialized
+    private static class DrawTiles extends RecursiveAction {
+        private final List<TileTask> tasks;
+
+        DrawTiles(List<TileTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /* Draws one tile's dabs in order */
+    @SuppressWarnings("serial") // Never serialized
+    private class TileTask extends RecursiveAction {
+        private final int tile;
+
+        TileTask(int tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        protected void compute() {
+            int[] pixels = tiles[tile];
+            if (pixels == null) {
+                pixels = new int[TILE_SIZE * TILE_SIZE];
+                Arrays.fill(pixels, BACKGROUND);
+                tiles[tile] = pixels;
+            }
+            int left = (tile % columns) * TILE_SIZE;
+            int bottom = (tile / columns) * TILE_SIZE;
+            for (int i = tileStarts[tile]; i < tileStarts[tile + 1]; i++)
+                drawDab(pixels, left, bottom, tileDabs[i]);
+        }
+    }
+
+    /* Composite one dab into a tile whose bottom left pixel is at left,
+     * bottom. */
+    private void drawDab(int[] pixels, int left, int bottom, int dab) {
+        float x = dabs[dab * 3];
+        float y = dabs[dab * 3 + 1];
+        float r = dabs[dab * 3 + 2];
+        float l = x - r;
+        float b = y - r;
+        float size = 2 * r;
+        Mask mask = dabMasks[dab];
+        int maskWidth = mask.width;
+        int maskHeight = mask.height;
+        byte[] coverage = mask.coverage;
+        int color = this.color;
+        int ca = color >>> 24;
+        int cr = (color >> 16) & 0xff;
+        int cg = (color >> 8) & 0xff;
+        int cb = color & 0xff;
+
+        /* Pixels whose centers are inside the dab, clipped to the tile */
+        int x0 = Math.max(left, (int) Math.ceil(l - 0.5f));
+        int x1 = Math.min(Math.min(left + TILE_SIZE, width), (int) Math.ceil(l + size - 0.5f));
+        int y0 = Math.max(bottom, (int) Math.ceil(b - 0.5f));
+        int y1 = Math.min(Math.min(bottom + TILE_SIZE, height), (int) Math.ceil(b + size - 0.5f));
+
+        for (int py = y0; py < y1; py++) {
+            float t = (py + 0.5f - b) / size;
+            int my = Math.min(maskHeight - 1, (int) (t * maskHeight));
+            int row = (py - bottom) * TILE_SIZE - left;
+            int maskRow = my * maskWidth;
+            for (int px = x0; px < x1; px++) {
+                float s = (px + 0.5f - l) / size;
+                int mx = Math.min(maskWidth - 1, (int) (s * maskWidth));
+                int m = coverage[maskRow + mx] & 0xff;
+                if (m == 0)
+                    continue;
+                if (m == 0xff && ca == 0xff) {
+                    pixels[row + px] = color;
+                    continue;
+                }
+                /* src * m + dst * (1 - src alpha * m) */
+                int sa = multiply(ca, m);
+                int keep = 0xff - sa;
+                int dst = pixels[row + px];
+                pixels[row + px] = ((sa + multiply(dst >>> 24, keep)) << 24)
+                        | ((multiply(cr, m) + multiply((dst >> 16) & 0xff, keep)) << 16)
+                        | ((multiply(cg, m) + multiply((dst >> 8) & 0xff, keep)) << 8)
+                        | (multiply(cb, m) + multiply(dst & 0xff, keep));
+            }
+        }
+    }
+
+    /* Counting sort of the dabs into the tiles they touch */
+    private void sortByTile() {
+        int tileCount = columns * rows;
+        for (int i = 0; i <= tileCount; i++)
+            tileStarts[i] = 0;
+        int total = 0;
+        for (int d = 0; d < count; d++) {
+            if (isOffCanvas(d))
+                continue;
+            int c0 = tileIndex(dabs[d * 3] - dabs[d * 3 + 2], columns);
+            int c1 = tileIndex(dabs[d * 3] + dabs[d * 3 + 2], columns);
+            int r0 = tileIndex(dabs[d * 3 + 1] - dabs[d * 3 + 2], rows);
+            int r1 = tileIndex(dabs[d * 3 + 1] + dabs[d * 3 + 2], rows);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    tileStarts[r * columns + c + 1]++;
+                    total++;
+                }
+            }
+        }
+        for (int i = 1; i <= tileCount; i++)
+            tileStarts[i] += tileStarts[i - 1];
+        if (tileDabs.length < total)
+            tileDabs = new int[Math.max(total, tileDabs.length * 2)];
+        for (int d = 0; d < count; d++) {
+            if (isOffCanvas(d))
+                continue;
+            int c0 = tileIndex(dabs[d * 3] - dabs[d * 3 + 2], columns);
+            int c1 = tileIndex(dabs[d * 3] + dabs[d * 3 + 2], columns);
+            int r0 = tileIndex(dabs[d * 3 + 1] - dabs[d * 3 + 2], rows);
+            int r1 = tileIndex(dabs[d * 3 + 1] + dabs[d * 3 + 2], rows);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++)
+                    tileDabs[tileStarts[r * columns + c]++] = d;
+            }
+        }
+        for (int i = tileCount; i > 0; i--)
+            tileStarts[i] = tileStarts[i - 1];
+        tileStarts[0] = 0;
+    }
+
+    private boolean isOffCanvas(int d) {
+        float x = dabs[d * 3];
+        float y = dabs[d * 3 + 1];
+        float r = dabs[d * 3 + 2];
+        return x + r < 0 || y + r < 0 || x - r >= width || y - r >= height;
+    }
+
+    private static int tileIndex(float coordinate, int tiles) {
+        int tile = (int) Math.floor(coordinate / TILE_SIZE);
+        return Math.max(0, Math.min(tiles - 1, tile));
+    }
+
+    public void clear() {
+        for (int i = 0; i < tiles.length; i++)
+            tiles[i] = null;
+    }
+
+    /**
+     * Copy the canvas out as premultiplied ARGB pixels, top row first like
+     * a Bitmap.  The background is opaque, so the pixels always are too.
+     *
+     * @param argb At least width * height ints
+     */
+    public void getPixels(int[] argb) {
+        for (int y = 0; y < height; y++) {
+            int out = (height - 1 - y) * width;
+            for (int column = 0; column < columns; column++) {
+                int x = column * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - x);
+                int[] tile = tiles[(y / TILE_SIZE) * columns + column];
+                if (tile == null) {
+                    Arrays.fill(argb, out + x, out + x + w, BACKGROUND);
+                } else {
+                    System.arraycopy(tile, (y % TILE_SIZE) * TILE_SIZE, argb, out + x, w);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the color of one pixel as premultiplied ARGB.
+     *
+     * @param x The X coordinate from the left
+     * @param y The Y coordinate from the bottom
+     */
+    public int getPixel(int x, int y) {
+        int[] tile = tiles[(y / TILE_SIZE) * columns + x / TILE_SIZE];
+        if (tile == null)
+            return BACKGROUND;
+        return tile[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE];
+    }
+
+    /**
+     * Total number of dabs drawn.
+     */
+    public long getDabsDrawn() {
+        return dabsDrawn;
+    }
+
+    /**
+     * Average drawing rate over everything drawn so far, in dabs per second.
+     */
+    public double getDabsPerSecond() {
+        if (drawNanos == 0)
+            return 0;
+        return dabsDrawn * 1e9 / drawNanos;
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.alizarinarts.paintpaint;
+
+/**
+ * Flags describing where a paint dab falls in its stroke.  Dabs are passed
+ * from the UI thread to the renderer as primitive samples in a
+ * CanvasInputRing rather than as objects, so these are bits in each
+ * sample's flags.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ * @version 1.0
+ */
+public class CanvasDab {
+
+    /* The dab starts a new stroke */
+    public static final int NEW_STROKE = 1;
+
+    /* The dab is the last one of its stroke */
+    public static final int END_STROKE = 2;
+
+    private CanvasDab() {
+    }
+
+    public static boolean isNewStroke(int flags) {
+        return (flags & NEW_STROKE) != 0;
+    }
+
+    public static boolean isEndStroke(int flags) {
+        return (flags & END_STROKE) != 0;
+    }
+
+}
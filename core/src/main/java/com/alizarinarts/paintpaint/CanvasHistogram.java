@@ -0,0 +1,147 @@
+package com.alizarinarts.paintpaint;
+
+import java.util.Arrays;
+
+/**
+ * Counts values into fixed buckets, so the spread of something measured
+ * every frame can be kept without keeping the values.
+ *
+ * The buckets are given as ascending upper bounds.  A value goes into the
+ * first bucket whose bound it is below, and values past the last bound go
+ * into one more bucket after it.  Everything is allocated up front, so
+ * recording never allocates.
+ *
+ * Percentiles are only as exact as the buckets: they are reported as the
+ * upper bound of the bucket they fall in, and no more than the largest value
+ * recorded.
+ *
+ * A histogram may be recorded on one thread and read on another, so every
+ * method is synchronized.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasHistogram {
+
+    private final long[] bounds;
+    private final long[] counts;
+
+    private long count;
+    private long sum;
+    private long min;
+    private long max;
+
+    /**
+     * @param bounds The upper bound of each bucket, ascending
+     */
+    public CanvasHistogram(long... bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1])
+                throw new IllegalArgumentException("Bucket bounds must ascend");
+        }
+        this.bounds = bounds.clone();
+        counts = new long[bounds.length + 1];
+        reset();
+    }
+
+    /**
+     * Make a histogram whose bounds start at first and double for each
+     * bucket after it.
+     */
+    public static CanvasHistogram doubling(long first, int buckets) {
+        long[] bounds = new long[buckets];
+        for (int i = 0; i < buckets; i++)
+            bounds[i] = first << i;
+        return new CanvasHistogram(bounds);
+    }
+
+    public synchronized void record(long value) {
+        int bucket = Arrays.binarySearch(bounds, value);
+        /* A value equal to a bound belongs to the bucket after it */
+        bucket = bucket >= 0 ? bucket + 1 : -bucket - 1;
+        counts[bucket]++;
+        count++;
+        sum += value;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Forget everything recorded.
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    /**
+     * The smallest value recorded, or 0 if there are none.
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * The largest value recorded, or 0 if there are none.
+     */
+    public synchronized long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * The value that a percentage of the recorded values are no larger
+     * than, as near as the buckets can tell.  0 if nothing is recorded.
+     *
+     * @param percent From 0 to 100
+     */
+    public synchronized long getPercentile(double percent) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * Math.max(0, Math.min(100, percent)) / 100);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(bounds[i], max);
+        }
+        return max;
+    }
+
+    /**
+     * Number of buckets, one more than the number of bounds.
+     */
+    public int getBuckets() {
+        return counts.length;
+    }
+
+    /**
+     * Number of values recorded in a bucket.
+     */
+    public synchronized long getBucketCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Upper bound of a bucket, or Long.MAX_VALUE for the last one.
+     */
+    public long getBucketBound(int bucket) {
+        return bucket < bounds.length ? bounds[bucket] : Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.alizarinarts.paintpaint;
+
+/**
+ * A fixed size ring buffer of touch samples passed from the UI thread to the
+ * OpenGL thread.
+ *
+ * There is exactly one producer (the UI thread) and one consumer (the
+ * renderer) so no locks are needed.  Each side only ever writes its own
+ * index and publishes it through a volatile field after the sample data is
+ * written or read.  The samples are stored as primitive arrays so adding one
+ * never allocates.
+ *
+ * The producer stages any number of samples with offer() and then makes
+ * them visible to the consumer all at once with commit(), so a whole
+ * MotionEvent with its historical samples costs a single hand-off.  Each
+ * sample keeps the System.nanoTime() it was committed at, so the consumer
+ * can tell how long it waited.
+ *
+ * When the buffer is full the overflow policy decides what happens to new
+ * samples.  OVERFLOW_DROP throws them away.  OVERFLOW_COALESCE keeps the
+ * newest one aside, merging later samples into it, and adds it as soon as
+ * there is room again.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasInputRing {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /* Overflow policies */
+    public static final int OVERFLOW_DROP = 0;
+    public static final int OVERFLOW_COALESCE = 1;
+
+    private final int capacity;
+    private final int mask;
+    private final int policy;
+
+    /* Sample data */
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] pressures;
+    private final int[] flags;
+    private final long[] times;
+    private final long[] committed;
+    private final int[] pointers;
+
+    /* Next slot visible to the consumer, only changed by the producer */
+    private volatile int head;
+    /* Next slot to write.  Producer only. */
+    private int staged;
+    /* Next slot to read, only changed by the consumer */
+    private volatile int tail;
+
+    /* The sample held back while the buffer is full.  Producer only. */
+    private boolean pending;
+    private float pendingX;
+    private float pendingY;
+    private float pendingPressure;
+    private int pendingFlags;
+    private long pendingTime;
+    private int pendingPointer;
+
+    /* Overflow counters, only changed by the producer */
+    private volatile int dropped;
+    private volatile int coalesced;
+
+    /**
+     * @param capacity The number of samples the buffer holds.  Rounded up to
+     * a power of two.
+     * @param policy OVERFLOW_DROP or OVERFLOW_COALESCE
+     */
+    public CanvasInputRing(int capacity, int policy) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.policy = policy;
+        xs = new float[size];
+        ys = new float[size];
+        pressures = new float[size];
+        flags = new int[size];
+        times = new long[size];
+        committed = new long[size];
+        pointers = new int[size];
+    }
+
+    /**
+     * Stage a sample.  It isn't visible to the consumer until commit() is
+     * called.  Called only from the producer thread.  Returns false if the
+     * sample was dropped because the buffer is full.
+     *
+     * @param x The X coordinate in canvas pixels
+     * @param y The Y coordinate in canvas pixels
+     * @param pressure The touch pressure
+     * @param sampleFlags CanvasDab stroke flags
+     * @param time The sample's event time in milliseconds
+     * @param pointer The id of the pointer that made the sample
+     */
+    public boolean offer(float x, float y, float pressure, int sampleFlags, long time,
+            int pointer) {
+        if (pending && !stagePending()) {
+            /* Still full.  Merge into the held back sample unless that would
+             * join two strokes together. */
+            if (pendingPointer == pointer
+                    && (pendingFlags & CanvasDab.END_STROKE) == 0
+                    && (sampleFlags & CanvasDab.NEW_STROKE) == 0) {
+                hold(x, y, pressure, pendingFlags | sampleFlags, time, pointer);
+                coalesced++;
+                return true;
+            }
+            dropped++;
+            return false;
+        }
+        if (stage(x, y, pressure, sampleFlags, time, pointer))
+            return true;
+        if (policy == OVERFLOW_COALESCE) {
+            hold(x, y, pressure, sampleFlags, time, pointer);
+            return true;
+        }
+        dropped++;
+        return false;
+    }
+
+    /**
+     * Make all of the staged samples visible to the consumer, first trying to
+     * stage the held back sample if there is one.  Called only from the
+     * producer thread.
+     */
+    public void commit() {
+        stagePending();
+        long now = System.nanoTime();
+        for (int h = head; h != staged; h++)
+            committed[h & mask] = now;
+        /* The volatile write makes the samples visible to the consumer */
+        head = staged;
+    }
+
+    /* Try to stage the held back sample, if there is one.  Returns false if
+     * a sample is still held back. */
+    private boolean stagePending() {
+        if (!pending)
+            return true;
+        if (!stage(pendingX, pendingY, pendingPressure, pendingFlags, pendingTime,
+                pendingPointer))
+            return false;
+        pending = false;
+        return true;
+    }
+
+    private void hold(float x, float y, float pressure, int sampleFlags, long time,
+            int pointer) {
+        pending = true;
+        pendingX = x;
+        pendingY = y;
+        pendingPressure = pressure;
+        pendingFlags = sampleFlags;
+        pendingTime = time;
+        pendingPointer = pointer;
+    }
+
+    private boolean stage(float x, float y, float pressure, int sampleFlags, long time,
+            int pointer) {
+        int h = staged;
+        if (h - tail == capacity)
+            return false;
+        int i = h & mask;
+        xs[i] = x;
+        ys[i] = y;
+        pressures[i] = pressure;
+        flags[i] = sampleFlags;
+        times[i] = time;
+        pointers[i] = pointer;
+        staged = h + 1;
+        return true;
+    }
+
+    /**
+     * Number of samples ready to be read.  Called only from the consumer
+     * thread.  Samples are read with the getters, indexed from 0 to
+     * size() - 1, and then released with advance().
+     */
+    public int size() {
+        return head - tail;
+    }
+
+    public float getX(int i) {
+        return xs[(tail + i) & mask];
+    }
+
+    public float getY(int i) {
+        return ys[(tail + i) & mask];
+    }
+
+    public float getPressure(int i) {
+        return pressures[(tail + i) & mask];
+    }
+
+    public int getFlags(int i) {
+        return flags[(tail + i) & mask];
+    }
+
+    public long getTime(int i) {
+        return times[(tail + i) & mask];
+    }
+
+    /**
+     * The System.nanoTime() the sample was committed at.
+     */
+    public long getCommitTime(int i) {
+        return committed[(tail + i) & mask];
+    }
+
+    public int getPointer(int i) {
+        return pointers[(tail + i) & mask];
+    }
+
+    /**
+     * Release samples that have been read so the producer can reuse their
+     * slots.  Called only from the consumer thread.
+     */
+    public void advance(int n) {
+        tail = tail + n;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of samples thrown away because the buffer was full.
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Number of samples merged into a newer one because the buffer was full.
+     */
+    public int getCoalesced() {
+        return coalesced;
+    }
+
+}
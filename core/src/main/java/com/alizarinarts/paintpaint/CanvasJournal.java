@@ -0,0 +1,551 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * Records every stroke drawn on the canvas in a compact binary journal, so
+ * the canvas can be replayed, audited or rebuilt from the strokes that made
+ * it instead of from its pixels.
+ *
+ * The journal is a directory of chunk files named strokes-N.dat which are
+ * read in order of their numbers.  Each chunk starts with a header followed
+ * by records, each of which starts with a tag byte:
+ *
+ * <ul>
+ * <li>Brush changes hold the new size, color, spacing, pixel scale or
+ * selected mask.  They are only written when the value changes.</li>
+ * <li>Mask records hold the deflated alpha of a numbered brush tip.  A tip
+ * is written before it is first selected in each chunk.</li>
+ * <li>A clear record returns the canvas to the background color.</li>
+ * <li>Undo and redo records undo or redo a stroke.</li>
+ * <li>Touch samples are the ones the brush was given, in canvas pixels.  The
+ * tag holds the stroke flags and the pointer id.  The position, pressure and
+ * time follow as varints of the difference from the pointer's previous
+ * sample, with the position quantized to 1/16 of a pixel and the pressure to
+ * 1/1024.  A sample usually takes six or seven bytes.</li>
+ * </ul>
+ *
+ * Each chunk starts with the brush state and its tip and the differences
+ * start again from zero, so a chunk can be decoded without the ones before
+ * it.  A new chunk is started when the current one is full and whenever the
+ * journal is opened again, so files are only ever appended to.
+ *
+ * The journal is written on one thread, the OpenGL thread in the app.
+ * Records are collected in memory and appended to the chunk files by tasks
+ * given to an executor, which has to run them one at a time in order.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasJournal {
+
+    static final int MAGIC = 0x5050534a; // "PPSJ"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 5;
+
+    /* Record tags.  Samples have the top bit set, the flags in the next two
+     * bits and the pointer id in the rest. */
+    static final int TAG_SIZE = 1;
+    static final int TAG_COLOR = 2;
+    static final int TAG_SPACING = 3;
+    static final int TAG_SCALE = 4;
+    static final int TAG_MASK = 5;
+    static final int TAG_SELECT_MASK = 6;
+    static final int TAG_CLEAR = 7;
+    static final int TAG_UNDO = 8;
+    static final int TAG_REDO = 9;
+    static final int TAG_SAMPLE = 0x80;
+    static final int SAMPLE_FLAGS_SHIFT = 5;
+    static final int SAMPLE_FLAGS_MASK = 0x3;
+    static final int SAMPLE_POINTER_MASK = 0x1f;
+
+    /* Pointer ids this large are written as a varint after the tag */
+    static final int WIDE_POINTER = SAMPLE_POINTER_MASK;
+
+    /* Quantization steps per canvas pixel and per unit of pressure */
+    static final float POSITION_STEPS = 16f;
+    static final float PRESSURE_STEPS = 1024f;
+
+    /* Start a new chunk once the current one is this long */
+    static final int CHUNK_BYTES = 1 << 20;
+
+    /* Hand the collected records to the executor once there are this many
+     * bytes of them */
+    private static final int FLUSH_BYTES = 64 << 10;
+
+    private final File dir;
+    private final Executor executor;
+
+    /* Records not yet handed to the executor */
+    private byte[] buffer = new byte[FLUSH_BYTES + 1024];
+    private int length;
+
+    /* The chunk being written and how much of it has been flushed */
+    private int chunk;
+    private int chunkBytes;
+
+    /* The brush state last written, which each new chunk starts with */
+    private boolean hasBrush;
+    private float size;
+    private int color;
+    private int spacing;
+    private float pixelScale;
+    private int mask = -1;
+
+    /* The tips by number, their widths and heights, and whether they have
+     * been written in the current chunk */
+    private int[][] masks = new int[0][];
+    private int[][] maskSizes = new int[0][];
+    private boolean[] maskWritten = new boolean[0];
+
+    /* Compresses the tips */
+    private final Deflater deflater = new Deflater();
+    private byte[] alpha = new byte[0];
+    private byte[] compressed = new byte[1024];
+
+    /* Each pointer's previous quantized sample in the current chunk */
+    private int[] lastX = new int[0];
+    private int[] lastY = new int[0];
+    private int[] lastPressure = new int[0];
+    private long[] lastTime = new long[0];
+
+    /* Appends waiting for the executor.  Guarded by this. */
+    private int pending;
+
+    /* Statistics */
+    private long samples;
+    private long bytes;
+    private volatile int failures;
+
+    /**
+     * Open a journal, continuing it in a new chunk if it already exists.
+     *
+     * @param dir The directory the journal's chunks are kept in
+     * @param executor Runs the file writes one at a time in order
+     */
+    public CanvasJournal(File dir, Executor executor) {
+        this.dir = dir;
+        this.executor = executor;
+        int[] chunks = listChunks(dir);
+        chunk = chunks.length > 0 ? chunks[chunks.length - 1] + 1 : 0;
+        startChunk();
+    }
+
+    /**
+     * Record the brush settings that the following samples are drawn with.
+     * Only the settings that changed are written.
+     *
+     * @param size The brush size, as returned by CanvasBrush.getSize()
+     * @param color The brush color in RGBA order
+     * @param spacing The dab spacing as a percentage of the dab's size
+     * @param pixelScale The number of canvas pixels per unit of brush size
+     * @param mask The number of the tip being drawn with, which must have
+     * been given to defineMask(), or -1 for none
+     */
+    public void setBrush(float size, int color, int spacing, float pixelScale, int mask) {
+        if (!hasBrush || Float.floatToIntBits(size) != Float.floatToIntBits(this.size)) {
+            writeByte(TAG_SIZE);
+            writeInt(Float.floatToIntBits(size));
+            this.size = size;
+        }
+        if (!hasBrush || color != this.color) {
+            writeByte(TAG_COLOR);
+            writeInt(color);
+            this.color = color;
+        }
+        if (!hasBrush || spacing != this.spacing) {
+            writeByte(TAG_SPACING);
+            writeVarint(spacing);
+            this.spacing = spacing;
+        }
+        if (!hasBrush || Float.floatToIntBits(pixelScale) != Float.floatToIntBits(this.pixelScale)) {
+            writeByte(TAG_SCALE);
+            writeInt(Float.floatToIntBits(pixelScale));
+            this.pixelScale = pixelScale;
+        }
+        /* Tips that haven't been defined can't be selected */
+        boolean known = mask >= 0 && mask < masks.length && masks[mask] != null;
+        boolean maskChanged = mask != this.mask;
+        if (known && !maskWritten[mask]) {
+            writeMask(mask);
+            maskChanged = true;
+        }
+        if (known && (!hasBrush || maskChanged)) {
+            writeByte(TAG_SELECT_MASK);
+            writeVarint(mask);
+        }
+        this.mask = mask;
+        hasBrush = true;
+    }
+
+    /**
+     * Tell the journal about a brush tip.  It is written when it is first
+     * selected in each chunk, and again if the number is given a different
+     * array, so the array must not be changed afterwards.
+     *
+     * @param mask The number of the tip
+     * @param width The width of the tip
+     * @param height The height of the tip
+     * @param argb The tip's pixels as ARGB ints, top row first.  Only the
+     * alpha is recorded.
+     */
+    public void defineMask(int mask, int width, int height, int[] argb) {
+        if (mask < masks.length && masks[mask] == argb)
+            return;
+        if (mask >= masks.length) {
+            int[][] grown = new int[mask + 1][];
+            int[][] grownSizes = new int[mask + 1][];
+            boolean[] grownWritten = new boolean[mask + 1];
+            System.arraycopy(masks, 0, grown, 0, masks.length);
+            System.arraycopy(maskSizes, 0, grownSizes, 0, maskSizes.length);
+            System.arraycopy(maskWritten, 0, grownWritten, 0, maskWritten.length);
+            masks = grown;
+            maskSizes = grownSizes;
+            maskWritten = grownWritten;
+        }
+        masks[mask] = argb;
+        maskSizes[mask] = new int[] { width, height };
+        maskWritten[mask] = false;
+    }
+
+    /**
+     * Record a touch sample given to the brush.
+     *
+     * @param pointer The pointer id of the sample
+     * @param x The X coordinate in canvas pixels
+     * @param y The Y coordinate in canvas pixels
+     * @param pressure The touch pressure
+     * @param flags CanvasDab stroke flags
+     * @param time The event time of the sample in milliseconds
+     */
+    public void addSample(int pointer, float x, float y, float pressure, int flags, long time) {
+        checkChunk();
+        if (pointer >= lastX.length)
+            growPointers(pointer + 1);
+
+        int flagBits = (flags & SAMPLE_FLAGS_MASK) << SAMPLE_FLAGS_SHIFT;
+        if (pointer < WIDE_POINTER) {
+            writeByte(TAG_SAMPLE | flagBits | pointer);
+        } else {
+            writeByte(TAG_SAMPLE | flagBits | WIDE_POINTER);
+            writeVarint(pointer);
+        }
+
+        int qx = Math.round(x * POSITION_STEPS);
+        int qy = Math.round(y * POSITION_STEPS);
+        int qp = Math.round(pressure * PRESSURE_STEPS);
+        writeVarint(zigzag(qx - lastX[pointer]));
+        writeVarint(zigzag(qy - lastY[pointer]));
+        writeVarint(zigzag(qp - lastPressure[pointer]));
+        writeVarlong(zigzag(time - lastTime[pointer]));
+        lastX[pointer] = qx;
+        lastY[pointer] = qy;
+        lastPressure[pointer] = qp;
+        lastTime[pointer] = time;
+        samples++;
+
+        if (length >= FLUSH_BYTES)
+            flush();
+    }
+
+    /**
+     * Record that the canvas was cleared to the background color.
+     */
+    public void clear() {
+        checkChunk();
+        writeByte(TAG_CLEAR);
+    }
+
+    /**
+     * Record that the last stroke was undone.
+     */
+    public void undo() {
+        checkChunk();
+        writeByte(TAG_UNDO);
+    }
+
+    /**
+     * Record that the last stroke undone was redone.
+     */
+    public void redo() {
+        checkChunk();
+        writeByte(TAG_REDO);
+    }
+
+    /**
+     * Throw the journal away and start a new one.  Used when the canvas is
+     * replaced by something the journal can't reproduce, like an image.
+     */
+    public void reset() {
+        length = 0;
+        /* Listed on the executor, after the appends submitted before it
+         * have made their files */
+        submit(new Runnable() {public void run() {
+            for (File file : listChunkFiles(dir))
+                file.delete();
+        }});
+        chunk = 0;
+        hasBrush = false;
+        masks = new int[0][];
+        maskSizes = new int[0][];
+        maskWritten = new boolean[0];
+        startChunk();
+    }
+
+    /**
+     * Hand the records collected so far to the executor to be written.
+     */
+    public void flush() {
+        /* Don't leave chunks that are only a header */
+        if (length == 0 || chunkBytes == 0 && length == HEADER_BYTES)
+            return;
+        final File file = getChunkFile(dir, chunk);
+        final byte[] records = new byte[length];
+        System.arraycopy(buffer, 0, records, 0, length);
+        bytes += length;
+        chunkBytes += length;
+        length = 0;
+        submit(new Runnable() {public void run() {
+            append(file, records);
+        }});
+    }
+
+    /**
+     * Wait until all of the records flushed so far have been written.
+     */
+    public synchronized void waitForWrites() throws InterruptedException {
+        while (pending > 0)
+            wait();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Number of samples recorded since the journal was opened.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Number of bytes flushed since the journal was opened.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Number of appends that failed to be written.
+     */
+    public int getWriteFailures() {
+        return failures;
+    }
+
+    /* Move on to the next chunk if the current one is full */
+    private void checkChunk() {
+        if (chunkBytes + length < CHUNK_BYTES)
+            return;
+        flush();
+        chunk++;
+        startChunk();
+        for (int i = 0; i < maskWritten.length; i++)
+            maskWritten[i] = false;
+        if (hasBrush) {
+            hasBrush = false;
+            setBrush(size, color, spacing, pixelScale, mask);
+        }
+    }
+
+    /* Write the header of a new chunk and forget the previous samples */
+    private void startChunk() {
+        chunkBytes = 0;
+        writeInt(MAGIC);
+        writeByte(VERSION);
+        for (int i = 0; i < lastX.length; i++) {
+            lastX[i] = 0;
+            lastY[i] = 0;
+            lastPressure[i] = 0;
+            lastTime[i] = 0;
+        }
+    }
+
+    private void writeMask(int mask) {
+        int width = maskSizes[mask][0];
+        int height = maskSizes[mask][1];
+        int[] argb = masks[mask];
+        int n = width * height;
+        if (alpha.length < n)
+            alpha = new byte[n];
+        for (int i = 0; i < n; i++)
+            alpha[i] = (byte) (argb[i] >>> 24);
+
+        deflater.reset();
+        deflater.setInput(alpha, 0, n);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, size);
+                compressed = grown;
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+
+        writeByte(TAG_MASK);
+        writeVarint(mask);
+        writeVarint(width);
+        writeVarint(height);
+        writeVarint(size);
+        ensure(size);
+        System.arraycopy(compressed, 0, buffer, length, size);
+        length += size;
+        maskWritten[mask] = true;
+    }
+
+    private void growPointers(int pointers) {
+        int[] x = new int[pointers];
+        int[] y = new int[pointers];
+        int[] p = new int[pointers];
+        long[] t = new long[pointers];
+        System.arraycopy(lastX, 0, x, 0, lastX.length);
+        System.arraycopy(lastY, 0, y, 0, lastY.length);
+        System.arraycopy(lastPressure, 0, p, 0, lastPressure.length);
+        System.arraycopy(lastTime, 0, t, 0, lastTime.length);
+        lastX = x;
+        lastY = y;
+        lastPressure = p;
+        lastTime = t;
+    }
+
+    private void submit(final Runnable task) {
+        synchronized (this) {
+            pending++;
+        }
+        executor.execute(new Runnable() {public void run() {
+            try {
+                task.run();
+            } finally {
+                synchronized (CanvasJournal.this) {
+                    pending--;
+                    CanvasJournal.this.notifyAll();
+                }
+            }
+        }});
+    }
+
+    /* Runs on the executor */
+    private void append(File file, byte[] records) {
+        FileOutputStream out = null;
+        try {
+            dir.mkdirs();
+            out = new FileOutputStream(file, true);
+            out.write(records);
+        } catch (IOException e) {
+            failures++;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    failures++;
+                }
+            }
+        }
+    }
+
+    private void ensure(int n) {
+        if (length + n > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + n)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void writeInt(int v) {
+        ensure(4);
+        buffer[length++] = (byte) (v >>> 24);
+        buffer[length++] = (byte) (v >>> 16);
+        buffer[length++] = (byte) (v >>> 8);
+        buffer[length++] = (byte) v;
+    }
+
+    /* Seven bits per byte, low bits first, with the top bit set on every
+     * byte but the last */
+    private void writeVarint(int v) {
+        ensure(5);
+        while ((v & ~0x7f) != 0) {
+            buffer[length++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buffer[length++] = (byte) v;
+    }
+
+    private void writeVarlong(long v) {
+        ensure(10);
+        while ((v & ~0x7fL) != 0) {
+            buffer[length++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buffer[length++] = (byte) v;
+    }
+
+    /* Map signed values to unsigned ones so small differences either way
+     * make small varints */
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static File getChunkFile(File dir, int chunk) {
+        return new File(dir, "strokes-" + chunk + ".dat");
+    }
+
+    /**
+     * Return the numbers of a journal's chunks in order.
+     */
+    static int[] listChunks(File dir) {
+        String[] names = dir.list();
+        if (names == null)
+            return new int[0];
+        int[] chunks = new int[names.length];
+        int n = 0;
+        for (String name : names) {
+            if (!name.startsWith("strokes-") || !name.endsWith(".dat"))
+                continue;
+            try {
+                int chunk = Integer.parseInt(name.substring(8, name.length() - 4));
+                chunks[n++] = chunk;
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        int[] sorted = new int[n];
+        System.arraycopy(chunks, 0, sorted, 0, n);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static File[] listChunkFiles(File dir) {
+        int[] chunks = listChunks(dir);
+        File[] files = new File[chunks.length];
+        for (int i = 0; i < chunks.length; i++)
+            files[i] = getChunkFile(dir, chunks[i]);
+        return files;
+    }
+
+}
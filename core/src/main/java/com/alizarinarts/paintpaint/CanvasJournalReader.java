@@ -0,0 +1,341 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the records of a CanvasJournal and hands them to a Handler in the
+ * order they were recorded.
+ *
+ * Each chunk is read into memory whole and decoded in one pass, so reading
+ * is limited by how fast the handler can use the records.  A record cut off
+ * at the end of a chunk, which happens if the app was killed while the
+ * chunk was being appended to, ends that chunk without an error.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasJournalReader {
+
+    /**
+     * Receives the records of a journal.
+     */
+    public interface Handler {
+        /**
+         * The brush settings changed.  Called before the first sample of
+         * every chunk as well.
+         *
+         * @param mask The number of the tip being drawn with, or -1 if none
+         * was recorded
+         */
+        void brush(float size, int color, int spacing, float pixelScale, int mask);
+
+        /**
+         * A brush tip was recorded.  The same tip is recorded again at the
+         * start of every chunk.
+         *
+         * @param mask The number the tip is selected by
+         * @param argb The tip as ARGB ints, top row first.  Only the alpha is
+         * recorded so the color is white.
+         */
+        void mask(int mask, int width, int height, int[] argb);
+
+        /**
+         * The canvas was cleared to the background color.
+         */
+        void clear();
+
+        /**
+         * The last stroke was undone.
+         */
+        void undo();
+
+        /**
+         * The last stroke undone was redone.
+         */
+        void redo();
+
+        /**
+         * A touch sample was given to the brush.
+         */
+        void sample(int pointer, float x, float y, float pressure, int flags, long time);
+    }
+
+    private final File dir;
+
+    /* The chunk being decoded */
+    private byte[] data = new byte[0];
+    private int position;
+    private int end;
+
+    /* Inflates the tips */
+    private final Inflater inflater = new Inflater();
+    private byte[] alpha = new byte[0];
+
+    /* Each pointer's previous quantized sample in the current chunk */
+    private int[] lastX = new int[0];
+    private int[] lastY = new int[0];
+    private int[] lastPressure = new int[0];
+    private long[] lastTime = new long[0];
+
+    /* Statistics of the last read */
+    private int chunks;
+    private long bytes;
+    private long samples;
+    private int truncated;
+
+    public CanvasJournalReader(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Return true if the journal has any chunks to read.
+     */
+    public boolean exists() {
+        return CanvasJournal.listChunks(dir).length > 0;
+    }
+
+    /**
+     * Decode every chunk of the journal in order.  Chunks that don't start
+     * with a journal header are skipped.
+     *
+     * @return The number of samples read
+     */
+    public long read(Handler handler) throws IOException {
+        chunks = 0;
+        bytes = 0;
+        samples = 0;
+        truncated = 0;
+        for (int chunk : CanvasJournal.listChunks(dir)) {
+            load(CanvasJournal.getChunkFile(dir, chunk));
+            if (end < CanvasJournal.HEADER_BYTES || readInt() != CanvasJournal.MAGIC
+                    || (data[position++] & 0xff) != CanvasJournal.VERSION)
+                continue;
+            decode(handler);
+            chunks++;
+            bytes += end;
+        }
+        return samples;
+    }
+
+    /* Read a whole chunk into data */
+    private void load(File file) throws IOException {
+        long length = file.length();
+        if (length > data.length)
+            data = new byte[(int) length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            end = 0;
+            int n;
+            while (end < data.length && (n = in.read(data, end, data.length - end)) > 0)
+                end += n;
+        } finally {
+            in.close();
+        }
+        position = 0;
+    }
+
+    private void decode(Handler handler) {
+        for (int i = 0; i < lastX.length; i++) {
+            lastX[i] = 0;
+            lastY[i] = 0;
+            lastPressure[i] = 0;
+            lastTime[i] = 0;
+        }
+
+        /* The brush settings are collected and handed over together */
+        float size = 0;
+        int color = 0;
+        int spacing = 0;
+        float pixelScale = 0;
+        int mask = -1;
+        boolean brushChanged = false;
+
+        try {
+            while (position < end) {
+                int tag = data[position++] & 0xff;
+                if ((tag & CanvasJournal.TAG_SAMPLE) != 0) {
+                    if (brushChanged) {
+                        handler.brush(size, color, spacing, pixelScale, mask);
+                        brushChanged = false;
+                    }
+                    int flags = (tag >> CanvasJournal.SAMPLE_FLAGS_SHIFT)
+                            & CanvasJournal.SAMPLE_FLAGS_MASK;
+                    int pointer = tag & CanvasJournal.SAMPLE_POINTER_MASK;
+                    if (pointer == CanvasJournal.WIDE_POINTER)
+                        pointer = readVarint();
+                    if (pointer >= lastX.length)
+                        growPointers(pointer + 1);
+                    int qx = lastX[pointer] + unzigzag(readVarint());
+                    int qy = lastY[pointer] + unzigzag(readVarint());
+                    int qp = lastPressure[pointer] + unzigzag(readVarint());
+                    long t = lastTime[pointer] + unzigzag(readVarlong());
+                    lastX[pointer] = qx;
+                    lastY[pointer] = qy;
+                    lastPressure[pointer] = qp;
+                    lastTime[pointer] = t;
+                    samples++;
+                    handler.sample(pointer, qx / CanvasJournal.POSITION_STEPS,
+                            qy / CanvasJournal.POSITION_STEPS,
+                            qp / CanvasJournal.PRESSURE_STEPS, flags, t);
+                    continue;
+                }
+                switch (tag) {
+                case CanvasJournal.TAG_SIZE:
+                    size = Float.intBitsToFloat(readInt());
+                    brushChanged = true;
+                    break;
+                case CanvasJournal.TAG_COLOR:
+                    color = readInt();
+                    brushChanged = true;
+                    break;
+                case CanvasJournal.TAG_SPACING:
+                    spacing = readVarint();
+                    brushChanged = true;
+                    break;
+                case CanvasJournal.TAG_SCALE:
+                    pixelScale = Float.intBitsToFloat(readInt());
+                    brushChanged = true;
+                    break;
+                case CanvasJournal.TAG_SELECT_MASK:
+                    mask = readVarint();
+                    brushChanged = true;
+                    break;
+                case CanvasJournal.TAG_MASK:
+                    int number = readVarint();
+                    int width = readVarint();
+                    int height = readVarint();
+                    int deflated = readVarint();
+                    int n = width * height;
+                    if (n < 0 || deflated < 0 || deflated > end - position)
+                        throw new IndexOutOfBoundsException();
+                    if (alpha.length < n)
+                        alpha = new byte[n];
+                    inflater.reset();
+                    inflater.setInput(data, position, deflated);
+                    position += deflated;
+                    try {
+                        if (inflater.inflate(alpha, 0, n) != n) {
+                            truncated++;
+                            return;
+                        }
+                    } catch (DataFormatException e) {
+                        truncated++;
+                        return;
+                    }
+                    int[] argb = new int[n];
+                    for (int i = 0; i < n; i++)
+                        argb[i] = (alpha[i] << 24) | 0xffffff;
+                    handler.mask(number, width, height, argb);
+                    break;
+                case CanvasJournal.TAG_CLEAR:
+                    handler.clear();
+                    break;
+                case CanvasJournal.TAG_UNDO:
+                    handler.undo();
+                    break;
+                case CanvasJournal.TAG_REDO:
+                    handler.redo();
+                    break;
+                default:
+                    /* Unknown record, so the rest of the chunk can't be
+                     * trusted */
+                    truncated++;
+                    return;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            /* The chunk ends part way through a record */
+            truncated++;
+        }
+    }
+
+    private void growPointers(int pointers) {
+        int[] x = new int[pointers];
+        int[] y = new int[pointers];
+        int[] p = new int[pointers];
+        long[] t = new long[pointers];
+        System.arraycopy(lastX, 0, x, 0, lastX.length);
+        System.arraycopy(lastY, 0, y, 0, lastY.length);
+        System.arraycopy(lastPressure, 0, p, 0, lastPressure.length);
+        System.arraycopy(lastTime, 0, t, 0, lastTime.length);
+        lastX = x;
+        lastY = y;
+        lastPressure = p;
+        lastTime = t;
+    }
+
+    private int readInt() {
+        if (position + 4 > end)
+            throw new IndexOutOfBoundsException();
+        int v = ((data[position] & 0xff) << 24) | ((data[position + 1] & 0xff) << 16)
+                | ((data[position + 2] & 0xff) << 8) | (data[position + 3] & 0xff);
+        position += 4;
+        return v;
+    }
+
+    private int readVarint() {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position >= end)
+                throw new IndexOutOfBoundsException();
+            int b = data[position++];
+            v |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    private long readVarlong() {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            if (position >= end)
+                throw new IndexOutOfBoundsException();
+            int b = data[position++];
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Number of chunks decoded by the last read.
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Number of bytes decoded by the last read.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Number of samples decoded by the last read.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Number of chunks the last read found cut short or damaged.
+     */
+    public int getTruncated() {
+        return truncated;
+    }
+
+}
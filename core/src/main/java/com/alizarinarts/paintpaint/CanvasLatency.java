@@ -0,0 +1,238 @@
+package com.alizarinarts.paintpaint;
+
+/**
+ * How long each touch sample takes to reach the screen, split into the
+ * stages it passes through so a slow stroke can be blamed on one of them:
+ *
+ * input, from the event time of the sample until it was committed to the
+ * input ring, which is the time the UI thread took to hand it over.
+ *
+ * queue, until the OpenGL thread drained it from the ring.
+ *
+ * render, until the frame it was drawn in had been submitted.
+ *
+ * swap, until the frame had been swapped onto the screen.
+ *
+ * The renderer calls beginFrame(), addSample() for each sample it drains,
+ * submitted() and then swapped(), all on the OpenGL thread.  Every sample of
+ * a frame shares its drain, submit and swap times, so they are kept once per
+ * frame and the samples' own times in arrays that are made up front.
+ *
+ * Besides the histograms of every sample, the latencies of each stroke are
+ * kept apart until it ends, and its percentiles are then recorded into
+ * histograms of strokes.  A stroke with a few slow samples shows up there
+ * even when it is lost among all the samples of a window.
+ *
+ * All times are System.nanoTime(), and latencies are recorded in
+ * microseconds.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasLatency {
+
+    /* Bucket bounds for latencies in microseconds, finest within a few
+     * 60Hz frames */
+    private static final long[] MICROS = {
+        250, 500, 1000, 2000, 4000, 8000, 12000, 16700, 25000, 33300,
+        50000, 66700, 100000, 200000, 500000,
+    };
+
+    /* Strokes of pointers past this many aren't kept apart */
+    private static final int MAX_POINTERS = 10;
+
+    /* Every sample, by stage */
+    private final CanvasHistogram inputMicros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram queueMicros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram renderMicros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram swapMicros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram totalMicros = new CanvasHistogram(MICROS);
+
+    /* Percentiles of the total latency of each stroke that has ended */
+    private final CanvasHistogram strokeP50Micros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram strokeP90Micros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram strokeP99Micros = new CanvasHistogram(MICROS);
+
+    /* Total latencies of the stroke each pointer is drawing */
+    private final CanvasHistogram[] strokes = new CanvasHistogram[MAX_POINTERS];
+
+    /* The last stroke to end */
+    private volatile long lastStrokeSamples;
+    private volatile long lastStrokeP50;
+    private volatile long lastStrokeP90;
+    private volatile long lastStrokeP99;
+
+    /* The samples of the frame on its way to the screen */
+    private final long[] eventTimes;
+    private final long[] commitTimes;
+    private final int[] pointers;
+    private final int[] flags;
+    private int samples;
+    private long drainTime;
+    private long submitTime;
+
+    /**
+     * @param capacity Most samples a frame can drain
+     */
+    public CanvasLatency(int capacity) {
+        eventTimes = new long[capacity];
+        commitTimes = new long[capacity];
+        pointers = new int[capacity];
+        flags = new int[capacity];
+        for (int i = 0; i < MAX_POINTERS; i++)
+            strokes[i] = new CanvasHistogram(MICROS);
+    }
+
+    /**
+     * Start a frame, forgetting the samples of any frame that never reached
+     * swapped().
+     *
+     * @param now When the samples are being drained
+     */
+    public void beginFrame(long now) {
+        samples = 0;
+        drainTime = now;
+        submitTime = 0;
+    }
+
+    /**
+     * Add a sample drained in this frame.
+     *
+     * @param eventTime When the sample was taken, in nanoseconds on the
+     * System.nanoTime() clock
+     * @param commitTime When it was committed to the input ring
+     */
+    public void addSample(int pointer, int sampleFlags, long eventTime, long commitTime) {
+        if (samples == eventTimes.length)
+            return;
+        eventTimes[samples] = eventTime;
+        commitTimes[samples] = commitTime;
+        pointers[samples] = pointer;
+        flags[samples] = sampleFlags;
+        samples++;
+    }
+
+    /**
+     * Whether the frame has samples waiting for submitted() and swapped().
+     */
+    public boolean hasSamples() {
+        return samples > 0;
+    }
+
+    /**
+     * Mark the frame as submitted, once everything in it has been drawn.
+     */
+    public void submitted(long now) {
+        submitTime = now;
+    }
+
+    /**
+     * Mark the frame as swapped onto the screen, and record the latencies
+     * of its samples.
+     */
+    public void swapped(long now) {
+        if (submitTime == 0)
+            submitTime = now;
+        long render = (submitTime - drainTime) / 1000;
+        long swap = (now - submitTime) / 1000;
+        for (int i = 0; i < samples; i++) {
+            long total = (now - eventTimes[i]) / 1000;
+            inputMicros.record((commitTimes[i] - eventTimes[i]) / 1000);
+            queueMicros.record((drainTime - commitTimes[i]) / 1000);
+            renderMicros.record(render);
+            swapMicros.record(swap);
+            totalMicros.record(total);
+
+            int pointer = pointers[i];
+            if (pointer < 0 || pointer >= MAX_POINTERS)
+                continue;
+            CanvasHistogram stroke = strokes[pointer];
+            if (CanvasDab.isNewStroke(flags[i]))
+                stroke.reset();
+            stroke.record(total);
+            if (CanvasDab.isEndStroke(flags[i]))
+                endStroke(stroke);
+        }
+        samples = 0;
+    }
+
+    private void endStroke(CanvasHistogram stroke) {
+        long p50 = stroke.getPercentile(50);
+        long p90 = stroke.getPercentile(90);
+        long p99 = stroke.getPercentile(99);
+        strokeP50Micros.record(p50);
+        strokeP90Micros.record(p90);
+        strokeP99Micros.record(p99);
+        lastStrokeSamples = stroke.getCount();
+        lastStrokeP50 = p50;
+        lastStrokeP90 = p90;
+        lastStrokeP99 = p99;
+        stroke.reset();
+    }
+
+    /**
+     * Forget the histograms, but not the strokes being drawn or the last
+     * stroke.
+     */
+    public void reset() {
+        inputMicros.reset();
+        queueMicros.reset();
+        renderMicros.reset();
+        swapMicros.reset();
+        totalMicros.reset();
+        strokeP50Micros.reset();
+        strokeP90Micros.reset();
+        strokeP99Micros.reset();
+    }
+
+    public CanvasHistogram getInputMicros() {
+        return inputMicros;
+    }
+
+    public CanvasHistogram getQueueMicros() {
+        return queueMicros;
+    }
+
+    public CanvasHistogram getRenderMicros() {
+        return renderMicros;
+    }
+
+    public CanvasHistogram getSwapMicros() {
+        return swapMicros;
+    }
+
+    public CanvasHistogram getTotalMicros() {
+        return totalMicros;
+    }
+
+    public CanvasHistogram getStrokeP50Micros() {
+        return strokeP50Micros;
+    }
+
+    public CanvasHistogram getStrokeP90Micros() {
+        return strokeP90Micros;
+    }
+
+    public CanvasHistogram getStrokeP99Micros() {
+        return strokeP99Micros;
+    }
+
+    /**
+     * Number of samples in the last stroke to end, or 0 if none has.
+     */
+    public long getLastStrokeSamples() {
+        return lastStrokeSamples;
+    }
+
+    public long getLastStrokeP50() {
+        return lastStrokeP50;
+    }
+
+    public long getLastStrokeP90() {
+        return lastStrokeP90;
+    }
+
+    public long getLastStrokeP99() {
+        return lastStrokeP99;
+    }
+
+}
@@ -0,0 +1,329 @@
+package com.alizarinarts.paintpaint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bulk operations on blocks of pixels, used by every path that moves pixels
+ * between Bitmaps and OpenGL.
+ *
+ * Pixels come in two layouts.  Android colors are ints in ARGB order, as
+ * returned by Bitmap.getPixels().  OpenGL pixels are RGBA bytes, which is
+ * also how an ARGB_8888 Bitmap keeps them in memory.  Rows are moved with
+ * System.arraycopy or bulk buffer copies rather than pixel by pixel.
+ *
+ * Large images are split into bands of rows that are processed in parallel
+ * on devices with more than one core.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasPixelOps {
+
+    /**
+     * Work done on a band of rows.
+     */
+    public interface RowBand {
+        /**
+         * @param start The first row of the band
+         * @param end One past the last row of the band
+         */
+        void run(int start, int end);
+    }
+
+    /* Images with fewer pixels than this aren't worth splitting up */
+    private static final int PARALLEL_PIXELS = 128 * 1024;
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    /* Helper threads for banded work, created the first time they're used */
+    private static ExecutorService bands;
+
+    private CanvasPixelOps() {
+    }
+
+    /**
+     * Run an operation over rows 0 to rows - 1, split into bands run in
+     * parallel if the image is large enough.  Returns once every band is
+     * done.
+     *
+     * @param rows The number of rows
+     * @param rowPixels The number of pixels in a row, to judge the work
+     * @param band The operation
+     */
+    public static void forBands(int rows, int rowPixels, final RowBand band) {
+        int count = Math.min(CORES, rows);
+        if (count < 2 || (long) rows * rowPixels < PARALLEL_PIXELS) {
+            band.run(0, rows);
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(count - 1);
+        int size = (rows + count - 1) / count;
+        ExecutorService executor = getBandExecutor();
+        for (int i = 1; i < count; i++) {
+            final int start = Math.min(rows, i * size);
+            final int end = Math.min(rows, start + size);
+            executor.execute(new Runnable() {public void run() {
+                try {
+                    band.run(start, end);
+                } finally {
+                    done.countDown();
+                }
+            }});
+        }
+        /* This thread does the first band itself */
+        band.run(0, Math.min(rows, size));
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService getBandExecutor() {
+        if (bands == null) {
+            bands = Executors.newFixedThreadPool(CORES - 1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PaintPaint pixels");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return bands;
+    }
+
+    /**
+     * Mirror an image vertically in place.
+     */
+    public static void flipVertical(final int[] pixels, final int width, final int height) {
+        forBands(height / 2, width, new RowBand() {
+            public void run(int start, int end) {
+                int[] row = new int[width];
+                for (int y = start; y < end; y++) {
+                    int top = y * width;
+                    int bottom = (height - 1 - y) * width;
+                    System.arraycopy(pixels, top, row, 0, width);
+                    System.arraycopy(pixels, bottom, pixels, top, width);
+                    System.arraycopy(row, 0, pixels, bottom, width);
+                }
+            }
+        });
+    }
+
+    /**
+     * Mirror an image held in a buffer vertically in place.
+     *
+     * @param pixels The image, starting at position 0
+     * @param rowBytes The length of a row in bytes
+     * @param height The number of rows
+     */
+    public static void flipVertical(final ByteBuffer pixels, final int rowBytes, final int height) {
+        forBands(height / 2, rowBytes / 4, new RowBand() {
+            public void run(int start, int end) {
+                /* Each band works through its own view of the buffer */
+                ByteBuffer view = pixels.duplicate();
+                byte[] top = new byte[rowBytes];
+                byte[] bottom = new byte[rowBytes];
+                for (int y = start; y < end; y++) {
+                    int t = y * rowBytes;
+                    int b = (height - 1 - y) * rowBytes;
+                    view.position(t);
+                    view.get(top);
+                    view.position(b);
+                    view.get(bottom);
+                    view.position(b);
+                    view.put(top);
+                    view.position(t);
+                    view.put(bottom);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy a rectangle of rows from one buffer to another, optionally
+     * mirroring it vertically on the way.
+     *
+     * @param src The source, with the first row at position 0
+     * @param srcStride The distance between source rows in bytes
+     * @param dst The destination
+     * @param dstOffset The position of the first destination row
+     * @param dstStride The distance between destination rows in bytes
+     * @param rowBytes The number of bytes to copy from each row
+     * @param rows The number of rows
+     * @param flip If true, the first source row becomes the last one
+     */
+    public static void copyRows(ByteBuffer src, int srcStride, ByteBuffer dst, int dstOffset,
+            int dstStride, int rowBytes, int rows, boolean flip) {
+        ByteBuffer from = src.duplicate();
+        ByteBuffer to = dst.duplicate();
+        for (int r = 0; r < rows; r++) {
+            int d = flip ? rows - 1 - r : r;
+            from.limit(r * srcStride + rowBytes);
+            from.position(r * srcStride);
+            to.position(dstOffset + d * dstStride);
+            to.put(from);
+        }
+    }
+
+    /**
+     * Fill a buffer with a color.
+     *
+     * @param dst The buffer, filled from position 0
+     * @param rgba The color as an int in RGBA order
+     * @param count The number of pixels to fill
+     */
+    public static void fill(ByteBuffer dst, int rgba, int count) {
+        int bytes = count * 4;
+        ByteBuffer to = dst.duplicate();
+        to.order(ByteOrder.BIG_ENDIAN);
+        to.clear();
+        if (bytes == 0)
+            return;
+        to.putInt(0, rgba);
+        /* Double the filled part with bulk copies */
+        int filled = 4;
+        ByteBuffer from = dst.duplicate();
+        while (filled < bytes) {
+            int n = Math.min(filled, bytes - filled);
+            from.limit(n);
+            from.position(0);
+            to.position(filled);
+            to.put(from);
+            filled += n;
+        }
+    }
+
+    /**
+     * a * b / 255, rounded, for a and b from 0 to 255.  Premultiplying and
+     * blending both use this so they agree to the last step.
+     */
+    public static int multiply(int a, int b) {
+        int t = a * b + 0x80;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    /**
+     * Swap the red and blue channels of ints in place, converting between
+     * ARGB and ABGR.  An ABGR int is RGBA bytes in little endian order.
+     */
+    public static void swapRedBlue(final int[] pixels, final int offset, int count) {
+        /* Without rows, every pixel is a row of its own */
+        forBands(count, 1, new RowBand() {
+            public void run(int start, int end) {
+                for (int i = offset + start; i < offset + end; i++) {
+                    int p = pixels[i];
+                    pixels[i] = (p & 0xff00ff00) | ((p >> 16) & 0xff) | ((p & 0xff) << 16);
+                }
+            }
+        });
+    }
+
+    /**
+     * Multiply the color channels of ARGB pixels by their alpha, in place.
+     */
+    public static void premultiply(final int[] pixels, final int width, int height) {
+        forBands(height, width, new RowBand() {
+            public void run(int start, int end) {
+                for (int i = start * width; i < end * width; i++) {
+                    int p = pixels[i];
+                    int a = p >>> 24;
+                    if (a == 0xff)
+                        continue;
+                    int r = multiply((p >> 16) & 0xff, a);
+                    int g = multiply((p >> 8) & 0xff, a);
+                    int b = multiply(p & 0xff, a);
+                    pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+            }
+        });
+    }
+
+    /**
+     * Divide the color channels of premultiplied ARGB pixels by their alpha,
+     * in place.
+     */
+    public static void unpremultiply(final int[] pixels, final int width, int height) {
+        forBands(height, width, new RowBand() {
+            public void run(int start, int end) {
+                for (int i = start * width; i < end * width; i++) {
+                    int p = pixels[i];
+                    int a = p >>> 24;
+                    if (a == 0xff)
+                        continue;
+                    if (a == 0) {
+                        pixels[i] = 0;
+                        continue;
+                    }
+                    /* Rounded too, so a round trip comes back where it
+                     * started */
+                    int half = a >> 1;
+                    int r = Math.min(255, (((p >> 16) & 0xff) * 255 + half) / a);
+                    int g = Math.min(255, (((p >> 8) & 0xff) * 255 + half) / a);
+                    int b = Math.min(255, ((p & 0xff) * 255 + half) / a);
+                    pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert a rectangle of ARGB pixels to RGBA bytes.
+     *
+     * @param src The ARGB pixels
+     * @param srcOffset The index of the rectangle's first pixel
+     * @param srcStride The distance between rows of src in pixels
+     * @param dst The destination, written from position 0 with rows packed
+     * @param width The width of the rectangle
+     * @param height The height of the rectangle
+     */
+    public static void argbToRgba(final int[] src, final int srcOffset, final int srcStride,
+            ByteBuffer dst, final int width, int height) {
+        /* Written as big endian ints, RGBA ints become RGBA bytes */
+        final ByteBuffer to = dst.duplicate().order(ByteOrder.BIG_ENDIAN);
+        forBands(height, width, new RowBand() {
+            public void run(int start, int end) {
+                IntBuffer out = to.asIntBuffer();
+                int[] row = new int[width];
+                for (int y = start; y < end; y++) {
+                    int s = srcOffset + y * srcStride;
+                    for (int x = 0; x < width; x++) {
+                        int p = src[s + x];
+                        row[x] = (p << 8) | (p >>> 24);
+                    }
+                    out.position(y * width);
+                    out.put(row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert packed RGBA bytes to ARGB pixels.
+     *
+     * @param src The RGBA bytes, starting at position 0
+     * @param dst The ARGB pixels
+     * @param count The number of pixels
+     */
+    public static void rgbaToArgb(ByteBuffer src, final int[] dst, int count) {
+        final IntBuffer in = src.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        forBands(count, 1, new RowBand() {
+            public void run(int start, int end) {
+                /* Each band reads through its own view of the buffer */
+                IntBuffer view = in.duplicate();
+                view.position(start);
+                view.get(dst, start, end - start);
+                for (int i = start; i < end; i++) {
+                    int p = dst[i];
+                    dst[i] = (p >>> 8) | (p << 24);
+                }
+            }
+        });
+    }
+
+}
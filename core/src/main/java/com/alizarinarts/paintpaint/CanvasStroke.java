@@ -0,0 +1,209 @@
+package com.alizarinarts.paintpaint;
+
+/**
+ * Generates the brush dabs along a single stroke.
+ *
+ * A Catmull-Rom spline is fit through the touch samples of the stroke and
+ * dabs are placed along it at a fixed arc length spacing.  The spacing is a
+ * fraction of the dab diameter at the current pressure so the number of dabs
+ * follows the length of the stroke rather than the number of samples.
+ * Pressure is interpolated along the curve the same way as the position.
+ *
+ * Because a segment of the spline needs the sample after it, the dabs of a
+ * segment are generated one sample late.  The last segment is generated
+ * when the stroke ends.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasStroke {
+
+    /**
+     * Receives the dabs generated along a stroke.
+     */
+    public interface DabSink {
+        /**
+         * @param x The X coordinate of the dab's center
+         * @param y The Y coordinate of the dab's center
+         * @param pressure The interpolated pressure at the dab
+         */
+        void dab(float x, float y, float pressure);
+    }
+
+    /* Dabs are never placed closer together than this, in canvas pixels */
+    private static final float MIN_SPACING = 0.5f;
+
+    /* Length in canvas pixels of the straight pieces used to measure the
+     * curve, and the most pieces a single segment is split into. */
+    private static final float PIECE_LENGTH = 2.0f;
+    private static final int MAX_PIECES = 64;
+
+    /* The last four samples of the stroke, oldest first */
+    private final float[] px = new float[4];
+    private final float[] py = new float[4];
+    private final float[] pp = new float[4];
+    private int samples;
+
+    /* Distance travelled along the curve since the last dab */
+    private float travelled;
+
+    /* Diameter of a full pressure dab in canvas pixels */
+    private float diameter = 1.0f;
+
+    /* Distance between dabs as a fraction of the dab diameter */
+    private float spacing = 0.1f;
+
+    /* Number of dabs generated since the stroke began */
+    private int dabCount;
+
+    /**
+     * Start a new stroke at the given sample.  A dab is placed at the start
+     * of the stroke right away.
+     */
+    public void begin(float x, float y, float pressure, DabSink sink) {
+        samples = 0;
+        dabCount = 0;
+        travelled = 0;
+        push(x, y, pressure);
+        emit(x, y, pressure, sink);
+    }
+
+    /**
+     * Add a touch sample to the stroke, generating the dabs of the segment
+     * before the previous sample.
+     */
+    public void addSample(float x, float y, float pressure, DabSink sink) {
+        if (samples == 0) {
+            begin(x, y, pressure, sink);
+            return;
+        }
+        /* Drop samples that don't move so the spline has no zero length
+         * segments. */
+        if (x == px[3] && y == py[3]) {
+            pp[3] = pressure;
+            return;
+        }
+        push(x, y, pressure);
+        if (samples >= 3)
+            segment(1, 2, sink);
+    }
+
+    /**
+     * Finish the stroke, generating the dabs of its last segment.
+     */
+    public void end(DabSink sink) {
+        if (samples >= 2)
+            segment(2, 3, sink);
+        samples = 0;
+    }
+
+    /**
+     * Return true if a stroke has begun and not yet ended.
+     */
+    public boolean isActive() {
+        return samples > 0;
+    }
+
+    /**
+     * Set the diameter of a full pressure dab in canvas pixels.
+     */
+    public void setDiameter(float diameter) {
+        this.diameter = diameter;
+    }
+
+    /**
+     * Set the distance between dabs as a fraction of the dab diameter.
+     */
+    public void setSpacing(float spacing) {
+        this.spacing = spacing;
+    }
+
+    /**
+     * Return the number of dabs generated since the stroke began.
+     */
+    public int getDabCount() {
+        return dabCount;
+    }
+
+    /* Append a sample, shifting the oldest one out of the window. */
+    private void push(float x, float y, float pressure) {
+        for (int i = 0; i < 3; i++) {
+            px[i] = px[i + 1];
+            py[i] = py[i + 1];
+            pp[i] = pp[i + 1];
+        }
+        px[3] = x;
+        py[3] = y;
+        pp[3] = pressure;
+        if (samples < 4)
+            samples++;
+    }
+
+    /*
+     * Place dabs along the spline segment between window slots a and b = a+1.
+     * Missing neighbours at the ends of the stroke are replaced by the
+     * segment's own end points.
+     */
+    private void segment(int a, int b, DabSink sink) {
+        /* Only the newest samples slots of the window hold stroke data */
+        int before = (a - 1 >= 4 - samples) ? a - 1 : a;
+        int after = b < 3 ? b + 1 : b;
+
+        float chordX = px[b] - px[a];
+        float chordY = py[b] - py[a];
+        float chord = (float) Math.sqrt(chordX * chordX + chordY * chordY);
+        int pieces = Math.max(1, Math.min(MAX_PIECES, (int) (chord / PIECE_LENGTH)));
+
+        float lastX = px[a];
+        float lastY = py[a];
+        float lastP = pp[a];
+        for (int i = 1; i <= pieces; i++) {
+            float t = (float) i / pieces;
+            float x = catmullRom(px[before], px[a], px[b], px[after], t);
+            float y = catmullRom(py[before], py[a], py[b], py[after], t);
+            float p = Math.max(0f, catmullRom(pp[before], pp[a], pp[b], pp[after], t));
+
+            float dx = x - lastX;
+            float dy = y - lastY;
+            float length = (float) Math.sqrt(dx * dx + dy * dy);
+
+            /* Walk along this piece placing dabs every step */
+            float along = 0;
+            while (length > 0) {
+                float f = along / length;
+                float step = Math.max(MIN_SPACING,
+                        spacing * diameter * (lastP + (p - lastP) * f));
+                /* The step shrinks with the pressure, possibly below how
+                 * far has been travelled since the last dab */
+                float needed = Math.max(0f, step - travelled);
+                if (along + needed > length) {
+                    travelled += length - along;
+                    break;
+                }
+                along += needed;
+                travelled = 0;
+                f = along / length;
+                emit(lastX + dx * f, lastY + dy * f, lastP + (p - lastP) * f, sink);
+            }
+
+            lastX = x;
+            lastY = y;
+            lastP = p;
+        }
+    }
+
+    private void emit(float x, float y, float pressure, DabSink sink) {
+        dabCount++;
+        sink.dab(x, y, pressure);
+    }
+
+    /* Evaluate a uniform Catmull-Rom spline between p1 and p2. */
+    private static float catmullRom(float p0, float p1, float p2, float p3, float t) {
+        float t2 = t * t;
+        float t3 = t2 * t;
+        return 0.5f * ((2f * p1)
+                + (-p0 + p2) * t
+                + (2f * p0 - 5f * p1 + 4f * p2 - p3) * t2
+                + (-p0 + 3f * p1 - 3f * p2 + p3) * t3);
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.alizarinarts.paintpaint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Draws dabs with the CPU backend and checks each pixel against what the
+ * OpenGL pipeline would make of them.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasCpuBackendTest {
+
+    private static final int WHITE = 0xffffffff;
+    private static final int RED = 0xff0000ff;
+    private static final int BLUE = 0x0000ffff;
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void opaqueDabCoversPixelsWhoseCentersAreInside() {
+        CanvasCpuBackend canvas = new CanvasCpuBackend(40, 40, pool);
+        canvas.setColor(RED);
+        float[][] dabs = { { 10, 10, 2.5f }, { 25.2f, 8.7f, 2 }, { 12.5f, 30.5f, 0.4f } };
+        canvas.beginDabs();
+        for (float[] dab : dabs)
+            canvas.addDab(dab[0], dab[1], dab[2]);
+        canvas.endDabs();
+
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 40; x++) {
+                boolean covered = false;
+                for (float[] dab : dabs)
+                    covered |= centerInside(x, y, dab[0], dab[1], dab[2]);
+                assertEquals("pixel " + x + ", " + y, covered ? 0xffff0000 : WHITE,
+                        canvas.getPixel(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void softMaskBlendsPremultiplied() {
+        CanvasCpuBackend canvas = new CanvasCpuBackend(40, 40, pool);
+        /* An opaque blue square to blend over */
+        canvas.setColor(BLUE);
+        canvas.beginDabs();
+        canvas.addDab(20, 20, 4);
+        canvas.endDabs();
+
+        /* A 4x4 tip drawn 4 pixels wide, so each pixel gets one texel.  The
+         * tip is given top row first. */
+        int[] tip = new int[16];
+        for (int i = 0; i < tip.length; i++)
+            tip[i] = (i * 17 << 24) | 0xffffff;
+        canvas.setMask(canvas.addMask(4, 4, tip));
+        int color = 0x3366ccb0;
+        canvas.setColor(color);
+        canvas.beginDabs();
+        canvas.addDab(20, 20, 2);
+        canvas.endDabs();
+
+        double a = (color & 0xff) / 255.0;
+        for (int y = 18; y < 22; y++) {
+            for (int x = 18; x < 22; x++) {
+                double m = (tip[(3 - (y - 18)) * 4 + (x - 18)] >>> 24) / 255.0;
+                double sa = a * m;
+                int expected = blend(0xff0000ff, color, sa);
+                assertClose("pixel " + x + ", " + y, expected, canvas.getPixel(x, y));
+            }
+        }
+        /* Outside the tip the blue is untouched */
+        assertEquals(0xff0000ff, canvas.getPixel(17, 20));
+        assertEquals(0xff0000ff, canvas.getPixel(22, 20));
+    }
+
+    @Test
+    public void dabsCrossTileEdgesAndTheCanvasEdge() {
+        /* Neither side is a whole number of tiles */
+        int width = 600;
+        int height = 300;
+        CanvasCpuBackend canvas = new CanvasCpuBackend(width, height, pool);
+        canvas.setColor(RED);
+        float[][] dabs = {
+            { CanvasCpuBackend.TILE_SIZE, CanvasCpuBackend.TILE_SIZE, 10 },
+            { 2 * CanvasCpuBackend.TILE_SIZE + 3, 100, 7.5f },
+            { width - 2, height - 3, 10 },
+        };
+        canvas.beginDabs();
+        for (float[] dab : dabs)
+            canvas.addDab(dab[0], dab[1], dab[2]);
+        canvas.endDabs();
+
+        int[] argb = new int[width * height];
+        canvas.getPixels(argb);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean covered = false;
+                for (float[] dab : dabs)
+                    covered |= centerInside(x, y, dab[0], dab[1], dab[2]);
+                int expected = covered ? 0xffff0000 : WHITE;
+                assertEquals("pixel " + x + ", " + y, expected, canvas.getPixel(x, y));
+                /* getPixels() is top row first */
+                assertEquals("pixel " + x + ", " + y, expected,
+                        argb[(height - 1 - y) * width + x]);
+            }
+        }
+        assertEquals(0xffff0000, canvas.getPixel(width - 1, height - 1));
+    }
+
+    @Test
+    public void laterDabsCoverEarlierOnes() {
+        CanvasCpuBackend canvas = new CanvasCpuBackend(512, 64, pool);
+        /* All in one batch, each overlapping the last across a tile edge */
+        canvas.beginDabs();
+        canvas.setColor(RED);
+        canvas.addDab(250, 30, 8);
+        canvas.setColor(BLUE);
+        canvas.addDab(256, 30, 8);
+        canvas.setColor(RED);
+        canvas.addDab(262, 30, 8);
+        canvas.endDabs();
+
+        assertEquals(0xffff0000, canvas.getPixel(243, 30));
+        assertEquals(0xff0000ff, canvas.getPixel(253, 30));
+        assertEquals(0xffff0000, canvas.getPixel(256, 30));
+        assertEquals(0xffff0000, canvas.getPixel(269, 30));
+        assertEquals(WHITE, canvas.getPixel(271, 30));
+    }
+
+    @Test
+    public void dabsOffTheCanvasDrawNothing() {
+        CanvasCpuBackend canvas = new CanvasCpuBackend(300, 280, pool);
+        canvas.setColor(RED);
+        canvas.beginDabs();
+        canvas.addDab(-50, -50, 10);
+        canvas.addDab(320, 100, 10);
+        canvas.addDab(100, 295, 10);
+        canvas.addDab(-11, 140, 10);
+        canvas.endDabs();
+        int[] argb = new int[300 * 280];
+        canvas.getPixels(argb);
+        for (int pixel : argb)
+            assertEquals(WHITE, pixel);
+
+        /* Partly off the canvas, only the part on it is drawn */
+        canvas.beginDabs();
+        canvas.addDab(-3, 140, 5);
+        canvas.endDabs();
+        assertEquals(0xffff0000, canvas.getPixel(0, 140));
+        assertEquals(0xffff0000, canvas.getPixel(1, 140));
+        assertEquals(WHITE, canvas.getPixel(2, 140));
+        assertEquals(4 + 1, canvas.getDabsDrawn());
+    }
+
+    /* Whether the center of a pixel is inside a dab, the rule OpenGL
+     * rasterizes by */
+    private static boolean centerInside(int x, int y, float dx, float dy, float r) {
+        float cx = x + 0.5f;
+        float cy = y + 0.5f;
+        return cx >= dx - r && cx < dx + r && cy >= dy - r && cy < dy + r;
+    }
+
+    /* A color in RGBA order blended over an opaque ARGB pixel with source
+     * alpha sa, as premultiplied ARGB */
+    private static int blend(int dst, int rgba, double sa) {
+        int out = 0xff000000;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            double src = ((rgba >>> (shift + 8)) & 0xff) * sa;
+            double under = ((dst >> shift) & 0xff) * (1 - sa);
+            out |= (int) Math.round(src + under) << shift;
+        }
+        return out;
+    }
+
+    /* Every channel within one step */
+    private static void assertClose(String message, int expected, int actual) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int difference = ((expected >>> shift) & 0xff) - ((actual >>> shift) & 0xff);
+            assertTrue(message + ": expected " + Integer.toHexString(expected) + " but was "
+                    + Integer.toHexString(actual), Math.abs(difference) <= 1);
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.alizarinarts.paintpaint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes stroke journals and reads them back, so the format on disk can't
+ * change without the reader and writer agreeing.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasJournalTest {
+
+    /* Largest error quantizing can make */
+    private static final float POSITION_ERROR = 0.5f / CanvasJournal.POSITION_STEPS;
+    private static final float PRESSURE_ERROR = 0.5f / CanvasJournal.PRESSURE_STEPS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    /* Runs the writes straight away, in order */
+    private final Executor inline = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File(folder.getRoot(), "journal");
+    }
+
+    @Test
+    public void samplesOfSeveralPointersRoundTrip() throws Exception {
+        CanvasJournal journal = new CanvasJournal(dir, inline);
+        journal.setBrush(20f, 0x336699ff, 10, 360f, -1);
+        List<Sample> written = new ArrayList<Sample>();
+        Random random = new Random(1);
+        /* Pointers past the ones that fit in the tag are written wide */
+        int[] pointers = { 0, 1, 3, CanvasJournal.WIDE_POINTER, 40 };
+        for (int i = 0; i < 200; i++) {
+            int pointer = pointers[i % pointers.length];
+            int step = i / pointers.length;
+            int flags = step == 0 ? CanvasDab.NEW_STROKE
+                    : step == 39 ? CanvasDab.END_STROKE : 0;
+            Sample sample = new Sample(pointer, random.nextFloat() * 4000 - 100,
+                    random.nextFloat() * 3000, random.nextFloat(), flags,
+                    1000000L + i * 7 - pointer);
+            journal.addSample(sample.pointer, sample.x, sample.y, sample.pressure,
+                    sample.flags, sample.time);
+            written.add(sample);
+        }
+        journal.flush();
+        journal.waitForWrites();
+
+        Recorder read = read();
+        assertEquals(written.size(), read.samples.size());
+        for (int i = 0; i < written.size(); i++)
+            assertSample(written.get(i), read.samples.get(i));
+        assertEquals(1, read.brushes.size());
+        assertEquals("20.0 336699ff 10 360.0 -1", read.brushes.get(0));
+    }
+
+    @Test
+    public void brushIsRestatedInEveryChunk() throws Exception {
+        CanvasJournal journal = new CanvasJournal(dir, inline);
+        int[] tip = new int[4 * 3];
+        for (int i = 0; i < tip.length; i++)
+            tip[i] = (i * 21 << 24) | 0xffffff;
+        journal.defineMask(2, 4, 3, tip);
+        journal.setBrush(8f, 0xff0000ff, 25, 100f, 2);
+
+        /* Change the brush part way, then write until the journal moves on
+         * to a new chunk, whose reader knows nothing of the one before */
+        Random random = new Random(2);
+        List<String> brushOfSample = new ArrayList<String>();
+        String brush = "8.0 ff0000ff 25 100.0 2";
+        int samples = 0;
+        while (CanvasJournal.listChunks(dir).length < 2 || samples < 1000) {
+            if (samples == 500) {
+                journal.setBrush(12f, 0x00ff00ff, 25, 100f, 2);
+                brush = "12.0 ff00ff 25 100.0 2";
+            }
+            journal.addSample(0, random.nextFloat() * 1000, random.nextFloat() * 1000,
+                    random.nextFloat(), samples % 50 == 0 ? CanvasDab.NEW_STROKE : 0,
+                    samples * 1000L);
+            brushOfSample.add(brush);
+            samples++;
+            if (samples % 10000 == 0)
+                journal.flush();
+        }
+        journal.setBrush(12f, 0x00ff00ff, 30, 100f, 2);
+        journal.addSample(0, 1, 2, 0.5f, CanvasDab.END_STROKE, samples * 1000L);
+        brushOfSample.add("12.0 ff00ff 30 100.0 2");
+        journal.flush();
+        journal.waitForWrites();
+
+        Recorder read = read();
+        assertTrue(read.chunks >= 2);
+        assertEquals(brushOfSample, read.brushOfSample);
+        /* The tip comes again with the brush in the new chunk */
+        assertEquals(read.chunks, read.masks.size());
+        for (int[] mask : read.masks)
+            assertArrayEquals(tip, mask);
+    }
+
+    @Test
+    public void undoRedoAndClearKeepTheirPlace() throws Exception {
+        CanvasJournal journal = new CanvasJournal(dir, inline);
+        journal.setBrush(5f, 0x000000ff, 10, 360f, -1);
+        journal.addSample(0, 10, 10, 1, CanvasDab.NEW_STROKE, 100);
+        journal.addSample(0, 20, 10, 1, CanvasDab.END_STROKE, 116);
+        journal.undo();
+        journal.redo();
+        journal.addSample(1, 30, 30, 1, CanvasDab.NEW_STROKE | CanvasDab.END_STROKE, 200);
+        journal.undo();
+        journal.clear();
+        journal.addSample(0, 5, 5, 1, CanvasDab.NEW_STROKE, 300);
+        journal.flush();
+        journal.waitForWrites();
+
+        assertEquals("[brush, sample 0, sample 0, undo, redo, sample 1, undo, clear, sample 0]",
+                read().events.toString());
+    }
+
+    @Test
+    public void journalContinuesInANewChunkWhenReopened() throws Exception {
+        CanvasJournal journal = new CanvasJournal(dir, inline);
+        journal.setBrush(5f, 0x000000ff, 10, 360f, -1);
+        journal.addSample(0, 10, 10, 1, CanvasDab.NEW_STROKE, 100);
+        journal.flush();
+        journal.waitForWrites();
+
+        journal = new CanvasJournal(dir, inline);
+        journal.setBrush(5f, 0x000000ff, 10, 360f, -1);
+        journal.addSample(0, 12.5f, 10, 1, CanvasDab.END_STROKE, 116);
+        journal.undo();
+        journal.flush();
+        journal.waitForWrites();
+
+        Recorder read = read();
+        assertEquals(2, read.chunks);
+        assertEquals("[brush, sample 0, brush, sample 0, undo]", read.events.toString());
+        assertSample(new Sample(0, 12.5f, 10, 1, CanvasDab.END_STROKE, 116),
+                read.samples.get(1));
+    }
+
+    @Test
+    public void resetDiscardsEverythingBeforeIt() throws Exception {
+        /* The writes wait until the end, so the chunk reset() has to delete
+         * hasn't been made yet when it is called */
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        CanvasJournal journal = new CanvasJournal(dir, new Executor() {
+            public void execute(Runnable task) {
+                queued.add(task);
+            }
+        });
+        journal.setBrush(5f, 0x000000ff, 10, 360f, -1);
+        journal.addSample(0, 10, 10, 1, CanvasDab.NEW_STROKE, 100);
+        journal.flush();
+        journal.reset();
+        journal.setBrush(7f, 0x000000ff, 10, 360f, -1);
+        journal.addSample(0, 50, 60, 1, CanvasDab.NEW_STROKE, 400);
+        journal.flush();
+        for (Runnable task : queued)
+            task.run();
+        journal.waitForWrites();
+
+        Recorder read = read();
+        assertEquals("[brush, sample 0]", read.events.toString());
+        assertSample(new Sample(0, 50, 60, 1, CanvasDab.NEW_STROKE, 400), read.samples.get(0));
+    }
+
+    private Recorder read() throws IOException {
+        CanvasJournalReader reader = new CanvasJournalReader(dir);
+        Recorder recorder = new Recorder();
+        long samples = reader.read(recorder);
+        assertEquals(0, reader.getTruncated());
+        assertEquals(recorder.samples.size(), samples);
+        recorder.chunks = reader.getChunks();
+        return recorder;
+    }
+
+    private static void assertSample(Sample expected, Sample actual) {
+        assertEquals(expected.pointer, actual.pointer);
+        assertEquals(expected.x, actual.x, POSITION_ERROR);
+        assertEquals(expected.y, actual.y, POSITION_ERROR);
+        assertEquals(expected.pressure, actual.pressure, PRESSURE_ERROR);
+        assertEquals(expected.flags, actual.flags);
+        assertEquals(expected.time, actual.time);
+    }
+
+    private static class Sample {
+        final int pointer;
+        final float x;
+        final float y;
+        final float pressure;
+        final int flags;
+        final long time;
+
+        Sample(int pointer, float x, float y, float pressure, int flags, long time) {
+            this.pointer = pointer;
+            this.x = x;
+            this.y = y;
+            this.pressure = pressure;
+            this.flags = flags;
+            this.time = time;
+        }
+    }
+
+    /* Keeps everything a journal hands it */
+    private static class Recorder implements CanvasJournalReader.Handler {
+        final List<String> events = new ArrayList<String>();
+        final List<String> brushes = new ArrayList<String>();
+        final List<String> brushOfSample = new ArrayList<String>();
+        final List<int[]> masks = new ArrayList<int[]>();
+        final List<Sample> samples = new ArrayList<Sample>();
+        String brush;
+        int chunks;
+
+        public void brush(float size, int color, int spacing, float pixelScale, int mask) {
+            brush = size + " " + Integer.toHexString(color) + " " + spacing + " "
+                    + pixelScale + " " + mask;
+            brushes.add(brush);
+            events.add("brush");
+        }
+
+        public void mask(int mask, int width, int height, int[] argb) {
+            masks.add(argb);
+            events.add("mask");
+        }
+
+        public void clear() {
+            events.add("clear");
+        }
+
+        public void undo() {
+            events.add("undo");
+        }
+
+        public void redo() {
+            events.add("redo");
+        }
+
+        public void sample(int pointer, float x, float y, float pressure, int flags, long time) {
+            samples.add(new Sample(pointer, x, y, pressure, flags, time));
+            brushOfSample.add(brush);
+            events.add("sample " + pointer);
+        }
+    }
+
+}
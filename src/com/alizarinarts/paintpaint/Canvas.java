@@ -1,9 +1,6 @@
 package com.alizarinarts.paintpaint;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 
 import android.app.Activity;
 import android.app.ActivityManager;
@@ -13,10 +10,15 @@ import android.content.Context;
 import android.content.pm.ConfigurationInfo;
 
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Typeface;
 
 import android.util.Log;
 
+import android.view.ViewGroup;
+
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
 /**
  * This class represents the drawing aspects of the CanvasActivity and serves to
  * keep the layout of the class and menus separate from the drawing function.
@@ -30,6 +32,24 @@ public class Canvas {
 
     CanvasGLSurfaceView mSurfaceView;
     CanvasRenderer mRenderer;
+    CanvasSaver mSaver = new CanvasSaver();
+    CanvasTileStore mTileStore;
+    CanvasJournal mJournal;
+
+    /* Shows the renderer's metrics over the canvas when it is visible */
+    TextView mOverlay;
+
+    /* How often the overlay is refreshed in milliseconds */
+    private static final long OVERLAY_MILLIS = 500;
+
+    private final Runnable mUpdateOverlay = new Runnable() {
+        public void run() {
+            if (mOverlay.getVisibility() != TextView.VISIBLE)
+                return;
+            mOverlay.setText(mRenderer.getMetrics().getSummary());
+            mOverlay.postDelayed(this, OVERLAY_MILLIS);
+        }
+    };
 
     /**
      * This constructor attempts to setup an OpenGL ES 2.0 SurfaceView and
@@ -42,8 +62,20 @@ public class Canvas {
         ConfigurationInfo info = am.getDeviceConfigurationInfo();
         if (info.reqGlEsVersion >= 0x20000) {
             mSurfaceView = new CanvasGLSurfaceView(a);
-            a.setContentView(mSurfaceView);
             mRenderer = mSurfaceView.getRenderer();
+
+            /* The overlay sits over the top left of the canvas */
+            mOverlay = new TextView(a);
+            mOverlay.setTypeface(Typeface.MONOSPACE);
+            mOverlay.setTextSize(11);
+            mOverlay.setTextColor(0xffffffff);
+            mOverlay.setBackgroundColor(0x80000000);
+            mOverlay.setVisibility(TextView.GONE);
+            FrameLayout layout = new FrameLayout(a);
+            layout.addView(mSurfaceView);
+            layout.addView(mOverlay, new FrameLayout.LayoutParams(
+                    ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            a.setContentView(layout);
         } else {
             // No OpenGL ES 2.0
             a.finish();
@@ -71,45 +103,127 @@ public class Canvas {
 
     /**
      * Save the canvas to storage as an image.  For now it only saves as PNG.
+     * Must be called on the OpenGL thread, which only takes a snapshot of
+     * the canvas.  The image is encoded and written in the background.
      *
      * @param saveDir The directory to save the file in.
      * @param fileName The name to save the canvas as.
      */
     public void save(String saveDir, String fileName) {
+        save(saveDir, fileName, null);
+    }
+
+    /**
+     * Save the canvas to storage as an image, telling a listener when the
+     * file has been written.
+     *
+     * @param saveDir The directory to save the file in.
+     * @param fileName The name to save the canvas as.
+     * @param listener Told when the save finishes, may be null.
+     */
+    public void save(String saveDir, String fileName, CanvasSaver.SaveListener listener) {
+        File outFile = new File(saveDir, fileName);
+
         /* Make sure we make a valid Bitmap */
         if (mRenderer == null) {
             Log.e(PaintPaint.NAME, "Renderer is null!");
+            if (listener != null)
+                listener.onSaveFinished(outFile, false);
             return;
         }
-        Bitmap b = mRenderer.getCanvasBitmap();
-        if (b == null) {
+        long start = System.nanoTime();
+        /* Read straight into one of the saver's snapshots, which it takes
+         * back once the file is written */
+        Bitmap snapshot = mRenderer.getCanvasSnapshot(mSaver);
+        if (snapshot == null) {
             Log.e(PaintPaint.NAME, "Couldn't get bitmap to save!");
+            if (listener != null)
+                listener.onSaveFinished(outFile, false);
             return; // return early if we didn't get a bitmap
         }
 
-        /* Attempt to write the Bitmap to storage */
-        try {
-            File dir = new File(saveDir+"/");
-            dir.mkdirs();
-            File outFile = new File(dir, fileName);
-            FileOutputStream fos = new FileOutputStream(outFile);
-            b.compress(CompressFormat.PNG, 100, fos);
-            try {
-                fos.flush();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
-            try {
-                fos.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        mSaver.save(snapshot, outFile, System.nanoTime() - start, listener);
+    }
+
+    /**
+     * Autosave the tiles of the canvas that changed since the last autosave.
+     * Must be called on the OpenGL thread.
+     *
+     * @param saveDir The directory to keep the autosave in.
+     */
+    public void autosave(String saveDir) {
+        if (mRenderer == null || mRenderer.getTiles() == null)
+            return;
+        getTileStore(saveDir).save(mRenderer.getTiles());
+        if (mJournal != null)
+            mJournal.flush();
+    }
+
+    /**
+     * Restore the canvas from the autosave.  Autosaves from before the tile
+     * store existed are loaded from the old autosave image.  Must be called
+     * on the OpenGL thread.
+     *
+     * @param saveDir The directory the autosave is kept in.
+     */
+    public void restoreAutosave(String saveDir) {
+        openJournal(saveDir);
+        mRenderer.restoreCanvas(getTileStore(saveDir),
+                new File(saveDir, PaintPaint.AUTOSAVE));
+    }
+
+    private CanvasTileStore getTileStore(String saveDir) {
+        if (mTileStore == null)
+            mTileStore = new CanvasTileStore(new File(saveDir, PaintPaint.AUTOSAVE_TILES), mSaver);
+        return mTileStore;
+    }
+
+    /**
+     * Start recording strokes in the journal kept in a directory, continuing
+     * it if it exists.  Must be called on the OpenGL thread.
+     *
+     * @param saveDir The directory to keep the journal in.
+     */
+    public void openJournal(String saveDir) {
+        if (mJournal == null) {
+            mJournal = new CanvasJournal(new File(saveDir, PaintPaint.STROKE_JOURNAL), mSaver);
+            mRenderer.setJournal(mJournal);
         }
     }
 
+    public CanvasJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * Start writing the renderer's metrics, and the time saves take, to a
+     * metrics directory every so often.
+     *
+     * @param saveDir The directory to keep the metrics directory in.
+     */
+    public void startMetrics(String saveDir) {
+        mSaver.setMetrics(mRenderer.getMetrics());
+        mRenderer.setMetricsDump(new File(saveDir, PaintPaint.METRICS), mSaver);
+    }
+
+    /**
+     * Show or hide the metrics over the canvas.  Called on the UI thread.
+     */
+    public void setMetricsOverlay(boolean shown) {
+        mOverlay.removeCallbacks(mUpdateOverlay);
+        mOverlay.setVisibility(shown ? TextView.VISIBLE : TextView.GONE);
+        if (shown)
+            mUpdateOverlay.run();
+    }
+
+    public boolean isMetricsOverlayShown() {
+        return mOverlay.getVisibility() == TextView.VISIBLE;
+    }
+
+    public CanvasSaver getSaver() {
+        return mSaver;
+    }
+
     /**
      * Clears the canvas to the background color.
      */
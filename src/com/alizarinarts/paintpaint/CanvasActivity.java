@@ -51,6 +51,8 @@ public class CanvasActivity extends SherlockActivity {
 
         mCanvas = new Canvas(this); 
         mSavePath = Environment.getExternalStorageDirectory() + "/" + PaintPaint.NAME + "/";
+        mCanvas.getSurfaceView().setRotating(getPreferences(0).getBoolean("VIEW_ROTATION", false));
+        mCanvas.startMetrics(mSavePath);
 
         // Enable the ActionBar icon as Up button.
         ActionBar ab = getSupportActionBar();
@@ -64,25 +66,30 @@ public class CanvasActivity extends SherlockActivity {
 
         /* openFile is the filename provided when the user selects an image from
          * the OpenActivity activity.  If they didn't the last canvas state
-         * will be loaded instead. */
-        final String fileName;
-        if (openFile != null)
-            fileName = openFile;
-        else
-            fileName = PaintPaint.AUTOSAVE;
+         * will be restored from the autosave instead. */
+        final String fileName = openFile;
+
+        mCanvas.setMetricsOverlay(getPreferences(0).getBoolean("METRICS_OVERLAY", false));
 
         /* Reload the last image worked on */
         mCanvas.getSurfaceView().onResume();
-        Log.d(PaintPaint.NAME, mSavePath+fileName);
-        final File file = new File(mSavePath, fileName);
-        mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
-            if (file.exists()) {
-                Bitmap bitmap = BitmapFactory.decodeFile(mSavePath+fileName);
-                mCanvas.getRenderer().setCanvasBitmap(bitmap);
-            } else {
-                mCanvas.getRenderer().setCanvasBitmap(null);
-            }
-        }});
+        if (fileName != null) {
+            Log.d(PaintPaint.NAME, mSavePath+fileName);
+            final File file = new File(mSavePath, fileName);
+            mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
+                mCanvas.openJournal(mSavePath);
+                if (file.exists()) {
+                    Bitmap bitmap = BitmapFactory.decodeFile(mSavePath+fileName);
+                    mCanvas.getRenderer().setCanvasBitmap(bitmap);
+                } else {
+                    mCanvas.getRenderer().setCanvasBitmap(null);
+                }
+            }});
+        } else {
+            mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
+                mCanvas.restoreAutosave(mSavePath);
+            }});
+        }
         openFile = null;
 
     }
@@ -92,10 +99,12 @@ public class CanvasActivity extends SherlockActivity {
         super.onPause();
 
         Log.d(PaintPaint.NAME,"onPause");
+        mCanvas.setMetricsOverlay(false);
 
-        /* This should get moved to the SurfaceView onPause method. */
+        /* This should get moved to the SurfaceView onPause method.  Only the
+         * tiles changed since the last autosave are written. */
         mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
-            mCanvas.save(mSavePath, PaintPaint.AUTOSAVE);
+            mCanvas.autosave(mSavePath);
         }});
 
         mCanvas.getSurfaceView().onPause();
@@ -104,6 +113,9 @@ public class CanvasActivity extends SherlockActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getSupportMenuInflater().inflate(R.menu.activity_canvas, menu);
+        menu.findItem(R.id.moveMenuItem).setChecked(mCanvas.getSurfaceView().isNavigating());
+        menu.findItem(R.id.rotateMenuItem).setChecked(getPreferences(0).getBoolean("VIEW_ROTATION", false));
+        menu.findItem(R.id.metricsMenuItem).setChecked(getPreferences(0).getBoolean("METRICS_OVERLAY", false));
         return true;
     }
 
@@ -114,13 +126,21 @@ public class CanvasActivity extends SherlockActivity {
      * http://twigstechtips.blogspot.com/2011/10/android-share-image-to-other-apps.html
      */
     public void onClickShare(MenuItem mi) {
+        final CanvasSaver.SaveListener share = new CanvasSaver.SaveListener() {
+            public void onSaveFinished(final File file, boolean success) {
+                /* Share the last saved image even if nothing new was saved */
+                if (!file.exists())
+                    return;
+                runOnUiThread(new Runnable() {public void run() {
+                    Intent intent = new Intent(android.content.Intent.ACTION_SEND);
+                    intent.setType("image/png");
+                    intent.putExtra(Intent.EXTRA_STREAM,Uri.fromFile(file));
+                    startActivity(Intent.createChooser(intent, "Share image"));
+                }});
+            }
+        };
         mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
-            mCanvas.save(mSavePath, PaintPaint.AUTOSAVE);
-            File file = new File(mSavePath+PaintPaint.AUTOSAVE);
-            Intent intent = new Intent(android.content.Intent.ACTION_SEND);
-            intent.setType("image/png");
-            intent.putExtra(Intent.EXTRA_STREAM,Uri.fromFile(file));
-            startActivity(Intent.createChooser(intent, "Share image"));
+            mCanvas.save(mSavePath, PaintPaint.AUTOSAVE, share);
         }});
     }
 
@@ -185,10 +205,17 @@ public class CanvasActivity extends SherlockActivity {
         sb.setProgress((mCanvas.getBrush().getColor()&0xff0000)>>>16);
         sb = (SeekBar)v.findViewById(R.id.brush_setting_blue);
         sb.setProgress((mCanvas.getBrush().getColor()&0xff00)>>>8);
+        sb = (SeekBar)v.findViewById(R.id.brush_setting_opacity);
+        sb.setProgress(mCanvas.getBrush().getColor()&0xff);
         
-        /* Steps between brush dabs to interpolate*/
-        sb = (SeekBar)v.findViewById(R.id.brush_setting_dabs);
-        sb.setProgress((mCanvas.getBrush().getDabSteps()));
+        /* Spacing between brush dabs along a stroke */
+        sb = (SeekBar)v.findViewById(R.id.brush_setting_spacing);
+        sb.setProgress((mCanvas.getBrush().getSpacing()));
+
+        /* Brush tip, one step for each mask the brush has */
+        sb = (SeekBar)v.findViewById(R.id.brush_setting_tip);
+        sb.setMax(Math.max(0, mCanvas.getBrush().getMaskCount() - 1));
+        sb.setProgress(Math.max(0, mCanvas.getBrush().getMaskIndex()));
 
         alert.setView(v);
 
@@ -199,19 +226,24 @@ public class CanvasActivity extends SherlockActivity {
                 public void onClick(DialogInterface dialog, int whichButton) {
                     final float size = ((SeekBar)v.findViewById(R.id.brush_setting_size)).getProgress();
                     mCanvas.getBrush().setSize(size);
-                    final int dabs = ((SeekBar)v.findViewById(R.id.brush_setting_dabs)).getProgress();
-                    mCanvas.getBrush().setDabSteps(dabs);
+                    final int spacing = ((SeekBar)v.findViewById(R.id.brush_setting_spacing)).getProgress();
+                    mCanvas.getBrush().setSpacing(spacing);
                     int color = ((SeekBar)v.findViewById(R.id.brush_setting_red)).getProgress()<<24;
                     color    |= ((SeekBar)v.findViewById(R.id.brush_setting_green)).getProgress()<<16;
                     color    |= ((SeekBar)v.findViewById(R.id.brush_setting_blue)).getProgress()<<8;
+                    color    |= ((SeekBar)v.findViewById(R.id.brush_setting_opacity)).getProgress();
                     final int c = color;
+                    final int tip = ((SeekBar)v.findViewById(R.id.brush_setting_tip)).getProgress();
                     mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
                         mCanvas.getBrush().setColor(c);
+                        if (tip < mCanvas.getBrush().getMaskCount())
+                            mCanvas.getBrush().selectMask(tip);
                     }});
                     SharedPreferences.Editor edit = settings.edit();
                     edit.putFloat("BRUSH_SIZE", size);
                     edit.putInt("BRUSH_COLOR", color);
-                    edit.putInt("BRUSH_DABS", dabs);
+                    edit.putInt("BRUSH_SPACING", spacing);
+                    edit.putInt("BRUSH_MASK", tip);
                     edit.commit();
                 }
         });
@@ -227,6 +259,63 @@ public class CanvasActivity extends SherlockActivity {
 
     }
 
+    /**
+     * Undoes the last stroke.
+     */
+    public void onClickUndo(MenuItem mi) {
+        mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
+            mCanvas.getRenderer().undo();
+        }});
+    }
+
+    /**
+     * Redoes the last stroke undone.
+     */
+    public void onClickRedo(MenuItem mi) {
+        mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
+            mCanvas.getRenderer().redo();
+        }});
+    }
+
+    /**
+     * Switches touches between painting and moving the canvas.
+     */
+    public void onClickMoveCanvas(MenuItem mi) {
+        mi.setChecked(!mi.isChecked());
+        mCanvas.getSurfaceView().setNavigating(mi.isChecked());
+    }
+
+    /**
+     * Allows or stops two fingers rotating the canvas while moving it.
+     */
+    public void onClickRotateCanvas(MenuItem mi) {
+        mi.setChecked(!mi.isChecked());
+        mCanvas.getSurfaceView().setRotating(mi.isChecked());
+        SharedPreferences.Editor edit = getPreferences(0).edit();
+        edit.putBoolean("VIEW_ROTATION", mi.isChecked());
+        edit.commit();
+    }
+
+    /**
+     * Shows the whole canvas on the screen.
+     */
+    public void onClickFitCanvas(MenuItem mi) {
+        mCanvas.getSurfaceView().queueEvent(new Runnable() {public void run() {
+            mCanvas.getRenderer().fitView();
+        }});
+    }
+
+    /**
+     * Shows or hides the performance overlay.
+     */
+    public void onClickMetricsOverlay(MenuItem mi) {
+        mi.setChecked(!mi.isChecked());
+        mCanvas.setMetricsOverlay(mi.isChecked());
+        SharedPreferences.Editor edit = getPreferences(0).edit();
+        edit.putBoolean("METRICS_OVERLAY", mi.isChecked());
+        edit.commit();
+    }
+
     /**
      * Clears the canvas.
      */
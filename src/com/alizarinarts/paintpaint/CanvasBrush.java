@@ -1,175 +1,170 @@
 package com.alizarinarts.paintpaint;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import android.graphics.Bitmap;
 
-import static android.opengl.GLES20.*;
-
-import android.util.Log;
-
 /**
  * This class maintains the state and methods used with the paint brush.
  * These include the methods used for drawing brush strokes as well as all the
- * size and color information associated with the brush.
+ * size and color information associated with the brush.  The dabs are
+ * composited by a CanvasBackend.
  *
  * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
  * @version 1.0
  */
 public class CanvasBrush {
 
-    private static final int BRUSH_PIXEL_SIZE = 32;
-
-    /* OpenGL identifiers */
-    private int shaderProgramId;
-    private int textureId;
-    private int textureCoordBufferId;
-    private int vertexBufferId;
-    private int maskId;
+    /* Draws the dabs */
+    private CanvasBackend backend;
 
     /* Default size and color values for the brush */
     private float size = 1.0f;
     private int color = 0x000000ff;
 
-    /* Vertex information used to draw the brush dabs' polygons */
-    private final float[] vertexData = {
-        -.05f, -.05f,  0.0f,
-         .05f, -.05f,  0.0f,
-        -.05f,  .05f,  0.0f,
-         .05f,  .05f,  0.0f,
+    /* Half the width of a full pressure dab at size 1, in units of half the
+     * screen width. */
+    private static final float DAB_RADIUS = 0.1f;
+
+    /* Canvas pixels per unit of brush size, set from the surface width */
+    private float pixelScale = 1.0f;
+
+    /* Places the dabs along each pointer's stroke, indexed by pointer id.
+     * Strokes are created the first time a pointer id is seen. */
+    private static final int MAX_POINTERS = 10;
+    private CanvasStroke[] strokes = new CanvasStroke[MAX_POINTERS];
+
+    /* Distance between dabs along a stroke as a percentage of their size */
+    private int spacing = 10;
+
+    /* The brush tips added, with the width, height and backend number of
+     * each, and the one being drawn with */
+    private final ArrayList<int[]> masks = new ArrayList<int[]>();
+    private final ArrayList<int[]> maskSizes = new ArrayList<int[]>();
+    private int mask = -1;
+
+    /* Collects the area of the canvas the dabs cover */
+    private CanvasDamage damage;
+
+    /* Adds each dab the stroke generates to the backend */
+    private final CanvasStroke.DabSink batchSink = new CanvasStroke.DabSink() {
+        public void dab(float x, float y, float pressure) {
+            float radius = DAB_RADIUS * pressure * size * pixelScale;
+            backend.addDab(x, y, radius);
+            if (damage != null)
+                damage.include(x - radius, y - radius, x + radius, y + radius);
+        }
     };
 
-    /* Coordinates for texture mapping the brush texture to the polygon */
-    private final float[] textureCoordData = {
-        0.0f, 0.0f,
-        1.0f, 0.0f,
-        0.0f, 1.0f,
-        1.0f, 1.0f,
-    };
+    public CanvasBrush(CanvasBackend backend) {
+        this.backend = backend;
+        backend.setColor(color);
+    }
 
-    /* Position of the last brush dab */
-    private float lastX;
-    private float lastY;
+    /**
+     * Prepare to draw brush dabs onto the canvas.  Samples added after this
+     * are drawn along with the dabs spaced along the stroke connecting them.
+     * All of the dabs are handed to the backend, which may hold on to them
+     * until endDraw().
+     */
+    public void beginDraw() {
+        backend.beginDabs();
 
-    /* The number of dabs to draw between actual touch events.
-     * The higher this is the more filled in a brush stroke will look. */
-    private int dabSteps = 45;
+        for (int i = 0; i < strokes.length; i++) {
+            if (strokes[i] != null)
+                setStrokeSize(strokes[i]);
+        }
+    }
 
-    public CanvasBrush(int shaderProgramId) {
+    private void setStrokeSize(CanvasStroke stroke) {
+        stroke.setDiameter(2 * DAB_RADIUS * size * pixelScale);
+        stroke.setSpacing(spacing / 100f);
+    }
 
-        this.shaderProgramId = shaderProgramId;
+    /* Return the stroke of a pointer, creating it if needed */
+    private CanvasStroke getStroke(int pointer) {
+        if (pointer >= strokes.length) {
+            CanvasStroke[] grown = new CanvasStroke[pointer + 1];
+            System.arraycopy(strokes, 0, grown, 0, strokes.length);
+            strokes = grown;
+        }
+        CanvasStroke stroke = strokes[pointer];
+        if (stroke == null) {
+            stroke = new CanvasStroke();
+            setStrokeSize(stroke);
+            strokes[pointer] = stroke;
+        }
+        return stroke;
+    }
 
-        /* Create the brush texture */
-        textureId = CanvasUtils.makeTexture(32, 32, color);
+    /**
+     * Add a touch sample to the stroke being drawn by a pointer.  Each
+     * pointer has its own stroke but all of their dabs go into the same
+     * batch.
+     *
+     * @param pointer The pointer id of the sample
+     * @param x The X coordinate in canvas pixels
+     * @param y The Y coordinate in canvas pixels
+     * @param pressure The touch pressure
+     * @param flags CanvasDab stroke flags
+     */
+    public void addSample(int pointer, float x, float y, float pressure, int flags) {
+        CanvasStroke stroke = getStroke(pointer);
+        if (CanvasDab.isNewStroke(flags)) {
+            /* Finish any stroke that never received its end */
+            stroke.end(batchSink);
+            stroke.begin(x, y, pressure, batchSink);
+        } else {
+            stroke.addSample(x, y, pressure, batchSink);
+        }
 
-        /* Send the brush vertices to the GPU */
-        FloatBuffer vertices = ByteBuffer.allocateDirect(vertexData.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        vertices.put(vertexData).position(0);
-        int[] buffer = new int[1];
-        glGenBuffers(1, buffer, 0);
-        vertexBufferId = buffer[0];
-        glBindBuffer(GL_ARRAY_BUFFER, vertexBufferId);
-        glBufferData(GL_ARRAY_BUFFER, vertices.capacity() * 4, vertices, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        if (CanvasDab.isEndStroke(flags))
+            stroke.end(batchSink);
+    }
 
-        /* Send Texture Coordinate data to the GPU */
-        FloatBuffer textureCoords = ByteBuffer.allocateDirect(textureCoordData.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        textureCoords.put(textureCoordData).position(0);
-        glGenBuffers(1, buffer, 0);
-        textureCoordBufferId = buffer[0];
-        glBindBuffer(GL_ARRAY_BUFFER, textureCoordBufferId);
-        glBufferData(GL_ARRAY_BUFFER, textureCoords.capacity() * 4, textureCoords, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    /**
+     * Return true if a pointer other than the given one is part way through
+     * a stroke.
+     */
+    public boolean isOtherStrokeActive(int pointer) {
+        for (int i = 0; i < strokes.length; i++) {
+            if (i != pointer && strokes[i] != null && strokes[i].isActive())
+                return true;
+        }
+        return false;
+    }
 
+    /**
+     * Draw all of the dabs added since beginDraw() at once.
+     */
+    public void endDraw() {
+        backend.endDabs();
     }
 
     /**
-     * Draw a queue of brush dabs to the canvas and their interpolated
-     * connecting dabs.
+     * Set the number of canvas pixels a brush of size 1 covers.  This keeps
+     * the brush the same size relative to the screen.
      *
-     * @param dabs a queue of paint brush dabs
+     * @param pixelScale the number of pixels per unit of brush size
      */
-    public void drawQueue(Queue<CanvasDab> dabs) {
-        glUseProgram(shaderProgramId);
-
-        int aTexCoord = glGetAttribLocation(shaderProgramId, "aTextureCoord");
-
-        // Enable the textures
-        // Multiple texture code example from
-        // http://opengles2learning.blogspot.com/2011/06/multi-texturing.html
-        /* Texture 0 is the brush's color */
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, textureId);
-        glUniform1i(glGetUniformLocation(shaderProgramId, "uTexture"), 0);
-
-        /* Texture 1 is the brush's alpha map. Effectively the brush's shape */
-        glActiveTexture(GL_TEXTURE1);
-        glBindTexture(GL_TEXTURE_2D, maskId);
-        glUniform1i(glGetUniformLocation(shaderProgramId, "uMask"), 1);
-
-        // Enable the vertex buffer
-        glBindBuffer(GL_ARRAY_BUFFER, vertexBufferId);
-        int aVertPos = glGetAttribLocation(shaderProgramId, "aVertexPosition");
-        glEnableVertexAttribArray(aVertPos);
-        glVertexAttribPointer(aVertPos, 3, GL_FLOAT, false, 0, 0);
-
-        // Enable the texture coordinates
-        glBindBuffer(GL_ARRAY_BUFFER, textureCoordBufferId);
-        glEnableVertexAttribArray(aTexCoord);
-        glVertexAttribPointer(aTexCoord, 2, GL_FLOAT, false, 0, 0);
-
-        /* Draw the brush dabs */
-        while (!dabs.isEmpty()) {
-            CanvasDab dab = dabs.poll();
-            float x, y;
-
-            if (dab.isNewStroke()) {
-                /* A new stroke starts at the dab's current position...*/
-                Log.d(PaintPaint.NAME, "new stroke");
-                x = dab.getX();
-                y = dab.getY();
-            } else {
-                /* ...but if it isn't a new stroke it must start at the last
-                 * position in order to fill in the space between dabs. */
-                x = lastX;
-                y = lastY;
-            }
-
-            /* Draw interpolated steps from the last dab to the current dab */
-            int i = dabSteps;
-            while ( i-- != 0 ) {
-
-                // Set the brush dab location
-                glUniform2f(glGetUniformLocation(shaderProgramId, "uOffset"), x, y);
-                glUniform1f(glGetUniformLocation(shaderProgramId, "uZoom"), dab.getPressure()*2*size);
-
-                glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
-
-                if (dab.isNewStroke()){
-                    break;
-                } else {
-                    /* calculate the next brush mark position to paint */
-                    float dx = (dab.getX() - lastX);
-                    float dy = (dab.getY() - lastY);
-                    x += dx / dabSteps;
-                    y += dy / dabSteps;
-                }
-
-            }
-            /* Update the last brush position to the newly completed dab */
-            lastX = dab.getX();
-            lastY = dab.getY();
-        }
+    public void setPixelScale(float pixelScale) {
+        this.pixelScale = pixelScale;
+    }
 
-        glBindTexture(GL_TEXTURE_2D, 0);
+    public float getPixelScale() {
+        return pixelScale;
+    }
+
+    /**
+     * Set the damage tracker that is told about the area each dab covers.
+     */
+    public void setDamage(CanvasDamage damage) {
+        this.damage = damage;
+    }
+
+    public CanvasBackend getBackend() {
+        return backend;
     }
 
     public float getSize() {
@@ -180,12 +175,17 @@ public class CanvasBrush {
         this.size = size / 50f;
     }
 
-    public void setDabSteps(int steps) {
-        this.dabSteps = steps;
+    /**
+     * Set the distance between dabs along a stroke.
+     *
+     * @param spacing the spacing as a percentage of the dab's size
+     */
+    public void setSpacing(int spacing) {
+        this.spacing = Math.max(1, spacing);
     }
 
-    public int getDabSteps() {
-        return dabSteps;
+    public int getSpacing() {
+        return spacing;
     }
 
     public int getColor() {
@@ -193,13 +193,70 @@ public class CanvasBrush {
     }
 
     public void setColor(int color) {
-        glDeleteTextures(1, new int[] { textureId }, 0);
-        textureId = CanvasUtils.makeTexture(BRUSH_PIXEL_SIZE, BRUSH_PIXEL_SIZE, color);
+        backend.setColor(color);
         this.color = color;
     }
 
-    public void setMask(Bitmap b) {
-        glDeleteTextures(1, new int[] { maskId }, 0);
-        maskId = CanvasUtils.makeTexture(b, b.getWidth(), b.getHeight());
+    /**
+     * Add a brush tip from the alpha of a bitmap.  Returns its number.
+     */
+    public int addMask(Bitmap b) {
+        int w = b.getWidth();
+        int h = b.getHeight();
+        int[] pixels = new int[w * h];
+        b.getPixels(pixels, 0, w, 0, 0, w, h);
+        return addMask(w, h, pixels);
+    }
+
+    /**
+     * Add a brush tip from ARGB pixels, top row first.  A tip that is the
+     * same as one already added isn't added again.  The brush keeps the
+     * array, so it must not be changed afterwards.
+     *
+     * @return The number of the tip
+     */
+    public int addMask(int width, int height, int[] argb) {
+        for (int i = 0; i < masks.size(); i++) {
+            if (maskSizes.get(i)[0] == width && maskSizes.get(i)[1] == height
+                    && Arrays.equals(masks.get(i), argb))
+                return i;
+        }
+        masks.add(argb);
+        maskSizes.add(new int[] { width, height, backend.addMask(width, height, argb) });
+        return masks.size() - 1;
+    }
+
+    /**
+     * Draw with one of the brush tips added.
+     */
+    public void selectMask(int mask) {
+        backend.setMask(maskSizes.get(mask)[2]);
+        this.mask = mask;
+    }
+
+    /**
+     * The tip being drawn with, or -1 if none has been selected.
+     */
+    public int getMaskIndex() {
+        return mask;
+    }
+
+    public int getMaskCount() {
+        return masks.size();
+    }
+
+    public int getMaskWidth(int mask) {
+        return maskSizes.get(mask)[0];
+    }
+
+    public int getMaskHeight(int mask) {
+        return maskSizes.get(mask)[1];
+    }
+
+    /**
+     * A tip's ARGB pixels, top row first.  Don't change them.
+     */
+    public int[] getMask(int mask) {
+        return masks.get(mask);
     }
 }
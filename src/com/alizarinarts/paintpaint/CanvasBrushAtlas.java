@@ -0,0 +1,135 @@
+package com.alizarinarts.paintpaint;
+
+import java.util.ArrayList;
+
+import static android.opengl.GLES20.*;
+
+import android.util.Log;
+
+/**
+ * Packs brush masks into one mipmapped texture so that dabs with different
+ * brush tips can be drawn without switching textures.
+ *
+ * Every mask gets a square slot the size of the largest mask, rounded up to
+ * a power of two, and the slots are laid out in a square grid that is also
+ * a power of two so the texture can be mipmapped.  Each mask's texture
+ * coordinates are kept as a rectangle of the atlas.  Small dabs sample the
+ * smaller mipmap levels instead of skipping over texels of a large mask.
+ *
+ * Adding a mask only marks the texture as out of date.  It is built again
+ * the next time it is asked for, so masks should be added before drawing.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasBrushAtlas {
+
+    /* The masks as ARGB pixels, top row first */
+    private final ArrayList<int[]> masks = new ArrayList<int[]>();
+    private final ArrayList<int[]> sizes = new ArrayList<int[]>();
+
+    /* Texture coordinates of each mask as left, bottom, right, top */
+    private float[] rects = new float[0];
+
+    private int texture;
+    private int size;
+    private boolean stale = true;
+
+    /**
+     * Add a mask to the atlas.
+     *
+     * @param width The width of the mask
+     * @param height The height of the mask
+     * @param argb The mask's pixels as ARGB ints, top row first.  The atlas
+     * keeps the array, so it must not be changed afterwards.
+     * @return The number of the mask in the atlas
+     */
+    public int add(int width, int height, int[] argb) {
+        masks.add(argb);
+        sizes.add(new int[] { width, height });
+        stale = true;
+        return masks.size() - 1;
+    }
+
+    public int getCount() {
+        return masks.size();
+    }
+
+    /**
+     * Return the atlas texture, building it first if masks have been added
+     * since it was last built.
+     */
+    public int getTexture() {
+        if (stale)
+            build();
+        return texture;
+    }
+
+    /**
+     * Return the texture coordinates of the masks, four floats each as left,
+     * bottom, right, top.  Only valid after getTexture().
+     */
+    public float[] getRects() {
+        return rects;
+    }
+
+    /* Lay the masks out and upload them with their mipmaps */
+    private void build() {
+        int n = masks.size();
+        int slot = 1;
+        for (int[] s : sizes) {
+            while (slot < Math.max(s[0], s[1]))
+                slot *= 2;
+        }
+        int grid = 1;
+        while (grid * grid < n)
+            grid *= 2;
+        size = slot * grid;
+
+        int[] pixels = new int[size * size];
+        rects = new float[n * 4];
+        for (int i = 0; i < n; i++) {
+            int w = sizes.get(i)[0];
+            int h = sizes.get(i)[1];
+            int x = (i % grid) * slot;
+            int y = (i / grid) * slot;
+            int[] mask = masks.get(i);
+            for (int row = 0; row < h; row++)
+                System.arraycopy(mask, row * w, pixels, (y + row) * size + x, w);
+
+            /* The texture is uploaded bottom row first */
+            int bottom = size - y - h;
+            rects[i * 4] = (float) x / size;
+            rects[i * 4 + 1] = (float) bottom / size;
+            rects[i * 4 + 2] = (float) (x + w) / size;
+            rects[i * 4 + 3] = (float) (bottom + h) / size;
+        }
+
+        CanvasGLState.deleteTexture(texture);
+        texture = CanvasUtils.makeTexture(pixels, size, size);
+        glGenerateMipmap(GL_TEXTURE_2D);
+        CanvasGLResources.setBytes(CanvasGLResources.TEXTURE, texture, (int) getBytes());
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        stale = false;
+        Log.d(PaintPaint.NAME, "Built a " + size + "x" + size + " brush atlas of " + n + " masks");
+    }
+
+    /**
+     * GPU memory used by the atlas and its mipmaps in bytes.
+     */
+    public long getBytes() {
+        return texture == 0 ? 0 : (long) size * size * 4 * 4 / 3;
+    }
+
+    /**
+     * Release the atlas texture.  It is built again if it is needed.
+     */
+    public void delete() {
+        CanvasGLState.deleteTexture(texture);
+        texture = 0;
+        stale = true;
+    }
+
+}
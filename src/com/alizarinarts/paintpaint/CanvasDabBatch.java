@@ -0,0 +1,344 @@
+package com.alizarinarts.paintpaint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Collects the brush dabs of a frame into one streamed vertex buffer so the
+ * whole draw queue can be sent to the GPU at once.
+ *
+ * Each dab is expanded on the CPU into the four corners of its quad.  The
+ * vertices are interleaved as x, y, s, t and uploaded once per flush.  The
+ * dabs are then sorted by the canvas tiles their bounds intersect and each
+ * touched tile is drawn with a single indexed call over its own range of a
+ * streamed index buffer.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasDabBatch {
+
+    /* Vertex layout: position (x, y) followed by texture coordinate (s, t) */
+    static final int FLOATS_PER_VERTEX = 4;
+    static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * 4;
+    static final int TEXCOORD_OFFSET = 2 * 4;
+
+    private static final int VERTICES_PER_DAB = 4;
+    private static final int INDICES_PER_DAB = 6;
+    private static final int FLOATS_PER_DAB = VERTICES_PER_DAB * FLOATS_PER_VERTEX;
+
+    /* Unsigned short indices can only address this many quads */
+    static final int MAX_DABS = 65536 / VERTICES_PER_DAB;
+
+    private static final int INITIAL_DABS = 256;
+
+    /* Client side copy of the vertex data, reused from frame to frame */
+    private FloatBuffer vertices;
+    private int capacity;
+    private int count;
+
+    /* Bounds of each dab as left, bottom, right, top */
+    private float[] bounds;
+
+    /* Dabs sorted by tile.  tileStarts[i] is where tile i's dabs begin in
+     * tileDabs and tileStarts[i + 1] is where they end. */
+    private int[] tileStarts = new int[1];
+    private int[] tileDabs = new int[INITIAL_DABS];
+    private ShortBuffer indices;
+
+    /* OpenGL identifiers */
+    private int vertexBufferId;
+    private int indexBufferId;
+
+    /* Frame counters */
+    private int frameDabs;
+    private int frameDrawCalls;
+    private int lastFrameDabs;
+    private int lastFrameDrawCalls;
+
+    /* Pixels covered by the drawn dabs, which are all shaded and blended,
+     * this frame and in total */
+    private long frameFragments;
+    private long lastFrameFragments;
+    private long fragments;
+
+    public CanvasDabBatch() {
+        vertexBufferId = CanvasGLResources.genBuffer();
+        indexBufferId = CanvasGLResources.genBuffer();
+        allocate(INITIAL_DABS);
+        indices = allocateIndices(INITIAL_DABS);
+    }
+
+    /**
+     * Add a single dab to the batch.  The batch is drawn early if it fills
+     * up before the end of the frame.
+     *
+     * @param x The X coordinate of the dab's center in canvas pixels
+     * @param y The Y coordinate of the dab's center in canvas pixels
+     * @param radius Half the width of the dab in canvas pixels
+     * @param s0 The left texture coordinate of the dab's mask
+     * @param t0 The bottom texture coordinate of the dab's mask
+     * @param s1 The right texture coordinate of the dab's mask
+     * @param t1 The top texture coordinate of the dab's mask
+     * @param tiles The canvas to draw on if the batch has to be flushed
+     * @param projHandle The projection uniform of the bound program
+     * @param aVertexPosition The position attribute of the bound program
+     * @param aTextureCoord The texture coordinate attribute of the bound program
+     */
+    public void add(float x, float y, float radius, float s0, float t0, float s1, float t1,
+            CanvasTiles tiles, int projHandle, int aVertexPosition, int aTextureCoord) {
+        if (count == capacity) {
+            if (capacity < MAX_DABS) {
+                grow();
+            } else {
+                flush(tiles, projHandle, aVertexPosition, aTextureCoord);
+            }
+        }
+
+        float l = x - radius;
+        float r = x + radius;
+        float b = y - radius;
+        float t = y + radius;
+        vertices.put(l).put(b).put(s0).put(t0);
+        vertices.put(r).put(b).put(s1).put(t0);
+        vertices.put(l).put(t).put(s0).put(t1);
+        vertices.put(r).put(t).put(s1).put(t1);
+
+        int i = count * 4;
+        bounds[i] = l;
+        bounds[i + 1] = b;
+        bounds[i + 2] = r;
+        bounds[i + 3] = t;
+        count++;
+    }
+
+    /**
+     * Upload the batched dabs and draw them onto the tiles they touch, with
+     * one indexed draw call per tile.  The program and textures to draw with
+     * must already be bound.
+     *
+     * @param tiles The canvas to draw on
+     * @param projHandle The projection uniform of the bound program
+     * @param aVertexPosition The position attribute of the bound program
+     * @param aTextureCoord The texture coordinate attribute of the bound program
+     */
+    public void flush(CanvasTiles tiles, int projHandle, int aVertexPosition, int aTextureCoord) {
+        if (count == 0)
+            return;
+
+        int indexCount = sortByTile(tiles);
+
+        CanvasGLState.bindBuffer(GL_ARRAY_BUFFER, vertexBufferId);
+        int bytes = count * FLOATS_PER_DAB * 4;
+        int capacityBytes = capacity * FLOATS_PER_DAB * 4;
+        /* Orphan the old storage so the driver doesn't have to wait for the
+         * previous frame's draw to finish before we overwrite it. */
+        glBufferData(GL_ARRAY_BUFFER, capacityBytes, null, GL_STREAM_DRAW);
+        CanvasGLResources.setBytes(CanvasGLResources.BUFFER, vertexBufferId, capacityBytes);
+        vertices.position(0);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, bytes, vertices);
+
+        glEnableVertexAttribArray(aVertexPosition);
+        glVertexAttribPointer(aVertexPosition, 2, GL_FLOAT, false, VERTEX_STRIDE, 0);
+        glEnableVertexAttribArray(aTextureCoord);
+        glVertexAttribPointer(aTextureCoord, 2, GL_FLOAT, false, VERTEX_STRIDE, TEXCOORD_OFFSET);
+
+        CanvasGLState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+        indices.position(0);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices.capacity() * 2, null, GL_STREAM_DRAW);
+        CanvasGLResources.setBytes(CanvasGLResources.BUFFER, indexBufferId, indices.capacity() * 2);
+        glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, 0, indexCount * 2, indices);
+
+        /* Draw each touched tile's range of the index buffer */
+        int columns = tiles.getColumns();
+        int tileCount = columns * tiles.getRows();
+        for (int tile = 0; tile < tileCount; tile++) {
+            int start = tileStarts[tile];
+            int dabs = tileStarts[tile + 1] - start;
+            if (dabs == 0)
+                continue;
+            tiles.bindTile(tile % columns, tile / columns, projHandle);
+            glDrawElements(GL_TRIANGLES, dabs * INDICES_PER_DAB, GL_UNSIGNED_SHORT,
+                    start * INDICES_PER_DAB * 2);
+            frameDrawCalls++;
+        }
+
+        frameDabs += count;
+        count = 0;
+        vertices.clear();
+    }
+
+    /*
+     * Sort the batched dabs by the tiles their bounds intersect and write the
+     * indices of each tile's quads into the index buffer in tile order.  A dab
+     * appears once for every tile it touches and dabs entirely off the canvas
+     * are dropped.  Returns the number of indices written.
+     */
+    private int sortByTile(CanvasTiles tiles) {
+        int columns = tiles.getColumns();
+        int rows = tiles.getRows();
+        int tileCount = columns * rows;
+        if (tileStarts.length < tileCount + 1)
+            tileStarts = new int[tileCount + 1];
+        for (int i = 0; i <= tileCount; i++)
+            tileStarts[i] = 0;
+
+        /* Count the dabs touching each tile */
+        int total = 0;
+        for (int d = 0; d < count; d++) {
+            if (isOffCanvas(d, tiles))
+                continue;
+            int c0 = tileIndex(bounds[d * 4], columns);
+            int c1 = tileIndex(bounds[d * 4 + 2], columns);
+            int r0 = tileIndex(bounds[d * 4 + 1], rows);
+            int r1 = tileIndex(bounds[d * 4 + 3], rows);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    tileStarts[r * columns + c + 1]++;
+                    total++;
+                }
+            }
+        }
+
+        /* Turn the counts into the start of each tile's range */
+        for (int i = 1; i <= tileCount; i++)
+            tileStarts[i] += tileStarts[i - 1];
+
+        if (tileDabs.length < total)
+            tileDabs = new int[Math.max(total, tileDabs.length * 2)];
+        if (indices.capacity() < total * INDICES_PER_DAB)
+            indices = allocateIndices(Math.max(total, indices.capacity() / INDICES_PER_DAB * 2));
+
+        /* Place each dab in the ranges of the tiles it touches.  Filling moves
+         * each tile's start along to the next tile's start, so the starts
+         * are shifted back afterwards.  The part of the dab inside each tile
+         * is what the GPU has to fill there. */
+        float area = 0;
+        for (int d = 0; d < count; d++) {
+            if (isOffCanvas(d, tiles))
+                continue;
+            int c0 = tileIndex(bounds[d * 4], columns);
+            int c1 = tileIndex(bounds[d * 4 + 2], columns);
+            int r0 = tileIndex(bounds[d * 4 + 1], rows);
+            int r1 = tileIndex(bounds[d * 4 + 3], rows);
+            for (int r = r0; r <= r1; r++) {
+                float h = Math.min(bounds[d * 4 + 3], (r + 1) * CanvasTiles.TILE_SIZE)
+                        - Math.max(bounds[d * 4 + 1], r * CanvasTiles.TILE_SIZE);
+                for (int c = c0; c <= c1; c++) {
+                    tileDabs[tileStarts[r * columns + c]++] = d;
+                    float w = Math.min(bounds[d * 4 + 2], (c + 1) * CanvasTiles.TILE_SIZE)
+                            - Math.max(bounds[d * 4], c * CanvasTiles.TILE_SIZE);
+                    area += w * h;
+                }
+            }
+        }
+        frameFragments += (long) area;
+        fragments += (long) area;
+        for (int i = tileCount; i > 0; i--)
+            tileStarts[i] = tileStarts[i - 1];
+        tileStarts[0] = 0;
+
+        /* Two counter clockwise triangles per quad: 0-1-2 and 2-1-3 */
+        indices.clear();
+        for (int i = 0; i < total; i++) {
+            short v = (short) (tileDabs[i] * VERTICES_PER_DAB);
+            indices.put(v).put((short) (v + 1)).put((short) (v + 2));
+            indices.put((short) (v + 2)).put((short) (v + 1)).put((short) (v + 3));
+        }
+        return total * INDICES_PER_DAB;
+    }
+
+    private boolean isOffCanvas(int dab, CanvasTiles tiles) {
+        int i = dab * 4;
+        return bounds[i + 2] < 0 || bounds[i + 3] < 0
+                || bounds[i] >= tiles.getWidth() || bounds[i + 1] >= tiles.getHeight();
+    }
+
+    /* The tile column or row a canvas coordinate falls in, clamped to the
+     * canvas. */
+    private static int tileIndex(float coordinate, int tiles) {
+        int tile = (int) Math.floor(coordinate / CanvasTiles.TILE_SIZE);
+        return Math.max(0, Math.min(tiles - 1, tile));
+    }
+
+    /**
+     * Reset the per frame counters.  The totals of the frame that just ended
+     * remain available from the getters.
+     */
+    public void endFrame() {
+        lastFrameDabs = frameDabs;
+        lastFrameDrawCalls = frameDrawCalls;
+        lastFrameFragments = frameFragments;
+        frameDabs = 0;
+        frameDrawCalls = 0;
+        frameFragments = 0;
+    }
+
+    /**
+     * Number of dabs drawn during the last completed frame.
+     */
+    public int getDabsPerFrame() {
+        return lastFrameDabs;
+    }
+
+    /**
+     * Number of draw calls used for dabs during the last completed frame.
+     */
+    public int getDrawCallsPerFrame() {
+        return lastFrameDrawCalls;
+    }
+
+    /**
+     * Number of canvas pixels the dabs of the last completed frame covered.
+     * Every one of them is shaded and blended, so this is the brush's fill.
+     */
+    public long getFragmentsPerFrame() {
+        return lastFrameFragments;
+    }
+
+    /**
+     * Number of canvas pixels covered by every dab drawn so far.
+     */
+    public long getFragments() {
+        return fragments;
+    }
+
+    /**
+     * Release the GPU buffers owned by this batch.
+     */
+    public void delete() {
+        CanvasGLState.deleteBuffer(vertexBufferId);
+        CanvasGLState.deleteBuffer(indexBufferId);
+        vertexBufferId = 0;
+        indexBufferId = 0;
+    }
+
+    /* Double the capacity of the batch, keeping the dabs already added. */
+    private void grow() {
+        FloatBuffer old = vertices;
+        float[] oldBounds = bounds;
+        allocate(Math.min(capacity * 2, MAX_DABS));
+        old.flip();
+        vertices.put(old);
+        System.arraycopy(oldBounds, 0, bounds, 0, count * 4);
+    }
+
+    /* Allocate client side storage for the given number of dabs. */
+    private void allocate(int dabs) {
+        capacity = dabs;
+        vertices = ByteBuffer.allocateDirect(dabs * FLOATS_PER_DAB * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        bounds = new float[dabs * 4];
+    }
+
+    private static ShortBuffer allocateIndices(int dabs) {
+        return ByteBuffer.allocateDirect(dabs * INDICES_PER_DAB * 2)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+    }
+
+}
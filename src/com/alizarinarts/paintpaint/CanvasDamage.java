@@ -0,0 +1,170 @@
+package com.alizarinarts.paintpaint;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Tracks the region of the screen that has changed since the canvas was last
+ * presented.  Brush dabs add their bounds as they are drawn and the
+ * presentation pass only redraws the union of them using a scissor.
+ *
+ * Coordinates are in pixels with the origin at the bottom left.  Dabs add
+ * canvas pixels, which the renderer turns into screen pixels with
+ * transform() before presenting.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasDamage {
+
+    /* Bounds of the damaged region. Empty when left > right. */
+    private float left;
+    private float bottom;
+    private float right;
+    private float top;
+
+    /* Screen pixels added around a transformed region, since filtering
+     * spreads a change into the pixels next to it */
+    private static final float FILTER_MARGIN = 2;
+
+    /* True when the whole screen needs to be redrawn */
+    private boolean full;
+
+    /* Presentation counters */
+    private int partialPresents;
+    private int fullPresents;
+    private int skippedPresents;
+
+    public CanvasDamage() {
+        reset();
+        full = true;
+    }
+
+    /**
+     * Add a rectangle to the damaged region.
+     */
+    public void include(float l, float b, float r, float t) {
+        if (l < left)
+            left = l;
+        if (b < bottom)
+            bottom = b;
+        if (r > right)
+            right = r;
+        if (t > top)
+            top = t;
+    }
+
+    /**
+     * Mark the whole screen as damaged.  Used when the canvas is cleared or
+     * replaced and when the screen's previous contents can't be trusted.
+     */
+    public void includeAll() {
+        full = true;
+    }
+
+    public boolean isEmpty() {
+        return !full && left > right;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Return true if a rectangle overlaps the damaged region.
+     */
+    public boolean intersects(float l, float b, float r, float t) {
+        if (full)
+            return true;
+        return l < right && r > left && b < top && t > bottom;
+    }
+
+    /**
+     * Turn the damaged region from canvas pixels into screen pixels, as the
+     * bounds of where its corners are shown.
+     */
+    public void transform(CanvasViewTransform view) {
+        if (full || isEmpty())
+            return;
+        float l = left, b = bottom, r = right, t = top;
+        reset();
+        include(view, l, b);
+        include(view, r, b);
+        include(view, l, t);
+        include(view, r, t);
+        left -= FILTER_MARGIN;
+        bottom -= FILTER_MARGIN;
+        right += FILTER_MARGIN;
+        top += FILTER_MARGIN;
+    }
+
+    private void include(CanvasViewTransform view, float x, float y) {
+        float sx = view.screenX(x, y);
+        float sy = view.screenY(x, y);
+        include(sx, sy, sx, sy);
+    }
+
+    /**
+     * Restrict drawing to the damaged region of a screen of the given size.
+     * Does nothing if the whole screen is damaged.  Returns true if the
+     * scissor test was enabled.  Empty damage leaves nothing to draw, and
+     * is better skipped with skipPresent().
+     */
+    public boolean scissor(int width, int height) {
+        if (full) {
+            fullPresents++;
+            return false;
+        }
+        /* Round outwards so partially covered pixels are included */
+        int l = Math.max(0, (int) Math.floor(left));
+        int b = Math.max(0, (int) Math.floor(bottom));
+        int r = Math.min(width, (int) Math.ceil(right));
+        int t = Math.min(height, (int) Math.ceil(top));
+        if (r <= l || t <= b) {
+            l = b = r = t = 0;
+        }
+        glEnable(GL_SCISSOR_TEST);
+        glScissor(l, b, r - l, t - b);
+        partialPresents++;
+        return true;
+    }
+
+    /**
+     * Count a present that was skipped because nothing was damaged and the
+     * screen still shows the last frame.
+     */
+    public void skipPresent() {
+        skippedPresents++;
+    }
+
+    /**
+     * Forget the damaged region after it has been presented.
+     */
+    public void reset() {
+        left = Float.MAX_VALUE;
+        bottom = Float.MAX_VALUE;
+        right = -Float.MAX_VALUE;
+        top = -Float.MAX_VALUE;
+        full = false;
+    }
+
+    /**
+     * Number of presents limited to a damaged region.
+     */
+    public int getPartialPresents() {
+        return partialPresents;
+    }
+
+    /**
+     * Number of presents that redrew the whole screen.
+     */
+    public int getFullPresents() {
+        return fullPresents;
+    }
+
+    /**
+     * Number of presents skipped because nothing changed.
+     */
+    public int getSkippedPresents() {
+        return skippedPresents;
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.alizarinarts.paintpaint;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Composites dabs onto the canvas's tiles with OpenGL ES.
+ *
+ * Dabs are collected into a CanvasDabBatch and drawn onto the tiles they
+ * touch with the brush shader program.  The brush color is a uniform and
+ * the masks are packed into a CanvasBrushAtlas on texture unit 1, with each
+ * dab's texture coordinates picking its mask out of the atlas.  Changing
+ * the color or the mask never uploads a texture, and dabs with different
+ * masks still go out in the same draw calls.  Must only be used on the
+ * OpenGL thread.
+ *
+ * Dabs are blended over the canvas with premultiplied alpha.  The shader
+ * scales the premultiplied color by the mask's alpha and OpenGL adds it to
+ * what is under it scaled by one minus its alpha, so the color's alpha is
+ * the dab's opacity and soft mask edges fade into the canvas.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasGLBackend implements CanvasBackend {
+
+    /* OpenGL identifiers */
+    private CanvasShaderProgram shaderProgram;
+
+    /* The brush masks and the one new dabs are drawn with */
+    private CanvasBrushAtlas atlas = new CanvasBrushAtlas();
+    private int mask;
+
+    /* The brush color as RGBA */
+    private int color = 0x000000ff;
+
+    /* Streams all of a frame's dabs to the GPU in as few draw calls as the
+     * tiles allow */
+    private CanvasDabBatch batch;
+
+    /* The canvas to draw on */
+    private CanvasTiles tiles;
+
+    /* True between beginDabs() and endDabs(), while the program is bound */
+    private boolean drawing;
+
+    /* Program locations, read when drawing begins */
+    private int aVertPos;
+    private int aTexCoord;
+    private int uProjMatrix;
+
+    public CanvasGLBackend(CanvasShaderProgram shaderProgram) {
+        this.shaderProgram = shaderProgram;
+        batch = new CanvasDabBatch();
+        /* Until a mask is set the whole dab is covered */
+        mask = atlas.add(1, 1, new int[] { 0xffffffff });
+    }
+
+    /**
+     * Set the canvas to draw on.
+     */
+    public void setTiles(CanvasTiles tiles) {
+        this.tiles = tiles;
+    }
+
+    public CanvasTiles getTiles() {
+        return tiles;
+    }
+
+    /**
+     * Return the batch used to draw the dabs.  Its counters report how many
+     * dabs and draw calls the last frame needed.
+     */
+    public CanvasDabBatch getBatch() {
+        return batch;
+    }
+
+    public CanvasBrushAtlas getAtlas() {
+        return atlas;
+    }
+
+    public void setColor(int color) {
+        this.color = color;
+        if (drawing) {
+            /* Dabs already added keep the old color */
+            batch.flush(tiles, uProjMatrix, aVertPos, aTexCoord);
+            setColorUniform();
+        }
+    }
+
+    private void setColorUniform() {
+        float alpha = (color & 0xff) / 255f;
+        glUniform4f(shaderProgram.getColorLocation(), (color >>> 24) / 255f * alpha,
+                ((color >> 16) & 0xff) / 255f * alpha, ((color >> 8) & 0xff) / 255f * alpha,
+                alpha);
+    }
+
+    public int addMask(int width, int height, int[] argb) {
+        int added = atlas.add(width, height, argb);
+        if (drawing) {
+            /* Dabs already added use the old atlas's coordinates */
+            batch.flush(tiles, uProjMatrix, aVertPos, aTexCoord);
+            CanvasGLState.bindTexture(1, atlas.getTexture());
+        }
+        return added;
+    }
+
+    public void setMask(int mask) {
+        this.mask = mask;
+    }
+
+    public void beginDabs() {
+        CanvasGLState.useProgram(shaderProgram.getProgram());
+        CanvasGLState.blend(GL_ONE, GL_ONE_MINUS_SRC_ALPHA);
+
+        aTexCoord = shaderProgram.getTextureCoordLocation();
+        aVertPos = shaderProgram.getVertexPositionLocation();
+        uProjMatrix = shaderProgram.getProjMatrixLocation();
+
+        /* Texture 1 is the brush masks.  Effectively the brush's shape */
+        CanvasGLState.bindTexture(1, atlas.getTexture());
+        setColorUniform();
+
+        /* The dab positions and sizes are baked into the vertices */
+        glUniform2f(shaderProgram.getOffsetLocation(), 0, 0);
+        glUniform2f(shaderProgram.getZoomLocation(), 1, 1);
+        glUniform2f(shaderProgram.getTextureScaleLocation(), 1, 1);
+        drawing = true;
+    }
+
+    public void addDab(float x, float y, float radius) {
+        float[] rects = atlas.getRects();
+        int i = mask * 4;
+        batch.add(x, y, radius, rects[i], rects[i + 1], rects[i + 2], rects[i + 3],
+                tiles, uProjMatrix, aVertPos, aTexCoord);
+    }
+
+    public void endDabs() {
+        batch.flush(tiles, uProjMatrix, aVertPos, aTexCoord);
+        drawing = false;
+    }
+
+    public void clear() {
+        tiles.clear();
+    }
+
+    /**
+     * Release the backend's OpenGL objects.
+     */
+    public void delete() {
+        batch.delete();
+        atlas.delete();
+    }
+
+}
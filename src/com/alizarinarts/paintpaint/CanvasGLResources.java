@@ -0,0 +1,179 @@
+package com.alizarinarts.paintpaint;
+
+import static android.opengl.GLES20.*;
+
+import android.util.Log;
+
+/**
+ * Keeps count of the OpenGL objects that are alive and roughly how much
+ * memory they use, so leaks show up as counts that keep growing.
+ *
+ * Every texture, buffer, framebuffer and program is created here and deleted
+ * through CanvasGLState, which forgets its bindings.  Objects are tracked
+ * by name in arrays that only grow when a new highest name is handed out,
+ * so tracking allocates nothing while drawing.
+ *
+ * Like CanvasGLState the counts are static since there is only one context,
+ * and they must be reset whenever a new context is created.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasGLResources {
+
+    /* Kinds of objects */
+    public static final int TEXTURE = 0;
+    public static final int BUFFER = 1;
+    public static final int FRAMEBUFFER = 2;
+    public static final int PROGRAM = 3;
+    private static final int KINDS = 4;
+
+    private static final String[] KIND_NAMES = { "textures", "buffers", "framebuffers", "programs" };
+
+    /* Bytes used by each live object, by kind and name.  -1 if the name
+     * isn't alive. */
+    private static final int[][] sizes = new int[KINDS][];
+
+    /* Totals of the live objects */
+    private static final int[] live = new int[KINDS];
+    private static final long[] bytes = new long[KINDS];
+
+    /* Reused to pass names to OpenGL */
+    private static final int[] name = new int[1];
+
+    static {
+        reset();
+    }
+
+    private CanvasGLResources() {
+    }
+
+    /**
+     * Forget every object.  Call this when the OpenGL context is created,
+     * since the objects of the last one went with it.
+     */
+    public static void reset() {
+        for (int kind = 0; kind < KINDS; kind++) {
+            sizes[kind] = new int[64];
+            for (int i = 0; i < sizes[kind].length; i++)
+                sizes[kind][i] = -1;
+            live[kind] = 0;
+            bytes[kind] = 0;
+        }
+    }
+
+    public static int genTexture() {
+        glGenTextures(1, name, 0);
+        created(TEXTURE, name[0]);
+        return name[0];
+    }
+
+    public static int genBuffer() {
+        glGenBuffers(1, name, 0);
+        created(BUFFER, name[0]);
+        return name[0];
+    }
+
+    public static int genFramebuffer() {
+        glGenFramebuffers(1, name, 0);
+        created(FRAMEBUFFER, name[0]);
+        return name[0];
+    }
+
+    public static int createProgram() {
+        int program = glCreateProgram();
+        created(PROGRAM, program);
+        return program;
+    }
+
+    /**
+     * Record how much memory an object's storage uses, after it is given
+     * storage with glTexImage2D() or glBufferData().
+     */
+    public static void setBytes(int kind, int id, int size) {
+        if (id <= 0 || id >= sizes[kind].length || sizes[kind][id] < 0)
+            return;
+        bytes[kind] += size - sizes[kind][id];
+        sizes[kind][id] = size;
+    }
+
+    private static void created(int kind, int id) {
+        if (id <= 0)
+            return;
+        if (id >= sizes[kind].length) {
+            int[] grown = new int[Math.max(id + 1, sizes[kind].length * 2)];
+            System.arraycopy(sizes[kind], 0, grown, 0, sizes[kind].length);
+            for (int i = sizes[kind].length; i < grown.length; i++)
+                grown[i] = -1;
+            sizes[kind] = grown;
+        }
+        if (sizes[kind][id] < 0) {
+            sizes[kind][id] = 0;
+            live[kind]++;
+        }
+    }
+
+    /**
+     * Forget an object that has been deleted.  Only CanvasGLState should
+     * need to call this.
+     */
+    static void deleted(int kind, int id) {
+        if (id <= 0 || id >= sizes[kind].length || sizes[kind][id] < 0)
+            return;
+        bytes[kind] -= sizes[kind][id];
+        sizes[kind][id] = -1;
+        live[kind]--;
+    }
+
+    /**
+     * Number of live objects of a kind.
+     *
+     * @param kind TEXTURE, BUFFER, FRAMEBUFFER or PROGRAM
+     */
+    public static int getLive(int kind) {
+        return live[kind];
+    }
+
+    /**
+     * Bytes used by the live objects of a kind.
+     */
+    public static long getBytes(int kind) {
+        return bytes[kind];
+    }
+
+    /**
+     * Total number of live objects.
+     */
+    public static int getLive() {
+        int total = 0;
+        for (int kind = 0; kind < KINDS; kind++)
+            total += live[kind];
+        return total;
+    }
+
+    /**
+     * Total bytes used by the live objects.
+     */
+    public static long getBytes() {
+        long total = 0;
+        for (int kind = 0; kind < KINDS; kind++)
+            total += bytes[kind];
+        return total;
+    }
+
+    /**
+     * Write the live counts to the log.
+     *
+     * @param when What just happened, to start the message with
+     */
+    public static void log(String when) {
+        StringBuilder message = new StringBuilder(when).append(": ");
+        for (int kind = 0; kind < KINDS; kind++) {
+            message.append(live[kind]).append(' ').append(KIND_NAMES[kind]);
+            if (bytes[kind] > 0)
+                message.append(" (").append(bytes[kind] / 1024).append("KB)");
+            message.append(kind < KINDS - 1 ? ", " : "");
+        }
+        Log.d(PaintPaint.NAME, message.toString());
+    }
+
+}
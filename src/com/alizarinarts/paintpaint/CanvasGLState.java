@@ -0,0 +1,260 @@
+package com.alizarinarts.paintpaint;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * A thin layer over the OpenGL calls that bind programs, textures, buffers
+ * and framebuffers and set up blending.  It remembers what is currently
+ * bound and skips calls that would not change anything, counting the calls
+ * issued and skipped every frame.
+ *
+ * There is only one OpenGL context so the state is kept statically, like
+ * the methods in CanvasUtils.  All binding of the tracked objects has to go
+ * through this class or the remembered state will be wrong.  It must be
+ * reset whenever a new context is created.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasGLState {
+
+    private static final int TEXTURE_UNITS = 8;
+
+    /* The currently bound objects.  -1 means the state is unknown. */
+    private static int program = -1;
+    private static int activeUnit = -1;
+    private static final int[] textures = new int[TEXTURE_UNITS];
+    private static int arrayBuffer = -1;
+    private static int elementBuffer = -1;
+    private static int framebuffer = -1;
+
+    /* The blend factors, or 0 and 0 if blending is disabled */
+    private static int blendSrc = -1;
+    private static int blendDst = -1;
+
+    /* Reused to pass names to OpenGL */
+    private static final int[] name = new int[1];
+
+    /* Call counters for the current and the last completed frame */
+    private static int issued;
+    private static int skipped;
+    private static int lastIssued;
+    private static int lastSkipped;
+
+    static {
+        reset();
+    }
+
+    private CanvasGLState() {
+    }
+
+    /**
+     * Forget all remembered state.  Call this when the OpenGL context is
+     * created since nothing is known about it yet.
+     */
+    public static void reset() {
+        program = -1;
+        activeUnit = -1;
+        for (int i = 0; i < TEXTURE_UNITS; i++)
+            textures[i] = -1;
+        arrayBuffer = -1;
+        elementBuffer = -1;
+        framebuffer = -1;
+        blendSrc = -1;
+        blendDst = -1;
+    }
+
+    public static void useProgram(int id) {
+        if (program == id) {
+            skipped++;
+            return;
+        }
+        glUseProgram(id);
+        program = id;
+        issued++;
+    }
+
+    /**
+     * Select the active texture unit.
+     *
+     * @param unit The texture unit number, starting at 0 for GL_TEXTURE0.
+     */
+    public static void activeTexture(int unit) {
+        if (activeUnit == unit) {
+            skipped++;
+            return;
+        }
+        glActiveTexture(GL_TEXTURE0 + unit);
+        activeUnit = unit;
+        issued++;
+    }
+
+    /**
+     * Bind a 2D texture to a texture unit, making that unit active.
+     *
+     * @param unit The texture unit number, starting at 0 for GL_TEXTURE0.
+     * @param id The texture to bind.
+     */
+    public static void bindTexture(int unit, int id) {
+        activeTexture(unit);
+        bindTexture(id);
+    }
+
+    /**
+     * Bind a 2D texture to the active texture unit.
+     */
+    public static void bindTexture(int id) {
+        if (activeUnit < 0)
+            activeTexture(0);
+        if (textures[activeUnit] == id) {
+            skipped++;
+            return;
+        }
+        glBindTexture(GL_TEXTURE_2D, id);
+        textures[activeUnit] = id;
+        issued++;
+    }
+
+    /**
+     * Bind a buffer to GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+     */
+    public static void bindBuffer(int target, int id) {
+        int bound = target == GL_ARRAY_BUFFER ? arrayBuffer : elementBuffer;
+        if (bound == id) {
+            skipped++;
+            return;
+        }
+        glBindBuffer(target, id);
+        if (target == GL_ARRAY_BUFFER)
+            arrayBuffer = id;
+        else
+            elementBuffer = id;
+        issued++;
+    }
+
+    public static void bindFramebuffer(int id) {
+        if (framebuffer == id) {
+            skipped++;
+            return;
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, id);
+        framebuffer = id;
+        issued++;
+    }
+
+    /**
+     * Blend the following draws into the framebuffer.  Every pass sets the
+     * blending it needs, so a pass never inherits another's.
+     *
+     * @param src The source factor, such as GL_ONE
+     * @param dst The destination factor, such as GL_ONE_MINUS_SRC_ALPHA
+     */
+    public static void blend(int src, int dst) {
+        if (blendSrc == src && blendDst == dst) {
+            skipped++;
+            return;
+        }
+        if (blendSrc <= 0) {
+            glEnable(GL_BLEND);
+            issued++;
+        }
+        glBlendFunc(src, dst);
+        blendSrc = src;
+        blendDst = dst;
+        issued++;
+    }
+
+    /**
+     * Let the following draws replace what is in the framebuffer.
+     */
+    public static void noBlend() {
+        if (blendSrc == 0) {
+            skipped++;
+            return;
+        }
+        glDisable(GL_BLEND);
+        blendSrc = 0;
+        blendDst = 0;
+        issued++;
+    }
+
+    /**
+     * Delete a texture, forgetting any binding of it.  OpenGL unbinds deleted
+     * objects and may hand out the same name again.
+     */
+    public static void deleteTexture(int id) {
+        if (id == 0)
+            return;
+        name[0] = id;
+        glDeleteTextures(1, name, 0);
+        CanvasGLResources.deleted(CanvasGLResources.TEXTURE, id);
+        for (int i = 0; i < TEXTURE_UNITS; i++) {
+            if (textures[i] == id)
+                textures[i] = 0;
+        }
+    }
+
+    /**
+     * Delete a buffer, forgetting any binding of it.
+     */
+    public static void deleteBuffer(int id) {
+        if (id == 0)
+            return;
+        name[0] = id;
+        glDeleteBuffers(1, name, 0);
+        CanvasGLResources.deleted(CanvasGLResources.BUFFER, id);
+        if (arrayBuffer == id)
+            arrayBuffer = 0;
+        if (elementBuffer == id)
+            elementBuffer = 0;
+    }
+
+    /**
+     * Delete a framebuffer, forgetting any binding of it.
+     */
+    public static void deleteFramebuffer(int id) {
+        if (id == 0)
+            return;
+        name[0] = id;
+        glDeleteFramebuffers(1, name, 0);
+        CanvasGLResources.deleted(CanvasGLResources.FRAMEBUFFER, id);
+        if (framebuffer == id)
+            framebuffer = 0;
+    }
+
+    /**
+     * Delete a program, forgetting it if it is in use.
+     */
+    public static void deleteProgram(int id) {
+        if (id == 0)
+            return;
+        glDeleteProgram(id);
+        CanvasGLResources.deleted(CanvasGLResources.PROGRAM, id);
+        if (program == id)
+            program = 0;
+    }
+
+    /**
+     * Finish counting the current frame.
+     */
+    public static void endFrame() {
+        lastIssued = issued;
+        lastSkipped = skipped;
+        issued = 0;
+        skipped = 0;
+    }
+
+    /**
+     * Number of state changing calls sent to OpenGL in the last frame.
+     */
+    public static int getCallsIssued() {
+        return lastIssued;
+    }
+
+    /**
+     * Number of redundant state changing calls skipped in the last frame.
+     */
+    public static int getCallsSkipped() {
+        return lastSkipped;
+    }
+
+}
@@ -13,6 +13,10 @@ import android.view.MotionEvent;
  * http://android-developers.blogspot.com/2009/04/introducing-glsurfaceview.html
  *
  * This class is the Android View used to display and interact with the canvas.
+ *
+ * Touches paint, one stroke per pointer, unless the view is navigating.
+ * Then one finger pans the canvas and two pinch to zoom, and twist to
+ * rotate it if rotation is allowed.
  * 
  * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
  */
@@ -21,34 +25,190 @@ public class CanvasGLSurfaceView extends GLSurfaceView {
     CanvasRenderer mRenderer;
     Activity mActivity;
 
+    /* Whether touches move the canvas instead of painting */
+    private boolean mNavigating = false;
+    private boolean mRotating = false;
+
+    /* Where the pointers moving the canvas were at the last event, in screen
+     * pixels with the origin at the bottom left: their middle, how far apart
+     * the first two were and the angle between them */
+    private int mGesturePointers;
+    private float mGestureX;
+    private float mGestureY;
+    private float mGestureSpan;
+    private float mGestureAngle;
+
     public CanvasGLSurfaceView(Context context) {
         super(context);
         mActivity = (Activity) context;
         setEGLContextClientVersion(2);
-        mRenderer = new CanvasRenderer(context);
+        mRenderer = new CanvasRenderer(context, this);
         setRenderer(mRenderer);
+        /* The renderer requests a frame whenever the canvas changes */
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
     }
 
     public boolean onTouchEvent(final MotionEvent event) {
-        /* Add new brush dabs for each desirable MotionEvent */
-        boolean newEvent = false;
-        switch (event.getAction()) {
+        if (mNavigating)
+            return navigate(event);
+        CanvasTrace.begin("PaintPaint touch");
+        boolean handled = addSamples(event);
+        CanvasTrace.end();
+        return handled;
+    }
+
+    private boolean addSamples(MotionEvent event) {
+        /* Add new brush dabs for each desirable MotionEvent.  The samples go
+         * straight into the renderer's input ring rather than through
+         * queueEvent() so no Runnable is made per sample.  Every pointer has
+         * its own stroke, identified by its pointer id. */
+        int index = event.getActionIndex();
+        int pointers = event.getPointerCount();
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN:
+                addSample(event, index, CanvasDab.NEW_STROKE);
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+                /* The last sample of a stroke finishes it */
+                addSample(event, index, CanvasDab.END_STROKE);
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                for (int i = 0; i < pointers; i++)
+                    addSample(event, i, CanvasDab.END_STROKE);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                /* Fast digitizers batch several samples into each move
+                 * event.  Add all of them for every pointer, oldest first,
+                 * with their own event times. */
+                int history = event.getHistorySize();
+                for (int h = 0; h < history; h++) {
+                    long time = event.getHistoricalEventTime(h);
+                    for (int i = 0; i < pointers; i++) {
+                        mRenderer.addCanvasDab(event.getHistoricalX(i, h),
+                                event.getHistoricalY(i, h),
+                                event.getHistoricalPressure(i, h), 0, time,
+                                event.getPointerId(i));
+                    }
+                }
+                for (int i = 0; i < pointers; i++)
+                    addSample(event, i, 0);
+                break;
+            default:
+                return false;
+        }
+
+        /* One hand-off to the renderer for the whole event */
+        mRenderer.submitCanvasDabs();
+        return true;
+    }
+
+    /* Add the current sample of one of an event's pointers */
+    private void addSample(MotionEvent event, int index, int flags) {
+        mRenderer.addCanvasDab(event.getX(index), event.getY(index),
+                event.getPressure(index), flags, event.getEventTime(),
+                event.getPointerId(index));
+    }
+
+    /* Move the view with the pointers of a touch event */
+    private boolean navigate(MotionEvent event) {
+        switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
             case MotionEvent.ACTION_POINTER_DOWN:
-                newEvent = true;
+                startGesture(event, -1);
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                /* Carry on with the pointers that are left */
+                startGesture(event, event.getActionIndex());
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mGesturePointers = 0;
+                break;
             case MotionEvent.ACTION_MOVE:
-                final boolean newEventFinal = newEvent;
-                final int i = event.getActionIndex();
-                final float x = event.getX(i);
-                final float y = event.getY(i);
-                final float p = event.getPressure(i);
-                // Add Runnable to queue, idea from https://github.com/MasDennis/Rajawali/issues/56
-                queueEvent(new Runnable() {public void run() {
-                    mRenderer.addCanvasDab((int)x, (int)y, p, newEventFinal);
-                }});
-                return true;
+                if (mGesturePointers == 0)
+                    break;
+                float x = mGestureX;
+                float y = mGestureY;
+                float span = mGestureSpan;
+                float angle = mGestureAngle;
+                startGesture(event, -1);
+                CanvasViewTransform view = mRenderer.getViewTransform();
+                view.pan(mGestureX - x, mGestureY - y);
+                if (mGesturePointers > 1 && span > 0) {
+                    view.zoom(mGestureSpan / span, mGestureX, mGestureY);
+                    if (mRotating)
+                        view.rotate(mGestureAngle - angle, mGestureX, mGestureY);
+                }
+                mRenderer.viewChanged();
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /* Remember where the first two pointers of an event are, leaving out
+     * the one at index skip */
+    private void startGesture(MotionEvent event, int skip) {
+        int first = -1;
+        int second = -1;
+        for (int i = 0; i < event.getPointerCount() && second < 0; i++) {
+            if (i == skip)
+                continue;
+            if (first < 0)
+                first = i;
+            else
+                second = i;
         }
-        return false;
+        mGesturePointers = first < 0 ? 0 : second < 0 ? 1 : 2;
+        if (first < 0)
+            return;
+        float height = getHeight();
+        float x0 = event.getX(first);
+        float y0 = height - event.getY(first);
+        if (second < 0) {
+            mGestureX = x0;
+            mGestureY = y0;
+            mGestureSpan = 0;
+            return;
+        }
+        float x1 = event.getX(second);
+        float y1 = height - event.getY(second);
+        mGestureX = (x0 + x1) / 2;
+        mGestureY = (y0 + y1) / 2;
+        mGestureSpan = (float) Math.hypot(x1 - x0, y1 - y0);
+        mGestureAngle = (float) Math.atan2(y1 - y0, x1 - x0);
+    }
+
+    /**
+     * Make touches move the canvas instead of painting, or paint again.
+     */
+    public void setNavigating(boolean navigating) {
+        mNavigating = navigating;
+        mGesturePointers = 0;
+    }
+
+    public boolean isNavigating() {
+        return mNavigating;
+    }
+
+    /**
+     * Allow two fingers to rotate the canvas while navigating.
+     */
+    public void setRotating(boolean rotating) {
+        mRotating = rotating;
+    }
+
+    @Override
+    public void onPause() {
+        /* Runs after anything already queued, such as the autosave */
+        queueEvent(new Runnable() {public void run() {
+            mRenderer.release();
+        }});
+        mRenderer.onPause();
+        super.onPause();
     }
 
     public CanvasRenderer getRenderer() {
@@ -0,0 +1,490 @@
+package com.alizarinarts.paintpaint;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static android.opengl.GLES20.*;
+
+import android.util.Log;
+
+/**
+ * Undo and redo for the canvas, one step per stroke.
+ *
+ * Only the tiles a stroke touches are kept.  CanvasTiles calls capture()
+ * before it draws on a tile and the first time that happens in a step the
+ * tile is copied on the GPU into a free slot of a history page, a texture
+ * holding a grid of tiles.  Tiles that were never drawn on are only noted
+ * as blank.  Undoing a step copies its tiles back after copying the current
+ * ones into a redo step, and redoing does the same the other way round.
+ *
+ * The number of history pages is limited.  When they are full the oldest
+ * tiles in them are read back, compressed and kept in direct buffers
+ * outside the Java heap instead, which is also done at the start of each
+ * stroke to keep some slots free.  All of the history together is kept
+ * under a byte budget by throwing away the oldest steps.
+ *
+ * Everything happens on the OpenGL thread.  The history belongs to the
+ * context it was created in.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasHistory {
+
+    private static final int TILE_SIZE = CanvasTiles.TILE_SIZE;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    /* History pages are a square of tiles this many on a side */
+    private static final int PAGE_TILES = 4;
+    private static final int PAGE_SIZE = PAGE_TILES * TILE_SIZE;
+    private static final int SLOTS_PER_PAGE = PAGE_TILES * PAGE_TILES;
+    private static final long PAGE_BYTES = (long) SLOTS_PER_PAGE * TILE_BYTES;
+
+    /* Slots kept free at the start of each stroke by spilling old tiles */
+    private static final int RESERVE_SLOTS = 8;
+
+    /* Slot of a tile that isn't in a history page */
+    private static final int BLANK = -1;
+    private static final int SPILLED = -2;
+
+    /* The saved copy of one tile */
+    private static class Entry {
+        final int column;
+        final int row;
+        int slot;
+        ByteBuffer spill;
+
+        Entry(int column, int row) {
+            this.column = column;
+            this.row = row;
+        }
+    }
+
+    /* The tiles as they were before one stroke, or before an undo */
+    private static class Step {
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+    }
+
+    private final CanvasTiles tiles;
+    private final long budget;
+    private final int maxPages;
+
+    /* Oldest first, so the next step to undo or redo is the last one */
+    private final ArrayList<Step> undo = new ArrayList<Step>();
+    private final ArrayList<Step> redo = new ArrayList<Step>();
+
+    /* The step strokes are being captured into, or null before the first
+     * capture of a stroke */
+    private Step current;
+
+    /* The stamp of the step each tile was last captured in */
+    private final int[] captured;
+    private int stamp = 1;
+
+    /* History page textures and their free slots */
+    private int[] pages = new int[0];
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+
+    /* Pages are copied into and out of through this framebuffer, which
+     * belongs to the renderer */
+    private final int framebuffer;
+
+    /* Used for spilling */
+    private final ByteBuffer pixels = ByteBuffer.allocateDirect(TILE_BYTES);
+    private final byte[] tile = new byte[TILE_BYTES];
+    private byte[] compressed = new byte[TILE_BYTES / 4];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    /* Statistics */
+    private int slotsUsed;
+    private long spilledBytes;
+    private int spills;
+    private int evictedSteps;
+    private long lastUndoNanos;
+    private long maxUndoNanos;
+
+    /**
+     * @param tiles The canvas to keep the history of
+     * @param budget The most bytes the history may use, on the GPU and off
+     * @param gpuBudget The most bytes of history pages to create
+     * @param framebuffer A framebuffer object to attach history pages to,
+     * not the one the tiles are drawn through.  It isn't deleted with the
+     * history.
+     */
+    public CanvasHistory(CanvasTiles tiles, long budget, long gpuBudget, int framebuffer) {
+        this.tiles = tiles;
+        this.budget = budget;
+        maxPages = (int) Math.max(1, gpuBudget / PAGE_BYTES);
+        captured = new int[tiles.getColumns() * tiles.getRows()];
+        this.framebuffer = framebuffer;
+    }
+
+    /**
+     * Start a new step with the next change.  Called at the start of each
+     * stroke, unless another finger's stroke is still being drawn.  Old tiles are spilled here so that drawing the stroke
+     * doesn't have to.
+     */
+    public void beginStep() {
+        current = null;
+        while (freeCount < RESERVE_SLOTS && pages.length == maxPages && spillOldest())
+            ;
+    }
+
+    /**
+     * Save a tile before it is changed, if it hasn't been saved for the
+     * current step yet.  Called by CanvasTiles before drawing on a tile.
+     */
+    public void capture(int column, int row) {
+        int i = row * tiles.getColumns() + column;
+        if (current == null) {
+            /* A new change makes the redo steps meaningless */
+            for (Step step : redo)
+                release(step);
+            redo.clear();
+            current = new Step();
+            undo.add(current);
+            stamp++;
+        }
+        if (captured[i] == stamp)
+            return;
+        captured[i] = stamp;
+        current.entries.add(save(column, row));
+        trim();
+    }
+
+    /**
+     * Undo the last step.  Returns false if there was nothing to undo.
+     */
+    public boolean undo() {
+        if (undo.isEmpty())
+            return false;
+        long start = System.nanoTime();
+        redo.add(swap(undo.remove(undo.size() - 1)));
+        finishSwap(start);
+        return true;
+    }
+
+    /**
+     * Redo the last step undone.  Returns false if there was nothing to redo.
+     */
+    public boolean redo() {
+        if (redo.isEmpty())
+            return false;
+        long start = System.nanoTime();
+        undo.add(swap(redo.remove(redo.size() - 1)));
+        finishSwap(start);
+        return true;
+    }
+
+    /* Put a step's tiles back, returning a step holding the tiles they
+     * replaced. */
+    private Step swap(Step step) {
+        Step inverse = new Step();
+        for (Entry entry : step.entries) {
+            inverse.entries.add(save(entry.column, entry.row));
+            restore(entry);
+            release(entry);
+        }
+        return inverse;
+    }
+
+    private void finishSwap(long start) {
+        current = null;
+        stamp++;
+        trim();
+        lastUndoNanos = System.nanoTime() - start;
+        maxUndoNanos = Math.max(maxUndoNanos, lastUndoNanos);
+    }
+
+    public boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /**
+     * Forget all of the history.  Used when the whole canvas is replaced.
+     */
+    public void reset() {
+        for (Step step : undo)
+            release(step);
+        for (Step step : redo)
+            release(step);
+        undo.clear();
+        redo.clear();
+        current = null;
+        stamp++;
+    }
+
+    /**
+     * Release the history's pages.  The framebuffer is left for the next
+     * history, with nothing attached to it.
+     */
+    public void delete() {
+        reset();
+        if (pages.length > 0) {
+            CanvasGLState.bindFramebuffer(framebuffer);
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, 0, 0);
+        }
+        for (int page : pages)
+            CanvasGLState.deleteTexture(page);
+        pages = new int[0];
+        freeCount = 0;
+    }
+
+    /* Copy a tile into the history */
+    private Entry save(int column, int row) {
+        Entry entry = new Entry(column, row);
+        if (!tiles.attachTile(column, row)) {
+            entry.slot = BLANK;
+            return entry;
+        }
+        int slot = obtainSlot();
+        if (slot < 0) {
+            /* Every slot belongs to the step being undone, so compress the
+             * tile straight from the canvas */
+            tiles.attachTile(column, row);
+            spill(entry, 0, 0);
+            return entry;
+        }
+        /* obtainSlot() may have bound the history framebuffer */
+        tiles.attachTile(column, row);
+        CanvasGLState.bindTexture(CanvasUtils.UPLOAD_UNIT, pages[slot / SLOTS_PER_PAGE]);
+        glCopyTexSubImage2D(GL_TEXTURE_2D, 0, slotX(slot), slotY(slot), 0, 0, TILE_SIZE, TILE_SIZE);
+        entry.slot = slot;
+        return entry;
+    }
+
+    /* Copy a saved tile back onto the canvas */
+    private void restore(Entry entry) {
+        if (entry.slot == BLANK) {
+            tiles.clearTile(entry.column, entry.row);
+        } else if (entry.slot == SPILLED) {
+            entry.spill.position(0);
+            entry.spill.get(compressed, 0, entry.spill.capacity());
+            inflater.reset();
+            inflater.setInput(compressed, 0, entry.spill.capacity());
+            try {
+                inflater.inflate(tile);
+            } catch (DataFormatException e) {
+                Log.e(PaintPaint.NAME, "Couldn't restore a tile from the history: " + e);
+                return;
+            }
+            pixels.position(0);
+            pixels.put(tile);
+            tiles.loadTile(entry.column, entry.row, pixels);
+            tiles.markDirty(entry.column, entry.row);
+        } else {
+            /* Making the tile's texture clears it through the tiles'
+             * framebuffer, so it has to come before the page is attached */
+            int texture = tiles.ensureTexture(entry.column, entry.row);
+            attachPage(entry.slot / SLOTS_PER_PAGE);
+            CanvasGLState.bindTexture(CanvasUtils.UPLOAD_UNIT, texture);
+            glCopyTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, slotX(entry.slot), slotY(entry.slot),
+                    TILE_SIZE, TILE_SIZE);
+            tiles.markDirty(entry.column, entry.row);
+        }
+    }
+
+    /* Return a free slot, making a page or spilling old tiles if there
+     * isn't one.  Returns -1 if no slot could be freed. */
+    private int obtainSlot() {
+        if (freeCount == 0) {
+            if (pages.length < maxPages)
+                addPage();
+            else
+                spillOldest();
+        }
+        if (freeCount == 0)
+            return -1;
+        slotsUsed++;
+        return freeSlots[--freeCount];
+    }
+
+    private void addPage() {
+        int page = pages.length;
+        int[] grown = new int[page + 1];
+        System.arraycopy(pages, 0, grown, 0, page);
+        grown[page] = CanvasUtils.makeTexture(PAGE_SIZE, PAGE_SIZE, (Buffer) null);
+        pages = grown;
+
+        int[] slots = new int[freeSlots.length + SLOTS_PER_PAGE];
+        System.arraycopy(freeSlots, 0, slots, 0, freeCount);
+        freeSlots = slots;
+        for (int i = SLOTS_PER_PAGE - 1; i >= 0; i--)
+            freeSlots[freeCount++] = page * SLOTS_PER_PAGE + i;
+    }
+
+    /* Spill the oldest tile that is in a history page.  Returns false if
+     * there isn't one. */
+    private boolean spillOldest() {
+        Entry oldest = findOldest(undo);
+        if (oldest == null)
+            oldest = findOldest(redo);
+        if (oldest == null)
+            return false;
+        int slot = oldest.slot;
+        attachPage(slot / SLOTS_PER_PAGE);
+        spill(oldest, slotX(slot), slotY(slot));
+        freeSlot(slot);
+        return true;
+    }
+
+    private static Entry findOldest(ArrayList<Step> steps) {
+        for (Step step : steps) {
+            for (Entry entry : step.entries) {
+                if (entry.slot >= 0)
+                    return entry;
+            }
+        }
+        return null;
+    }
+
+    /* Read a tile from the bound framebuffer and keep it compressed */
+    private void spill(Entry entry, int x, int y) {
+        pixels.position(0);
+        glReadPixels(x, y, TILE_SIZE, TILE_SIZE, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+        pixels.position(0);
+        pixels.get(tile);
+
+        deflater.reset();
+        deflater.setInput(tile);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, length);
+                compressed = grown;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        entry.spill = ByteBuffer.allocateDirect(length);
+        entry.spill.put(compressed, 0, length);
+        entry.slot = SPILLED;
+        spilledBytes += length;
+        spills++;
+    }
+
+    private void release(Step step) {
+        for (Entry entry : step.entries)
+            release(entry);
+    }
+
+    private void release(Entry entry) {
+        if (entry.slot >= 0) {
+            freeSlot(entry.slot);
+        } else if (entry.slot == SPILLED) {
+            spilledBytes -= entry.spill.capacity();
+            entry.spill = null;
+        }
+        entry.slot = BLANK;
+    }
+
+    private void freeSlot(int slot) {
+        freeSlots[freeCount++] = slot;
+        slotsUsed--;
+    }
+
+    /* Throw away the oldest steps until the history is within its budget.
+     * The step being captured is never thrown away. */
+    private void trim() {
+        while (getBytes() > budget) {
+            if (!undo.isEmpty() && undo.get(0) != current) {
+                release(undo.remove(0));
+            } else if (!redo.isEmpty()) {
+                release(redo.remove(0));
+            } else {
+                break;
+            }
+            evictedSteps++;
+        }
+    }
+
+    private void attachPage(int page) {
+        CanvasGLState.bindFramebuffer(framebuffer);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, pages[page], 0);
+    }
+
+    private static int slotX(int slot) {
+        return (slot % SLOTS_PER_PAGE) % PAGE_TILES * TILE_SIZE;
+    }
+
+    private static int slotY(int slot) {
+        return (slot % SLOTS_PER_PAGE) / PAGE_TILES * TILE_SIZE;
+    }
+
+    /**
+     * Bytes of history in use, counting tiles in history pages at their
+     * full size and spilled tiles at their compressed size.
+     */
+    public long getBytes() {
+        return getGpuBytes() + spilledBytes;
+    }
+
+    /**
+     * Bytes of history pages holding tiles.
+     */
+    public long getGpuBytes() {
+        return (long) slotsUsed * TILE_BYTES;
+    }
+
+    /**
+     * Bytes of GPU memory used by the history pages, whether full or not.
+     */
+    public long getGpuAllocatedBytes() {
+        return pages.length * PAGE_BYTES;
+    }
+
+    /**
+     * Bytes of compressed tiles kept outside the Java heap.
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public int getUndoSteps() {
+        return undo.size();
+    }
+
+    public int getRedoSteps() {
+        return redo.size();
+    }
+
+    /**
+     * Number of tiles compressed out of the history pages.
+     */
+    public int getSpills() {
+        return spills;
+    }
+
+    /**
+     * Number of steps thrown away to stay within the budget.
+     */
+    public int getEvictedSteps() {
+        return evictedSteps;
+    }
+
+    /**
+     * How long the last undo or redo took in nanoseconds.
+     */
+    public long getLastUndoNanos() {
+        return lastUndoNanos;
+    }
+
+    /**
+     * The longest an undo or redo has taken in nanoseconds.
+     */
+    public long getMaxUndoNanos() {
+        return maxUndoNanos;
+    }
+
+}
@@ -0,0 +1,316 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import android.util.Log;
+
+/**
+ * Where the time and memory of drawing goes, for the performance overlay
+ * and the metrics files.
+ *
+ * The renderer records every frame into histograms and gauges that are all
+ * made up front, so recording allocates nothing.  Readbacks are recorded
+ * on the OpenGL thread and saves on the save thread, and the overlay reads
+ * them on the UI thread, which the histograms are synchronized for.
+ *
+ * The latency of touch samples is kept by a CanvasLatency, whose histograms
+ * are written out and reset along with these.
+ *
+ * The histograms cover a window of time.  Every so often the renderer
+ * writes the window as a row of metrics.csv and as metrics.json, which only
+ * keeps the last window, and starts a new one.  Each row names the device
+ * and build so files from different ones can be put side by side.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasMetrics {
+
+    /* Bucket bounds for durations in microseconds, finest around the length
+     * of a 60Hz frame */
+    private static final long[] MICROS = {
+        500, 1000, 2000, 4000, 6000, 8000, 10000, 12000, 14000, 16700,
+        20000, 25000, 33300, 50000, 100000, 250000, 1000000,
+    };
+
+    /* Bucket bounds for counts per frame */
+    private static final long FIRST_COUNT = 1;
+    private static final int COUNT_BUCKETS = 16;
+
+    private static final String[] NAMES = {
+        "frameMicros", "dabs", "queueDepth", "glCalls", "readbackMicros", "saveMicros",
+        "inputMicros", "inputQueueMicros", "renderMicros", "swapMicros", "latencyMicros",
+        "strokeP50Micros", "strokeP90Micros", "strokeP99Micros",
+    };
+
+    /* Per frame */
+    private final CanvasHistogram frameMicros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram dabs = CanvasHistogram.doubling(FIRST_COUNT, COUNT_BUCKETS);
+    private final CanvasHistogram queueDepth = CanvasHistogram.doubling(FIRST_COUNT, COUNT_BUCKETS);
+    private final CanvasHistogram glCalls = CanvasHistogram.doubling(FIRST_COUNT, COUNT_BUCKETS);
+
+    /* Per readback or save */
+    private final CanvasHistogram readbackMicros = new CanvasHistogram(MICROS);
+    private final CanvasHistogram saveMicros = new CanvasHistogram(MICROS);
+
+    private final CanvasLatency latency;
+
+    private final CanvasHistogram[] histograms;
+
+    /* Totals since the metrics were made */
+    private volatile long frames;
+    private volatile long totalDabs;
+    private volatile long totalSamples;
+
+    /* GPU memory in use at the last frame */
+    private volatile long textureBytes;
+    private volatile long bufferBytes;
+    private volatile int liveObjects;
+
+    /* When the current window started, in milliseconds since the epoch */
+    private volatile long windowStart = System.currentTimeMillis();
+
+    public CanvasMetrics(CanvasLatency latency) {
+        this.latency = latency;
+        histograms = new CanvasHistogram[] {
+            frameMicros, dabs, queueDepth, glCalls, readbackMicros, saveMicros,
+            latency.getInputMicros(), latency.getQueueMicros(), latency.getRenderMicros(),
+            latency.getSwapMicros(), latency.getTotalMicros(),
+            latency.getStrokeP50Micros(), latency.getStrokeP90Micros(),
+            latency.getStrokeP99Micros(),
+        };
+    }
+
+    /**
+     * Record a frame.  Called on the OpenGL thread.
+     *
+     * @param nanos How long the frame took to draw
+     * @param frameDabs Dabs drawn onto the tiles
+     * @param samples Touch samples taken from the input ring
+     * @param calls OpenGL state calls issued
+     */
+    public void recordFrame(long nanos, int frameDabs, int samples, int calls) {
+        frameMicros.record(nanos / 1000);
+        dabs.record(frameDabs);
+        queueDepth.record(samples);
+        glCalls.record(calls);
+        frames++;
+        totalDabs += frameDabs;
+        totalSamples += samples;
+    }
+
+    public void recordReadback(long nanos) {
+        readbackMicros.record(nanos / 1000);
+    }
+
+    public void recordSave(long nanos) {
+        saveMicros.record(nanos / 1000);
+    }
+
+    /**
+     * Set the GPU memory in use.  Called on the OpenGL thread.
+     */
+    public void setMemory(long textureBytes, long bufferBytes, int liveObjects) {
+        this.textureBytes = textureBytes;
+        this.bufferBytes = bufferBytes;
+        this.liveObjects = liveObjects;
+    }
+
+    /**
+     * Start a new window, forgetting the histograms but not the totals.
+     */
+    public void resetWindow() {
+        for (CanvasHistogram histogram : histograms)
+            histogram.reset();
+        windowStart = System.currentTimeMillis();
+    }
+
+    public CanvasHistogram getFrameMicros() {
+        return frameMicros;
+    }
+
+    public CanvasHistogram getDabs() {
+        return dabs;
+    }
+
+    public CanvasHistogram getQueueDepth() {
+        return queueDepth;
+    }
+
+    public CanvasHistogram getGlCalls() {
+        return glCalls;
+    }
+
+    public CanvasHistogram getReadbackMicros() {
+        return readbackMicros;
+    }
+
+    public CanvasHistogram getSaveMicros() {
+        return saveMicros;
+    }
+
+    public CanvasLatency getLatency() {
+        return latency;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getTextureBytes() {
+        return textureBytes;
+    }
+
+    /**
+     * A few lines describing the current window, for the overlay.
+     */
+    public String getSummary() {
+        StringBuilder text = new StringBuilder();
+        text.append("frame ").append(millis(frameMicros.getMean()))
+            .append("ms p50 ").append(millis(frameMicros.getPercentile(50)))
+            .append(" p99 ").append(millis(frameMicros.getPercentile(99)))
+            .append(" max ").append(millis(frameMicros.getMax())).append('\n');
+        text.append("dabs p50 ").append(dabs.getPercentile(50))
+            .append(" max ").append(dabs.getMax())
+            .append("  queue p50 ").append(queueDepth.getPercentile(50))
+            .append(" max ").append(queueDepth.getMax()).append('\n');
+        text.append("GL calls p50 ").append(glCalls.getPercentile(50))
+            .append(" max ").append(glCalls.getMax()).append('\n');
+        CanvasHistogram total = latency.getTotalMicros();
+        text.append("latency p50 ").append(millis(total.getPercentile(50)))
+            .append("ms p99 ").append(millis(total.getPercentile(99))).append("ms\n");
+        text.append(" input ").append(millis(latency.getInputMicros().getPercentile(50)))
+            .append(" queue ").append(millis(latency.getQueueMicros().getPercentile(50)))
+            .append(" render ").append(millis(latency.getRenderMicros().getPercentile(50)))
+            .append(" swap ").append(millis(latency.getSwapMicros().getPercentile(50)))
+            .append("ms p50\n");
+        if (latency.getLastStrokeSamples() > 0) {
+            text.append("last stroke p50 ").append(millis(latency.getLastStrokeP50()))
+                .append(" p90 ").append(millis(latency.getLastStrokeP90()))
+                .append(" p99 ").append(millis(latency.getLastStrokeP99()))
+                .append("ms, ").append(latency.getLastStrokeSamples()).append(" samples\n");
+        }
+        text.append("readback ").append(millis(readbackMicros.getMax()))
+            .append("ms  save ").append(millis(saveMicros.getMax())).append("ms\n");
+        text.append("textures ").append(textureBytes >> 10).append("KB  buffers ")
+            .append(bufferBytes >> 10).append("KB  ").append(liveObjects).append(" objects");
+        return text.toString();
+    }
+
+    private static float millis(double micros) {
+        return Math.round(micros / 100) / 10f;
+    }
+
+    /**
+     * The column names of metrics.csv.
+     */
+    public static String getCsvHeader() {
+        StringBuilder header = new StringBuilder("time,device,frames,totalDabs,totalSamples,"
+                + "textureBytes,bufferBytes,liveObjects");
+        for (String name : NAMES) {
+            header.append(',').append(name).append("Count,").append(name).append("Mean,")
+                .append(name).append("P50,").append(name).append("P90,")
+                .append(name).append("P99,").append(name).append("Max");
+        }
+        return header.toString();
+    }
+
+    /**
+     * The current window as a row of metrics.csv.
+     *
+     * @param device Names the device and build
+     */
+    public String toCsvRow(String device) {
+        StringBuilder row = new StringBuilder();
+        row.append(windowStart).append(",\"").append(device.replace("\"", "\"\"")).append('"')
+            .append(',').append(frames).append(',').append(totalDabs)
+            .append(',').append(totalSamples).append(',').append(textureBytes)
+            .append(',').append(bufferBytes).append(',').append(liveObjects);
+        for (CanvasHistogram histogram : histograms) {
+            row.append(',').append(histogram.getCount())
+                .append(',').append(Math.round(histogram.getMean()))
+                .append(',').append(histogram.getPercentile(50))
+                .append(',').append(histogram.getPercentile(90))
+                .append(',').append(histogram.getPercentile(99))
+                .append(',').append(histogram.getMax());
+        }
+        return row.toString();
+    }
+
+    /**
+     * The current window as a JSON object, with every histogram's buckets.
+     *
+     * @param device Names the device and build
+     */
+    public String toJson(String device) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"time\": ").append(windowStart).append(",\n");
+        json.append("  \"device\": \"").append(device.replace("\\", "\\\\").replace("\"", "\\\""))
+            .append("\",\n");
+        json.append("  \"frames\": ").append(frames).append(",\n");
+        json.append("  \"totalDabs\": ").append(totalDabs).append(",\n");
+        json.append("  \"totalSamples\": ").append(totalSamples).append(",\n");
+        json.append("  \"textureBytes\": ").append(textureBytes).append(",\n");
+        json.append("  \"bufferBytes\": ").append(bufferBytes).append(",\n");
+        json.append("  \"liveObjects\": ").append(liveObjects);
+        for (int i = 0; i < histograms.length; i++) {
+            CanvasHistogram histogram = histograms[i];
+            json.append(",\n  \"").append(NAMES[i]).append("\": {")
+                .append("\"count\": ").append(histogram.getCount())
+                .append(", \"mean\": ").append(Math.round(histogram.getMean()))
+                .append(", \"p50\": ").append(histogram.getPercentile(50))
+                .append(", \"p90\": ").append(histogram.getPercentile(90))
+                .append(", \"p99\": ").append(histogram.getPercentile(99))
+                .append(", \"max\": ").append(histogram.getMax())
+                .append(", \"buckets\": [");
+            for (int b = 0; b < histogram.getBuckets(); b++) {
+                if (b > 0)
+                    json.append(", ");
+                json.append("[");
+                long bound = histogram.getBucketBound(b);
+                json.append(bound == Long.MAX_VALUE ? "null" : Long.toString(bound));
+                json.append(", ").append(histogram.getBucketCount(b)).append("]");
+            }
+            json.append("]}");
+        }
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Add a row to metrics.csv and replace metrics.json in a directory.
+     * Does file I/O, so it belongs on a background thread.
+     */
+    public static void write(File dir, String csvRow, String json) {
+        dir.mkdirs();
+        File csv = new File(dir, "metrics.csv");
+        try {
+            boolean created = !csv.exists();
+            Writer out = new OutputStreamWriter(new FileOutputStream(csv, true), "UTF-8");
+            try {
+                if (created)
+                    out.write(getCsvHeader() + "\n");
+                out.write(csvRow + "\n");
+            } finally {
+                out.close();
+            }
+
+            /* Written to the side and renamed, so it is never half written */
+            File temp = new File(dir, "metrics.json.tmp");
+            out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                out.write(json);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(new File(dir, "metrics.json")))
+                temp.delete();
+        } catch (IOException e) {
+            Log.e(PaintPaint.NAME, "Couldn't write metrics: " + e);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.alizarinarts.paintpaint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.graphics.Bitmap;
+
+import android.util.Log;
+
+/**
+ * Reads the canvas's pixels back from its tiles into a Bitmap.
+ *
+ * Each drawn tile is read through the canvas framebuffer into a small
+ * staging buffer and its rows are copied in bulk with CanvasPixelOps,
+ * bottom row last, into one pooled buffer covering the whole region.  Tiles
+ * that were never drawn on are filled with the background color without
+ * touching the GPU.  OpenGL's RGBA bytes are already in the order an
+ * ARGB_8888 Bitmap keeps in memory, so no channel swizzle is needed and the
+ * buffer is copied straight into a reused Bitmap with copyPixelsFromBuffer().
+ *
+ * The buffers and the Bitmap are only reallocated when the region grows, so
+ * repeated readbacks of the same canvas allocate nothing.  Must be used on
+ * the OpenGL thread.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasReadback {
+
+    private static final int TILE_SIZE = CanvasTiles.TILE_SIZE;
+
+    /* The whole region, top row first as a Bitmap expects */
+    private ByteBuffer pixels;
+
+    /* One tile as read from OpenGL, bottom row first */
+    private ByteBuffer tilePixels;
+
+    /* A row of background colored pixels for undrawn tiles */
+    private ByteBuffer backgroundRow;
+
+    /* The Bitmap handed out by read(), reused while the size is the same */
+    private Bitmap bitmap;
+
+    /* Statistics of the last readback */
+    private long lastNanos;
+    private long lastBytesAllocated;
+
+    /**
+     * Read the bottom left corner of the canvas into a Bitmap.  The Bitmap
+     * is reused by the next call, so copy it if it needs to live longer.
+     *
+     * @param tiles The canvas to read
+     * @param w The width of the region to read in pixels
+     * @param h The height of the region to read in pixels
+     */
+    public Bitmap read(CanvasTiles tiles, int w, int h) {
+        return read(tiles, w, h, null);
+    }
+
+    /**
+     * Read the bottom left corner of the canvas into a Bitmap the caller
+     * owns, such as a snapshot for the saver.  Only the readback's own
+     * Bitmap counts as allocated here, so a pooled target reads back
+     * without allocating.
+     *
+     * @param tiles The canvas to read
+     * @param w The width of the region to read in pixels
+     * @param h The height of the region to read in pixels
+     * @param target A mutable ARGB_8888 Bitmap of w by h pixels, or null to
+     * use the readback's own
+     */
+    public Bitmap read(CanvasTiles tiles, int w, int h, Bitmap target) {
+        long start = System.nanoTime();
+        long allocated = 0;
+
+        int bytes = w * h * 4;
+        if (pixels == null || pixels.capacity() < bytes) {
+            pixels = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            allocated += bytes;
+        }
+        if (tilePixels == null) {
+            tilePixels = ByteBuffer.allocateDirect(TILE_SIZE * TILE_SIZE * 4);
+            backgroundRow = ByteBuffer.allocateDirect(TILE_SIZE * 4);
+            CanvasPixelOps.fill(backgroundRow, CanvasTiles.BACKGROUND, TILE_SIZE);
+            allocated += TILE_SIZE * TILE_SIZE * 4 + TILE_SIZE * 4;
+        }
+        if (target == null
+                && (bitmap == null || bitmap.getWidth() != w || bitmap.getHeight() != h)) {
+            if (bitmap != null)
+                bitmap.recycle();
+            bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            allocated += bytes;
+        }
+
+        int stride = w * 4;
+        for (int row = 0; row * TILE_SIZE < h; row++) {
+            int y = row * TILE_SIZE;
+            int th = Math.min(TILE_SIZE, h - y);
+            for (int column = 0; column * TILE_SIZE < w; column++) {
+                int x = column * TILE_SIZE;
+                int tw = Math.min(TILE_SIZE, w - x);
+                int rowBytes = tw * 4;
+                /* Flip as we go: canvas row y is Bitmap row h-1-y, so the
+                 * tile's rows end up starting at Bitmap row h-y-th */
+                int offset = (h - y - th) * stride + x * 4;
+                if (tiles.readTile(column, row, tw, th, tilePixels)) {
+                    CanvasPixelOps.copyRows(tilePixels, rowBytes, pixels, offset, stride,
+                            rowBytes, th, true);
+                } else {
+                    /* The same background row over and over */
+                    CanvasPixelOps.copyRows(backgroundRow, 0, pixels, offset, stride,
+                            rowBytes, th, true);
+                }
+            }
+        }
+
+        pixels.position(0);
+        pixels.limit(bytes);
+        Bitmap out = target != null ? target : bitmap;
+        out.copyPixelsFromBuffer(pixels);
+        pixels.clear();
+
+        lastNanos = System.nanoTime() - start;
+        lastBytesAllocated = allocated;
+        Log.d(PaintPaint.NAME, "Read back " + w + "x" + h + " in "
+                + lastNanos / 1000000f + "ms, allocated " + allocated + " bytes");
+        return out;
+    }
+
+    /**
+     * Time taken by the last readback in nanoseconds.
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * Bytes allocated by the last readback.  0 once the buffers are pooled.
+     */
+    public long getLastBytesAllocated() {
+        return lastBytesAllocated;
+    }
+
+}
@@ -1,14 +1,14 @@
 package com.alizarinarts.paintpaint;
 
+import java.io.File;
 import java.io.IOException;
 
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-
-import java.util.LinkedList;
-import java.util.Queue;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -17,6 +17,7 @@ import android.app.Activity;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 
@@ -24,18 +25,28 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import static android.opengl.GLES20.*;
+import android.opengl.EGL14;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 
+import android.os.Build;
+import android.os.SystemClock;
+
 import android.util.Log;
 
 /**
  * The OpenGL renderer responsible for creating and maintaining the canvas
  * surface.  This is where the drawing happens.
  *
- * The main idea behind this is that CanvasDab objects are added to a Queue and
- * then drawn to an invisible framebuffer texture.  This texture is then drawn
- * to a polygon on the screen framebuffer for display.
+ * The main idea behind this is that touch samples are added to a
+ * CanvasInputRing by the UI thread and then drawn to the invisible
+ * framebuffer textures of the canvas's tiles.  The visible tiles are then
+ * drawn as polygons on the screen framebuffer for display.
+ *
+ * Frames are only rendered when something changes.  Queueing dabs, clearing
+ * and loading a bitmap request a new frame from the view, and when the
+ * screen's contents are preserved between frames only the damaged part of it
+ * is presented.
  *
  * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
  */
@@ -47,14 +58,40 @@ public class CanvasRenderer implements GLSurfaceView.Renderer {
 
     private Bitmap restoreBitmap = null;
 
-    // The default value for the canvas texture dimensions
-    private int textureSize = 2048;
+    // The autosave to restore once the canvas exists, and the image to load
+    // instead if it is empty.
+    private CanvasTileStore restoreStore = null;
+    private File restoreFallback = null;
+
+    // Records the strokes drawn on the canvas.  May be null.
+    private CanvasJournal journal;
+
+    // Undo history of the canvas's tiles, one step per stroke
+    private CanvasHistory history;
 
+    // Resume timing: when the restore was asked for and how long it took
+    // from then until the canvas was ready.
+    private long resumeRequested;
+    private long lastResumeNanos;
+
+    // Set when the view pauses.  The OpenGL context is usually lost then, so
+    // the tiles can't be used until the surface has been created again.
+    private volatile boolean surfaceLost = false;
+
+    // The view this renderer draws to, used to request new frames.
+    private GLSurfaceView view;
+
+    // Picks the size of the document, which is 0 by 0 until it is known
+    private final CanvasSizing sizing;
+    private int documentWidth;
+    private int documentHeight;
+
+    // A unit square, scaled and moved into place to draw each tile
     private final float[] canvasVerticesData = {
-        -1.0f, -1.0f,  0.0f,
-         1.0f, -1.0f,  0.0f,
-        -1.0f,  1.0f,  0.0f,
-         1.0f,  1.0f,  0.0f,
+        0.0f, 0.0f,  0.0f,
+        1.0f, 0.0f,  0.0f,
+        0.0f, 1.0f,  0.0f,
+        1.0f, 1.0f,  0.0f,
     };
 
     private final float[] textureCoordData = {
@@ -64,19 +101,41 @@ public class CanvasRenderer implements GLSurfaceView.Renderer {
         1.0f, 1.0f,
     };
 
+    // Builds the shader programs, from the cache where it can
+    private final CanvasShaders shaders;
     CanvasShaderProgram canvasShaderProgram;
+    private CanvasShaderProgram brushShaderProgram;
     private int programId;
 
-    private int canvasTextureId;
-    private int canvasMaskId;
+    // The canvas's pixels
+    private CanvasTiles tiles;
 
     // Uniforms for GLSL programs.
     private int projectionMatrixHandle;
+
+    // Maps screen pixels, with the origin at the bottom left, to the screen.
     private float[] projectionMatrix = new float[16];
 
-    // Zoom level
+    // Where the canvas is on the screen.  The UI thread moves it and each
+    // frame draws with a copy of it, which is combined with the projection.
+    private final CanvasViewTransform viewTransform = new CanvasViewTransform();
+    private final CanvasViewTransform drawnTransform = new CanvasViewTransform();
+    private final float[] viewMatrix = new float[16];
+    private final float[] viewProjectionMatrix = new float[16];
+
+    // Color of the screen around the document, as RGBA
+    private static final int DESK = 0x808080ff;
+
+    // Shows the parts of the document that haven't been drawn on when the
+    // desk is showing
+    private int backgroundTexture;
+
+    // Size of the tile being drawn, and how much of its texture that is
     private int zoomHandle;
-    private float canvasZoom = 1.0f;
+    private int textureScaleHandle;
+
+    // Canvas position
+    private int offsetHandle;
 
     // Canvas size
     private int width;
@@ -86,19 +145,53 @@ public class CanvasRenderer implements GLSurfaceView.Renderer {
     private int aVertexPosition;
     private int aTextureCoord;
 
-    //private int uOffset;
-
     // OpenGL buffer identifiers
     private int canvasVerticesBuffer;
     private int textureCoordBuffer;
 
-    private int framebuffer;
+    // Framebuffers the tiles are drawn through and history pages are copied
+    // through, kept for the whole context rather than made per canvas
+    private int tileFramebuffer;
+    private int historyFramebuffer;
 
-    // The brush object used for drawing
+    // The brush object used for drawing and the backend it draws with
     CanvasBrush brush;
-
-    // The draw queue for brush events.
-    Queue<CanvasDab> drawQueue = new LinkedList<CanvasDab>();
+    private CanvasGLBackend glBackend;
+
+    // Region of the screen changed since the last frame.
+    private CanvasDamage damage = new CanvasDamage();
+
+    // Reads the canvas back for saving, keeping its buffers between saves.
+    private CanvasReadback readback = new CanvasReadback();
+
+    // True if the screen keeps its contents after a buffer swap so only the
+    // damaged region needs to be presented.
+    private boolean preservedSwap = false;
+
+    // Used to work out how many frames continuous rendering would have drawn.
+    private float refreshRate;
+    private long renderStartTime;
+    private long framesDrawn;
+
+    // The touch samples waiting to be drawn, written by the UI thread.
+    private final CanvasInputRing input;
+
+    // Where the frame time goes, and where and how often it is written.
+    private final CanvasMetrics metrics;
+    private final CanvasLatency latency;
+    private final String device;
+    private String glRenderer;
+    private volatile File metricsDir;
+    private volatile Executor metricsWriter;
+    private final long metricsDumpMillis;
+    private long lastMetricsDump;
+
+    // Queued after a frame with touch samples in it.  GLSurfaceView runs
+    // queued events at the top of its loop, after the last frame was
+    // swapped, so this sees the samples reach the screen.
+    private final Runnable swapped = new Runnable() {public void run() {
+        latency.swapped(System.nanoTime());
+    }};
 
     // Flag used to indicate if canvas should be cleared.
     boolean willClear = false;
@@ -107,183 +200,504 @@ public class CanvasRenderer implements GLSurfaceView.Renderer {
     // Set to true on the first instance of a brush stroke being drawn.
     boolean canAutosave = false;
 
-    public CanvasRenderer(Context context) {
+    public CanvasRenderer(Context context, GLSurfaceView view) {
+        this.view = view;
         settings = ((Activity)context).getPreferences(0);
         resources = context.getResources();
         assets = resources.getAssets();
+        shaders = new CanvasShaders(assets, new File(context.getCacheDir(), "shaders"));
+        sizing = new CanvasSizing(context);
+        refreshRate = ((Activity)context).getWindowManager().getDefaultDisplay().getRefreshRate();
+        String version = "";
+        try {
+            version = " " + context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Only the version is missing
+        }
+        device = Build.MANUFACTURER + " " + Build.MODEL + ", Android " + Build.VERSION.RELEASE
+                + ", " + PaintPaint.NAME + version;
+        metricsDumpMillis = settings.getInt("METRICS_DUMP_SECONDS", 30) * 1000L;
+        input = new CanvasInputRing(
+                settings.getInt("INPUT_CAPACITY", CanvasInputRing.DEFAULT_CAPACITY),
+                settings.getInt("INPUT_OVERFLOW", CanvasInputRing.OVERFLOW_COALESCE));
+        latency = new CanvasLatency(input.getCapacity());
+        metrics = new CanvasMetrics(latency);
     }
 
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
+        long start = System.nanoTime();
+
+        // Nothing is bound in a new context, and nothing made in the last
+        // one is left
+        CanvasGLState.reset();
+        if (CanvasGLResources.getLive() > 0)
+            CanvasGLResources.log("Context lost with");
+        CanvasGLResources.reset();
+        shaders.reset();
+        sizing.update();
+        glRenderer = glGetString(GL_RENDERER);
 
         // Create the shader program
-        canvasShaderProgram = new CanvasShaderProgram("shader.vert", "shader.frag", assets);
+        canvasShaderProgram = shaders.build("shader.vert", "canvas.frag");
         programId = canvasShaderProgram.getProgram();
 
-        glUseProgram(programId);
+        CanvasGLState.useProgram(programId);
 
-        aVertexPosition = glGetAttribLocation(programId, "aVertexPosition");
+        aVertexPosition = canvasShaderProgram.getVertexPositionLocation();
         glEnableVertexAttribArray(aVertexPosition);
 
-        aTextureCoord = glGetAttribLocation(programId, "aTextureCoord");
+        aTextureCoord = canvasShaderProgram.getTextureCoordLocation();
         glEnableVertexAttribArray(aTextureCoord);
 
+        projectionMatrixHandle = canvasShaderProgram.getProjMatrixLocation();
+        zoomHandle = canvasShaderProgram.getZoomLocation();
+        textureScaleHandle = canvasShaderProgram.getTextureScaleLocation();
+        offsetHandle = canvasShaderProgram.getOffsetLocation();
+
         /* Send Texture Coordinate data to the GPU */
-        int[] buffer = new int[1];
         FloatBuffer textureCoords = ByteBuffer.allocateDirect(textureCoordData.length * 4)
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
         textureCoords.put(textureCoordData).position(0);
-        glGenBuffers(1, buffer, 0);
-        textureCoordBuffer = buffer[0];
-        glBindBuffer(GL_ARRAY_BUFFER, textureCoordBuffer);
+        textureCoordBuffer = CanvasGLResources.genBuffer();
+        CanvasGLState.bindBuffer(GL_ARRAY_BUFFER, textureCoordBuffer);
         glBufferData(GL_ARRAY_BUFFER, textureCoords.capacity() * 4, textureCoords, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        CanvasGLResources.setBytes(CanvasGLResources.BUFFER, textureCoordBuffer,
+                textureCoords.capacity() * 4);
+
+        /* Send the tile polygon's vertices to the GPU */
+        FloatBuffer vertices = ByteBuffer.allocateDirect(canvasVerticesData.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        vertices.put(canvasVerticesData).position(0);
+        canvasVerticesBuffer = CanvasGLResources.genBuffer();
+        CanvasGLState.bindBuffer(GL_ARRAY_BUFFER, canvasVerticesBuffer);
+        glBufferData(GL_ARRAY_BUFFER, vertices.capacity() * 4, vertices, GL_STATIC_DRAW);
+        CanvasGLResources.setBytes(CanvasGLResources.BUFFER, canvasVerticesBuffer,
+                vertices.capacity() * 4);
+
+        // The canvas's tiles and their history belonged to the old context.
+        tiles = null;
+        history = null;
+        tileFramebuffer = CanvasGLResources.genFramebuffer();
+        historyFramebuffer = CanvasGLResources.genFramebuffer();
+
+        ByteBuffer background = ByteBuffer.allocateDirect(4);
+        CanvasPixelOps.fill(background, CanvasTiles.BACKGROUND, 1);
+        background.position(0);
+        backgroundTexture = CanvasUtils.makeTexture(1, 1, background);
 
         glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
 
         /* Create the brush */
-        brush = new CanvasBrush(programId);
-        try {
-            brush.setMask(BitmapFactory.decodeStream(assets.open("brushes/round.png")));
-        } catch (IOException e) {
-            Log.e(PaintPaint.NAME, "Failed to load brush mask.");
-        }
+        brushShaderProgram = shaders.build("shader.vert", "canvas.frag", CanvasShaders.BRUSH);
+        glBackend = new CanvasGLBackend(brushShaderProgram);
+        brush = new CanvasBrush(glBackend);
+        brush.setDamage(damage);
+        loadBrushTips();
         brush.setSize(settings.getFloat("BRUSH_SIZE", 1.0f));
-        brush.setColor(settings.getInt("BRUSH_COLOR", 0x000000ff));
-        brush.setDabSteps(settings.getInt("BRUSH_DABS", 45));
+        /* Colors saved before dabs were blended have no alpha, which would
+         * make the brush invisible */
+        int color = settings.getInt("BRUSH_COLOR", 0x000000ff);
+        brush.setColor((color & 0xff) == 0 ? color | 0xff : color);
+        brush.setSpacing(settings.getInt("BRUSH_SPACING", 10));
 
         glEnable(GL_CULL_FACE);
         glDisable(GL_DEPTH_TEST);
 
+        renderStartTime = SystemClock.uptimeMillis();
+        framesDrawn = 0;
 
+        Log.d(PaintPaint.NAME, "Surface created in " + (System.nanoTime() - start) / 1000000f
+                + "ms, " + shaders.getNanos() / 1000000f + "ms of it on shaders ("
+                + shaders.getBuilt() + " compiled, " + shaders.getLoaded() + " cached)");
+        CanvasGLResources.log("Surface created with");
     }
 
-    public void onDrawFrame(GL10 glUnused) {
-
-        glClear(GL_COLOR_BUFFER_BIT);
+    /**
+     * Delete every OpenGL object the renderer made.  Called on the OpenGL
+     * thread when the view pauses, after the autosave, so nothing is left
+     * for the driver to clean up when the context goes.  The canvas is made
+     * again when the surface is.
+     */
+    public void release() {
+        surfaceLost = true;
+        if (tiles != null)
+            tiles.delete();
+        if (history != null)
+            history.delete();
+        tiles = null;
+        history = null;
+        if (glBackend != null)
+            glBackend.delete();
+        CanvasGLState.deleteBuffer(canvasVerticesBuffer);
+        CanvasGLState.deleteBuffer(textureCoordBuffer);
+        CanvasGLState.deleteFramebuffer(tileFramebuffer);
+        CanvasGLState.deleteFramebuffer(historyFramebuffer);
+        CanvasGLState.deleteTexture(backgroundTexture);
+        backgroundTexture = 0;
+        canvasVerticesBuffer = 0;
+        textureCoordBuffer = 0;
+        tileFramebuffer = 0;
+        historyFramebuffer = 0;
+        if (canvasShaderProgram != null)
+            CanvasGLState.deleteProgram(canvasShaderProgram.getProgram());
+        if (brushShaderProgram != null)
+            CanvasGLState.deleteProgram(brushShaderProgram.getProgram());
+        canvasShaderProgram = null;
+        brushShaderProgram = null;
+
+        CanvasGLResources.log("Released GL objects, left");
+        if (CanvasGLResources.getLive() != 0)
+            Log.w(PaintPaint.NAME, "Leaked " + CanvasGLResources.getLive() + " GL objects");
+    }
 
-        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+    public void onDrawFrame(GL10 glUnused) {
+        // Nothing can be drawn between release() and the next surface
+        if (tiles == null)
+            return;
+        CanvasTrace.begin("PaintPaint frame");
+        long frameStart = System.nanoTime();
 
         if (willClear) {
             Log.d(PaintPaint.NAME, "Clearing Canvas");
-            glClear(GL_COLOR_BUFFER_BIT);
+            tiles.clear();
+            if (journal != null)
+                journal.clear();
             willClear = false;
+            damage.includeAll();
         }
 
-        // Setup the projection matrix and get the zoom level uniform identifier
-        projectionMatrixHandle = glGetUniformLocation(programId, "uProjMatrix");
-        glUniformMatrix4fv(projectionMatrixHandle, 1, false,
-                projectionMatrix, 0);
-        zoomHandle = glGetUniformLocation(programId, "uZoom");
+        /* This is where all the brush marks are drawn to the tiles */
+        CanvasTrace.begin("PaintPaint draw input");
+        int drained = drawInput();
+        CanvasTrace.end();
 
-        // Allow autosaving when something has been drawn to the canvas.
-        if (!canAutosave && drawQueue.size() > 0)
-            canAutosave = true;
+        CanvasTrace.begin("PaintPaint display");
 
-        /* This is where all the brush marks are drawn to the framebuffer */
-        brush.drawQueue(drawQueue);
+        /* Take the view for this frame.  Moving the view changes all of the
+         * screen. */
+        if (drawnTransform.getVersion() != viewTransform.getVersion()) {
+            drawnTransform.set(viewTransform);
+            damage.includeAll();
+        }
 
-        glUseProgram(programId);
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        /* Draw the tiles to the screen, limited to what changed if the rest
+         * of the screen is still there from the last frame.  If nothing
+         * changed the last frame is still on the screen and there is
+         * nothing to draw. */
+        if (!preservedSwap)
+            damage.includeAll();
+        damage.transform(drawnTransform);
+        int tileDraws = 0;
+        if (damage.isEmpty()) {
+            damage.skipPresent();
+        } else {
+            tileDraws = present();
+            framesDrawn++;
+        }
+        damage.reset();
+        CanvasTrace.end();
+
+        /* Everything for the frame has been issued.  The samples in it reach
+         * the screen once it is swapped. */
+        if (latency.hasSamples()) {
+            latency.submitted(System.nanoTime());
+            view.queueEvent(swapped);
+        }
+
+        CanvasGLState.endFrame();
+        glBackend.getBatch().endFrame();
+        recordFrame(System.nanoTime() - frameStart, drained, tileDraws);
+        CanvasTrace.end();
+    }
+
+    /*
+     * Draw the damaged part of the canvas to the screen.  Returns the number
+     * of tiles drawn.
+     */
+    private int present() {
+        int tileDraws = 0;
 
-        /* Draw the framebuffer to the screen */
+        CanvasGLState.useProgram(programId);
+        CanvasGLState.bindFramebuffer(0);
+        CanvasGLState.noBlend();
+        glViewport(0, 0, width, height);
 
-        // Set canvas zoom level
-        glUniform1f(zoomHandle, canvasZoom);
-        // Enable the texture
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, canvasTextureId);
-        glUniform1i(glGetUniformLocation(programId, "uTexture"), 0);
+        drawnTransform.getMatrix(viewMatrix);
+        Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+
+        /* Find the part of the canvas under the screen from where the
+         * screen's corners are on it */
+        float left = Math.min(Math.min(drawnTransform.canvasX(0, 0), drawnTransform.canvasX(width, 0)),
+                Math.min(drawnTransform.canvasX(0, height), drawnTransform.canvasX(width, height)));
+        float right = Math.max(Math.max(drawnTransform.canvasX(0, 0), drawnTransform.canvasX(width, 0)),
+                Math.max(drawnTransform.canvasX(0, height), drawnTransform.canvasX(width, height)));
+        float bottom = Math.min(Math.min(drawnTransform.canvasY(0, 0), drawnTransform.canvasY(width, 0)),
+                Math.min(drawnTransform.canvasY(0, height), drawnTransform.canvasY(width, height)));
+        float top = Math.max(Math.max(drawnTransform.canvasY(0, 0), drawnTransform.canvasY(width, 0)),
+                Math.max(drawnTransform.canvasY(0, height), drawnTransform.canvasY(width, height)));
+
+        /* When the document covers the screen the tiles that haven't been
+         * drawn on are just cleared to the background.  Otherwise the
+         * screen is cleared to the desk and the document's blank tiles are
+         * drawn over it. */
+        boolean covered = left >= 0 && bottom >= 0 && right <= documentWidth && top <= documentHeight;
+        int clearColor = covered ? CanvasTiles.BACKGROUND : DESK;
+        glClearColor((clearColor >>> 24) / 255f, ((clearColor >> 16) & 0xff) / 255f,
+                ((clearColor >> 8) & 0xff) / 255f, (clearColor & 0xff) / 255f);
+
+        /* Limit drawing to the damage when it isn't the whole screen */
+        boolean scissored = damage.scissor(width, height);
+        glClear(GL_COLOR_BUFFER_BIT);
 
-        glActiveTexture(GL_TEXTURE1);
-        glBindTexture(GL_TEXTURE_2D, canvasMaskId);
-        glUniform1i(glGetUniformLocation(programId, "uMask"), 1);
+        // Setup the screen projection matrix
+        glUniformMatrix4fv(projectionMatrixHandle, 1, false,
+                viewProjectionMatrix, 0);
 
         // Enable the vertex buffer
-        glBindBuffer(GL_ARRAY_BUFFER, canvasVerticesBuffer);
+        CanvasGLState.bindBuffer(GL_ARRAY_BUFFER, canvasVerticesBuffer);
         glEnableVertexAttribArray(aVertexPosition);
         glVertexAttribPointer(aVertexPosition, 3, GL_FLOAT, false, 0, 0);
 
-        // Set the offset
-        glUniform2f(glGetUniformLocation(programId, "uOffset"), 0, 0);
-
-        // Enable the texture
-        glBindBuffer(GL_ARRAY_BUFFER, textureCoordBuffer);
+        // Enable the texture coordinates
+        CanvasGLState.bindBuffer(GL_ARRAY_BUFFER, textureCoordBuffer);
         glEnableVertexAttribArray(aTextureCoord);
         glVertexAttribPointer(aTextureCoord, 2, GL_FLOAT, false, 0, 0);
 
-        glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+        /* Only the tiles that are on screen need to be drawn.  Zoomed out,
+         * they are drawn from their mipmaps, which are brought up to date
+         * first. */
+        boolean minified = drawnTransform.getScale() < 1;
+        int firstColumn = Math.max(0, (int) Math.floor(left / CanvasTiles.TILE_SIZE));
+        int lastColumn = Math.min(tiles.getColumns(), (int) Math.ceil(right / CanvasTiles.TILE_SIZE));
+        int firstRow = Math.max(0, (int) Math.floor(bottom / CanvasTiles.TILE_SIZE));
+        int lastRow = Math.min(tiles.getRows(), (int) Math.ceil(top / CanvasTiles.TILE_SIZE));
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int column = firstColumn; column < lastColumn; column++) {
+                int texture = tiles.getTexture(column, row);
+                if (texture == 0 && covered)
+                    continue;
+                /* Tiles on the document's right and top edges are only
+                 * partly inside it */
+                float x = column * CanvasTiles.TILE_SIZE;
+                float y = row * CanvasTiles.TILE_SIZE;
+                float w = Math.min(CanvasTiles.TILE_SIZE, documentWidth - x);
+                float h = Math.min(CanvasTiles.TILE_SIZE, documentHeight - y);
+                if (scissored && !isDamaged(x, y, x + w, y + h))
+                    continue;
+                if (texture == 0)
+                    texture = backgroundTexture;
+                else if (minified)
+                    tiles.updateMipmaps(column, row);
+                CanvasGLState.bindTexture(0, texture);
+                glUniform2f(offsetHandle, x, y);
+                glUniform2f(zoomHandle, w, h);
+                glUniform2f(textureScaleHandle, w / CanvasTiles.TILE_SIZE, h / CanvasTiles.TILE_SIZE);
+                glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+                tileDraws++;
+            }
+        }
+
+        if (scissored)
+            glDisable(GL_SCISSOR_TEST);
+        return tileDraws;
+    }
 
-        /* Unbind everything */
-        glBindTexture(GL_TEXTURE_2D, 0);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    /*
+     * Record a frame in the metrics and write them out if it is time to.
+     * The frame's counters have just been finished, so their last frame is
+     * this one.
+     */
+    private void recordFrame(long nanos, int drained, int tileDraws) {
+        CanvasDabBatch batch = glBackend.getBatch();
+        metrics.recordFrame(nanos, batch.getDabsPerFrame(), drained,
+                CanvasGLState.getCallsIssued() + batch.getDrawCallsPerFrame() + tileDraws);
+        metrics.setMemory(CanvasGLResources.getBytes(CanvasGLResources.TEXTURE),
+                CanvasGLResources.getBytes(CanvasGLResources.BUFFER), CanvasGLResources.getLive());
+
+        long now = SystemClock.uptimeMillis();
+        if (lastMetricsDump == 0)
+            lastMetricsDump = now;
+        File dir = metricsDir;
+        Executor writer = metricsWriter;
+        if (dir == null || writer == null || metricsDumpMillis <= 0
+                || now - lastMetricsDump < metricsDumpMillis)
+            return;
+        lastMetricsDump = now;
+        String name = device + ", " + glRenderer;
+        final String row = metrics.toCsvRow(name);
+        final String json = metrics.toJson(name);
+        metrics.resetWindow();
+        final File metricsDir = dir;
+        writer.execute(new Runnable() {public void run() {
+            CanvasMetrics.write(metricsDir, row, json);
+        }});
+    }
 
+    /*
+     * Return true if the screen bounds of a rectangle of the canvas overlap
+     * the damaged region.
+     */
+    private boolean isDamaged(float l, float b, float r, float t) {
+        CanvasViewTransform view = drawnTransform;
+        float x0 = view.screenX(l, b), x1 = view.screenX(r, b);
+        float x2 = view.screenX(l, t), x3 = view.screenX(r, t);
+        float y0 = view.screenY(l, b), y1 = view.screenY(r, b);
+        float y2 = view.screenY(l, t), y3 = view.screenY(r, t);
+        return damage.intersects(Math.min(Math.min(x0, x1), Math.min(x2, x3)),
+                Math.min(Math.min(y0, y1), Math.min(y2, y3)),
+                Math.max(Math.max(x0, x1), Math.max(x2, x3)),
+                Math.max(Math.max(y0, y1), Math.max(y2, y3)));
     }
 
     public void onSurfaceChanged(GL10 glUnused, int width, int height) {
         // Adjust camera/rendering parameters
         glViewport(0, 0, width, height);
 
-        float aspectRatio = (float) height / width;
-        Matrix.orthoM(projectionMatrix, 0, -1.0f, 1.0f, -aspectRatio, aspectRatio, -1f, 1f);
+        // Ask EGL to keep the screen's contents between frames so only the
+        // damaged part of it has to be redrawn.  The surface is new so the
+        // first frame always redraws everything.
+        preservedSwap = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            preservedSwap = EGL14.eglSurfaceAttrib(EGL14.eglGetCurrentDisplay(),
+                    EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+                    EGL14.EGL_SWAP_BEHAVIOR, EGL14.EGL_BUFFER_PRESERVED);
+        }
+        Log.d(PaintPaint.NAME, "Preserved buffer swap: " + preservedSwap);
+        damage.includeAll();
+
+        Matrix.orthoM(projectionMatrix, 0, 0f, width, 0f, height, -1f, 1f);
+        brush.setPixelScale(width / 2f);
+
+        this.width = width;
+        this.height = height;
 
-        /* Load Textures */
-        if (width <= textureSize / 2 && height <= textureSize / 2)
-            textureSize /= 2; // Half textureSize if we can to save memory
-        canvasTextureId = CanvasUtils.makeTexture(restoreBitmap, textureSize, textureSize);
+        /* Create the canvas at the size of the last document, or of the
+         * screen if there wasn't one.  Its tiles are only allocated once
+         * drawn on. */
+        if (documentWidth == 0) {
+            int[] size = sizing.fit(settings.getInt("CANVAS_WIDTH", width),
+                    settings.getInt("CANVAS_HEIGHT", height));
+            documentWidth = size[0];
+            documentHeight = size[1];
+            viewTransform.fit(documentWidth, documentHeight, width, height);
+        }
+        resizeCanvas(documentWidth, documentHeight);
+        surfaceLost = false;
         if (restoreBitmap != null) {
+            openBitmap(restoreBitmap);
             restoreBitmap = null;
         }
-        canvasMaskId = CanvasUtils.makeTexture(null, 8, 8);
+        if (restoreStore != null) {
+            restoreCanvas(restoreStore, restoreFallback);
+        }
+    }
 
-        /* Send the canvas polygon's vertices to the GPU */
-        FloatBuffer vertices = ByteBuffer.allocateDirect(canvasVerticesData.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        float l = 2f*textureSize/width;
-        float h = 2f*textureSize*aspectRatio/height;
-        vertices.put(new float[]{
-                -1.0f,     -aspectRatio,   0f,
-                l - 1,     -aspectRatio,   0f,
-                -1.0f,  h - aspectRatio,   0f,
-                l - 1,  h - aspectRatio,   0f})
-            .position(0);
-        int[] buffer = new int[1];
-        glGenBuffers(1, buffer, 0);
-        canvasVerticesBuffer = buffer[0];
-        glBindBuffer(GL_ARRAY_BUFFER, canvasVerticesBuffer);
-        glBufferData(GL_ARRAY_BUFFER, vertices.capacity() * 4, vertices, GL_STATIC_DRAW);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-
-
-        /* Create framebuffer 
-         * Reference: http://www.songho.ca/opengl/gl_fbo.html
-         * Reference: http://www.opengl.org/wiki/GLAPI/glFramebufferRenderbuffer
-         * */
-        glGenFramebuffers(1, buffer, 0);
-        framebuffer = buffer[0];
-        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
-        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, canvasTextureId, 0);
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
-
-        switch(glCheckFramebufferStatus(GL_FRAMEBUFFER)) {
-        case GL_FRAMEBUFFER_COMPLETE:
-            Log.d(PaintPaint.NAME,"The fbo is complete");
-            break;
-        case GL_FRAMEBUFFER_INCOMPLETE_ATTACHMENT:
-            Log.d(PaintPaint.NAME,"GL_FRAMEBUFFER_INCOMPLETE_ATTACHMENT");
-            break;
-        case GL_FRAMEBUFFER_INCOMPLETE_MISSING_ATTACHMENT:
-            Log.d(PaintPaint.NAME,"GL_FRAMEBUFFER_INCOMPLETE_MISSING_ATTACHMENT");
-            break;   
-        case GL_FRAMEBUFFER_INCOMPLETE_DIMENSIONS:
-            Log.d(PaintPaint.NAME,"GL_FRAMEBUFFER_INCOMPLETE_DIMENSIONS");
-            break;
+    /*
+     * Make the canvas a new size, or create it if there isn't one.  A canvas
+     * that is already the right size is kept along with its drawing.
+     */
+    private void resizeCanvas(int w, int h) {
+        if (tiles == null || tiles.getWidth() != w || tiles.getHeight() != h) {
+            if (tiles != null)
+                tiles.delete();
+            tiles = new CanvasTiles(w, h, tileFramebuffer);
+            if (history != null)
+                history.delete();
+            history = new CanvasHistory(tiles,
+                    settings.getInt("HISTORY_BUDGET_MB", 32) * (1L << 20),
+                    settings.getInt("HISTORY_GPU_MB", 16) * (1L << 20), historyFramebuffer);
+            tiles.setHistory(history);
+            Log.d(PaintPaint.NAME, "Canvas is " + w + "x" + h + ", "
+                    + CanvasSizing.getTileBytes(w, h) / (1 << 20) + "MB once fully drawn");
         }
-        
-        this.width = width;
-        this.height = height;
+        glBackend.setTiles(tiles);
+        documentWidth = w;
+        documentHeight = h;
+
+        /* Remember the size so the autosave can be restored into it */
+        if (settings.getInt("CANVAS_WIDTH", 0) != w || settings.getInt("CANVAS_HEIGHT", 0) != h) {
+            SharedPreferences.Editor edit = settings.edit();
+            edit.putInt("CANVAS_WIDTH", w);
+            edit.putInt("CANVAS_HEIGHT", h);
+            edit.commit();
+        }
+    }
+
+    /*
+     * Open an image as the document at its own size, or as much of it as
+     * this device can hold.  A null image opens a blank document the size of
+     * the screen.
+     */
+    private void openBitmap(Bitmap bitmap) {
+        int w = bitmap != null ? bitmap.getWidth() : width;
+        int h = bitmap != null ? bitmap.getHeight() : height;
+        int[] size = sizing.fit(w, h);
+        if (bitmap != null && (size[0] != w || size[1] != h)) {
+            Log.d(PaintPaint.NAME, "Scaling " + w + "x" + h + " image down to fit");
+            bitmap = Bitmap.createScaledBitmap(bitmap, size[0], size[1], true);
+        }
+        resizeCanvas(size[0], size[1]);
+        loadBitmap(bitmap);
+        viewTransform.fit(size[0], size[1], width, height);
+    }
 
+    /**
+     * Show the whole document in the middle of the screen, unrotated and no
+     * larger than 1:1.  Must be called on the OpenGL thread.
+     */
+    public void fitView() {
+        if (tiles == null)
+            return;
+        viewTransform.fit(tiles.getWidth(), tiles.getHeight(), width, height);
+        view.requestRender();
+    }
+
+    /**
+     * Where the canvas is shown on the screen.  The UI thread may change it
+     * and then call viewChanged().
+     */
+    public CanvasViewTransform getViewTransform() {
+        return viewTransform;
+    }
+
+    /**
+     * Show the canvas where the view transform now puts it.
+     */
+    public void viewChanged() {
+        view.requestRender();
+    }
+
+    /*
+     * Add every brush tip in the brushes asset folder to the brush, in order
+     * of their names, and select the one in the settings.  The round tip is
+     * the default.
+     */
+    private void loadBrushTips() {
+        String[] names;
+        try {
+            names = assets.list("brushes");
+        } catch (IOException e) {
+            Log.e(PaintPaint.NAME, "Failed to list brush masks.");
+            return;
+        }
+        Arrays.sort(names);
+        int round = 0;
+        for (String name : names) {
+            try {
+                int tip = brush.addMask(BitmapFactory.decodeStream(assets.open("brushes/" + name)));
+                if (name.equals("round.png"))
+                    round = tip;
+            } catch (IOException e) {
+                Log.e(PaintPaint.NAME, "Failed to load brush mask " + name);
+            }
+        }
+        if (brush.getMaskCount() > 0) {
+            int tip = settings.getInt("BRUSH_MASK", round);
+            brush.selectMask(tip < brush.getMaskCount() ? tip : round);
+        }
     }
 
     /**
@@ -295,68 +709,342 @@ public class CanvasRenderer implements GLSurfaceView.Renderer {
      * @param bitmap The bitmap to load as to the canvas.
      */
     public void setCanvasBitmap(Bitmap bitmap) {
-        restoreBitmap = bitmap;
-        int newTexture = CanvasUtils.makeTexture(bitmap, textureSize, textureSize);
-        if (canvasTextureId != 0)
-            glDeleteTextures(1, new int[]{canvasTextureId}, 0);
-        canvasTextureId = newTexture;
+        if (tiles != null && !surfaceLost) {
+            openBitmap(bitmap);
+        } else {
+            // The canvas doesn't exist yet so load it once it's created.
+            restoreBitmap = bitmap;
+        }
+        damage.includeAll();
+        view.requestRender();
     }
 
     /**
-     * Return the canvas as a Bitmap.
-     * Based on example from:
-     * http://www.anddev.org/how_to_get_opengl_screenshot__useful_programing_hint-t829.html
+     * Called from the UI thread when the view is paused.  Loading and
+     * restoring the canvas wait for the surface to be created again after
+     * this, since events queued on resume can run before it is.
      */
-    public Bitmap getCanvasBitmap() {
-        int b[] = new int[width*height];
-        int bt[] = new int[width*height];
-        IntBuffer ib = IntBuffer.wrap(b);
-        ib.position(0);
-        glReadPixels(0,0,width,height, GL_RGBA, GL_UNSIGNED_BYTE, ib);
-
-        /* OpenGL -> Android Bitmap correction */
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                int pix = b[i * width + j];
-                int pb = (pix >> 16) & 0x000000ff;
-                int pr = (pix << 16) & 0x00ff0000;
-                int pix1 = (pix & 0xff00ff00) | pr | pb;
-                bt[(height - i - 1) * width + j]= pix1;
-            }
+    public void onPause() {
+        surfaceLost = true;
+    }
+
+    /**
+     * Restore the canvas from the tile autosave, loading an image instead if
+     * there is no autosave.  Used when returning to the canvas.
+     *
+     * @param store The autosave to restore
+     * @param fallback An image to load if the autosave is empty, may be null
+     */
+    public void restoreCanvas(CanvasTileStore store, File fallback) {
+        if (restoreStore == null)
+            resumeRequested = System.nanoTime();
+        if (tiles == null || surfaceLost) {
+            // The canvas doesn't exist yet so restore it once it's created.
+            restoreStore = store;
+            restoreFallback = fallback;
+            return;
+        }
+        restoreStore = null;
+        restoreFallback = null;
+        long start = System.nanoTime();
+        String source;
+        if (history != null)
+            history.reset();
+        if (store.restore(tiles)) {
+            source = store.wasLastRestoreCached() ? "resume cache" : "tile store";
+        } else if (replayJournal()) {
+            source = "stroke journal";
+        } else {
+            Bitmap bitmap = null;
+            if (fallback != null && fallback.exists())
+                bitmap = BitmapFactory.decodeFile(fallback.getPath());
+            loadBitmap(bitmap);
+            source = bitmap != null ? fallback.getName() : "nothing";
         }
+        long end = System.nanoTime();
+        lastResumeNanos = end - resumeRequested;
+        Log.d(PaintPaint.NAME, "Resumed canvas from " + source + " in "
+                + (end - start) / 1000000f + "ms, " + lastResumeNanos / 1000000f
+                + "ms after it was requested");
+        damage.includeAll();
+        view.requestRender();
+    }
+
+    /*
+     * Replace the canvas with an image.  The journal can't reproduce the
+     * image so it starts again from here.
+     */
+    private void loadBitmap(Bitmap bitmap) {
+        tiles.load(bitmap);
+        if (journal != null)
+            journal.reset();
+    }
 
+    /**
+     * Rebuild the canvas by replaying the stroke journal.  Returns false if
+     * there is no journal to replay.  Must be called on the OpenGL thread.
+     */
+    public boolean replayJournal() {
+        if (journal == null || tiles == null)
+            return false;
+        try {
+            journal.flush();
+            journal.waitForWrites();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!new CanvasJournalReader(journal.getDirectory()).exists())
+            return false;
+        tiles.clear();
+        long fragments = glBackend.getBatch().getFragments();
+        long start = System.nanoTime();
+        boolean replayed = new CanvasReplay(brush, history).replay(journal.getDirectory());
+
+        /* A replay is a long run of nothing but dabs, so it gives the fill
+         * rate of the brush once the GPU has caught up */
+        glFinish();
+        long nanos = System.nanoTime() - start;
+        Log.d(PaintPaint.NAME, "Replay fill rate: "
+                + (glBackend.getBatch().getFragments() - fragments) * 1000f / nanos
+                + " megapixels per second");
+        damage.includeAll();
+        view.requestRender();
+        return replayed;
+    }
+
+    /**
+     * Return the whole document as a Bitmap, read from the canvas's tiles
+     * rather than the screen.  The Bitmap is reused by the next call.
+     * Returns null if nothing has been drawn yet.
+     */
+    public Bitmap getCanvasBitmap() {
         Log.d(PaintPaint.NAME, "canAutosave = " + canAutosave);
-        Bitmap sb;
-        if (canAutosave) {
-            sb = Bitmap.createBitmap(bt, width, height, Bitmap.Config.RGB_565);
-        } else {
-            sb = null;
+        if (!canAutosave || tiles == null)
+            return null;
+
+        Bitmap bitmap = readback.read(tiles, tiles.getWidth(), tiles.getHeight());
+        metrics.recordReadback(readback.getLastNanos());
+        return bitmap;
+    }
+
+    /**
+     * Read the whole document into a snapshot taken from the saver's pool,
+     * which the saver hands back once it has been written.  Returns null if
+     * nothing has been drawn yet.
+     */
+    public Bitmap getCanvasSnapshot(CanvasSaver saver) {
+        if (!canAutosave || tiles == null)
+            return null;
+
+        int w = tiles.getWidth();
+        int h = tiles.getHeight();
+        Bitmap snapshot = readback.read(tiles, w, h, saver.obtainSnapshot(w, h));
+        metrics.recordReadback(readback.getLastNanos());
+        return snapshot;
+    }
+
+    /*
+     * Draw the touch samples waiting in the input ring, which are already in
+     * canvas pixels.  Returns the number drawn.
+     */
+    private int drawInput() {
+        int n = input.size();
+        if (n == 0)
+            return 0;
+
+        // Allow autosaving when something has been drawn to the canvas.
+        canAutosave = true;
+
+        /* Event times are uptime milliseconds, on the same clock as
+         * System.nanoTime() */
+        latency.beginFrame(System.nanoTime());
+        for (int i = 0; i < n; i++) {
+            latency.addSample(input.getPointer(i), input.getFlags(i),
+                    input.getTime(i) * 1000000, input.getCommitTime(i));
         }
-        return sb;
+
+        if (journal != null) {
+            for (int i = 0; i < brush.getMaskCount(); i++)
+                journal.defineMask(i, brush.getMaskWidth(i), brush.getMaskHeight(i), brush.getMask(i));
+            journal.setBrush(brush.getSize(), brush.getColor(), brush.getSpacing(),
+                    brush.getPixelScale(), brush.getMaskIndex());
+        }
+
+        brush.beginDraw();
+        for (int i = 0; i < n; i++) {
+            int pointer = input.getPointer(i);
+            float x = input.getX(i);
+            float y = input.getY(i);
+            float p = input.getPressure(i);
+            int flags = input.getFlags(i);
+            if (journal != null)
+                journal.addSample(pointer, x, y, p, flags, input.getTime(i));
+            /* Strokes drawn together with several fingers share an undo
+             * step, so a finger landing mid stroke doesn't split it */
+            if (history != null && CanvasDab.isNewStroke(flags)
+                    && !brush.isOtherStrokeActive(pointer)) {
+                /* Draw the dabs before the stroke so they aren't part of
+                 * its undo step */
+                brush.endDraw();
+                history.beginStep();
+                brush.beginDraw();
+            }
+            brush.addSample(pointer, x, y, p, flags);
+        }
+        input.advance(n);
+        brush.endDraw();
+        return n;
     }
 
     /**
-     * Add a new brush dab to the draw queue.
+     * Add a new brush dab to the input ring.  Called from the UI thread.
+     * Nothing is allocated, so this is safe to call for every touch sample.
+     * The dab isn't drawn until submitCanvasDabs() is called.
+     *
+     * The touch is mapped back through the view transform to the canvas
+     * pixel under it, with the origin at the bottom left.
      *
-     * @param x The X coordinate
-     * @param y The y coordinate
+     * @param x The X coordinate in screen pixels
+     * @param y The y coordinate in screen pixels
      * @param p The pressure of the dab
+     * @param flags CanvasDab stroke flags
+     * @param time The event time of the sample in milliseconds
+     * @param pointer The id of the pointer that made the dab
      */
-    public void addCanvasDab(int x, int y, float p, boolean newEvent) {
-        float offsetX = ((float)x - (width / 2))/width*2;
-        float offsetY = -((float)y - (height / 2))/height*2;
+    public void addCanvasDab(float x, float y, float p, int flags, long time, int pointer) {
+        y = view.getHeight() - y;
+        input.offer(viewTransform.canvasX(x, y), viewTransform.canvasY(x, y), p, flags, time,
+                pointer);
+    }
 
-        drawQueue.offer(new CanvasDab(offsetX, offsetY, p, newEvent));
+    /**
+     * Hand all of the dabs added since the last call to the renderer at once
+     * and request a frame to draw them.  Called from the UI thread.
+     */
+    public void submitCanvasDabs() {
+        input.commit();
+        view.requestRender();
+    }
+
+    public CanvasInputRing getInput() {
+        return input;
+    }
+
+    /**
+     * Undo the last stroke.  Must be called on the OpenGL thread.  Returns
+     * false if there was nothing to undo.
+     */
+    public boolean undo() {
+        if (history == null || !history.undo())
+            return false;
+        if (journal != null)
+            journal.undo();
+        Log.d(PaintPaint.NAME, "Undo took " + history.getLastUndoNanos() / 1000000f + "ms, "
+                + history.getBytes() + " bytes of history");
+        damage.includeAll();
+        view.requestRender();
+        return true;
+    }
+
+    /**
+     * Redo the last stroke undone.  Must be called on the OpenGL thread.
+     * Returns false if there was nothing to redo.
+     */
+    public boolean redo() {
+        if (history == null || !history.redo())
+            return false;
+        if (journal != null)
+            journal.redo();
+        damage.includeAll();
+        view.requestRender();
+        return true;
+    }
+
+    /**
+     * The canvas's undo history, or null if the surface hasn't been created
+     * yet.  Only use it on the OpenGL thread.
+     */
+    public CanvasHistory getHistory() {
+        return history;
     }
 
     /* Sets a flag that tells the renderer to clear the canvas to the background
      * color. */
     public void clear() {
         willClear = true;
+        view.requestRender();
+    }
+
+    /**
+     * Return the number of frames continuous rendering would have drawn
+     * since the surface was created that were skipped because nothing
+     * changed.  Frames that only swapped a preserved screen again count as
+     * skipped.
+     */
+    public long getIdleFramesAvoided() {
+        long elapsed = SystemClock.uptimeMillis() - renderStartTime;
+        long continuousFrames = (long) (elapsed * refreshRate / 1000f);
+        return Math.max(0, continuousFrames - framesDrawn);
+    }
+
+    /**
+     * The canvas, or null if the surface hasn't been created yet.  Only use
+     * it on the OpenGL thread.
+     */
+    public CanvasTiles getTiles() {
+        return tiles;
+    }
+
+    /**
+     * Time from asking for the canvas to be restored until it was ready, in
+     * nanoseconds, for the last resume.
+     */
+    public long getLastResumeNanos() {
+        return lastResumeNanos;
+    }
+
+    public CanvasReadback getReadback() {
+        return readback;
+    }
+
+    /**
+     * The renderer's metrics.  They may be read on any thread.
+     */
+    public CanvasMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Write the metrics to a directory every so often, on a background
+     * thread.
+     *
+     * @param dir The directory, or null to stop writing them
+     * @param writer Runs the writes
+     */
+    public void setMetricsDump(File dir, Executor writer) {
+        metricsWriter = writer;
+        metricsDir = dir;
+    }
+
+    public CanvasDamage getDamage() {
+        return damage;
     }
 
     public CanvasBrush getBrush() {
         return brush;
     }
 
+    /**
+     * Record the strokes drawn on the canvas in a journal from now on.
+     * Must be called on the OpenGL thread.
+     */
+    public void setJournal(CanvasJournal journal) {
+        this.journal = journal;
+    }
+
+    public CanvasJournal getJournal() {
+        return journal;
+    }
+
 }
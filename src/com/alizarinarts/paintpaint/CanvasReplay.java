@@ -0,0 +1,163 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Rebuilds a canvas by drawing the strokes recorded in a CanvasJournal with
+ * a brush, as fast as the brush's backend can draw them.
+ *
+ * The samples are not drawn frame by frame.  They are handed to the brush in
+ * large batches between beginDraw() and endDraw(), which are only split
+ * early when the brush settings change or a stroke starts, so that each
+ * stroke is its own undo step.  The event times are ignored.
+ *
+ * The brush's own settings are put back once the replay has finished.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasReplay implements CanvasJournalReader.Handler {
+
+    /* Samples drawn between each beginDraw() and endDraw() */
+    private static final int BATCH_SAMPLES = 4096;
+
+    private final CanvasBrush brush;
+    private final CanvasHistory history;
+    private int batched;
+
+    /* The brush's number for each tip number in the journal */
+    private int[] masks = new int[0];
+
+    /* Statistics of the last replay */
+    private long samples;
+    private long nanos;
+
+    /**
+     * @param brush The brush to draw the strokes with
+     * @param history The history of the canvas the brush draws on, which
+     * the recorded undos are replayed with.  May be null.
+     */
+    public CanvasReplay(CanvasBrush brush, CanvasHistory history) {
+        this.brush = brush;
+        this.history = history;
+    }
+
+    /**
+     * Draw every stroke in a journal onto the canvas the brush draws on.
+     * The canvas isn't cleared first.
+     *
+     * @param dir The journal's directory
+     * @return False if the journal couldn't be read
+     */
+    public boolean replay(File dir) {
+        float size = brush.getSize();
+        int color = brush.getColor();
+        int spacing = brush.getSpacing();
+        float pixelScale = brush.getPixelScale();
+        int mask = brush.getMaskIndex();
+
+        CanvasJournalReader reader = new CanvasJournalReader(dir);
+        long start = System.nanoTime();
+        boolean success = true;
+        batched = 0;
+        brush.beginDraw();
+        try {
+            samples = reader.read(this);
+        } catch (IOException e) {
+            Log.e(PaintPaint.NAME, "Couldn't read the stroke journal: " + e);
+            success = false;
+        } finally {
+            brush.endDraw();
+            brush.setSize(size);
+            brush.setColor(color);
+            brush.setSpacing(spacing);
+            brush.setPixelScale(pixelScale);
+            if (mask >= 0)
+                brush.selectMask(mask);
+        }
+        nanos = System.nanoTime() - start;
+        Log.d(PaintPaint.NAME, "Replayed " + samples + " samples from " + reader.getChunks()
+                + " chunks (" + reader.getBytes() + " bytes, " + reader.getTruncated()
+                + " cut short) in " + nanos / 1000000f + "ms");
+        return success;
+    }
+
+    public void brush(float size, int color, int spacing, float pixelScale, int mask) {
+        /* Dabs already added have to be drawn with the old settings.  The
+         * tip is picked per dab so it doesn't need this. */
+        brush.endDraw();
+        brush.setSize(size);
+        brush.setColor(color);
+        brush.setSpacing(spacing);
+        brush.setPixelScale(pixelScale);
+        brush.beginDraw();
+        if (mask >= 0 && mask < masks.length)
+            brush.selectMask(masks[mask]);
+    }
+
+    public void mask(int mask, int width, int height, int[] argb) {
+        if (mask >= masks.length) {
+            int[] grown = new int[mask + 1];
+            System.arraycopy(masks, 0, grown, 0, masks.length);
+            masks = grown;
+        }
+        /* Usually the brush already has the same tip */
+        masks[mask] = brush.addMask(width, height, argb);
+    }
+
+    public void clear() {
+        brush.endDraw();
+        brush.getBackend().clear();
+        brush.beginDraw();
+    }
+
+    public void undo() {
+        if (history == null)
+            return;
+        brush.endDraw();
+        history.undo();
+        brush.beginDraw();
+    }
+
+    public void redo() {
+        if (history == null)
+            return;
+        brush.endDraw();
+        history.redo();
+        brush.beginDraw();
+    }
+
+    public void sample(int pointer, float x, float y, float pressure, int flags, long time) {
+        /* Steps are started just as they were when drawing */
+        if (history != null && CanvasDab.isNewStroke(flags)
+                && !brush.isOtherStrokeActive(pointer)) {
+            brush.endDraw();
+            history.beginStep();
+            brush.beginDraw();
+            batched = 0;
+        }
+        brush.addSample(pointer, x, y, pressure, flags);
+        if (++batched == BATCH_SAMPLES) {
+            brush.endDraw();
+            brush.beginDraw();
+            batched = 0;
+        }
+    }
+
+    /**
+     * Number of samples drawn by the last replay.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * How long the last replay took in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+}
@@ -0,0 +1,266 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * An uncompressed copy of the autosave that can be loaded straight onto the
+ * GPU when returning to the canvas.
+ *
+ * The file starts with a fixed size header holding the tile layout, the
+ * autosave generation it matches and which tiles are present.  After the
+ * header every tile of the canvas has a slot of raw RGBA bytes in the order
+ * OpenGL expects, bottom row first.  Slots of tiles that are the background
+ * color are never written, so the file stays sparse.  Restoring maps the
+ * file and hands each present slot to OpenGL directly, with no decoding or
+ * copying.
+ *
+ * The cache is updated with the same changed tiles as the CanvasTileStore,
+ * on the save thread, and rebuilt there from the store whenever the store
+ * had to be restored without it.  It is only trusted when its generation matches the
+ * store's.  While a slot is being rewritten the header's generation is 0,
+ * so an interrupted update is never used.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasResumeCache {
+
+    private static final int MAGIC = 0x50505243; // "PPRC"
+    private static final int VERSION = 1;
+
+    private static final int TILE_SIZE = CanvasTiles.TILE_SIZE;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    /* Header layout */
+    private static final int HEADER_BYTES = 4096;
+    private static final int GENERATION_OFFSET = 20;
+    private static final int PRESENT_OFFSET = 28;
+    private static final int MAX_TILES = HEADER_BYTES - PRESENT_OFFSET;
+
+    private final File file;
+
+    /* The header as last written.  Guarded by the CanvasTileStore's lock. */
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+    /* The file of a rebuild in progress, or null.  Guarded by the same. */
+    private RandomAccessFile rebuilding;
+
+    public CanvasResumeCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Write the tiles that changed in an autosave.  If the cache doesn't hold
+     * the previous autosave it can only be brought up to date when every
+     * tile changed, otherwise it is left invalid.
+     *
+     * @param previous The generation of the autosave before this one
+     * @param generation The generation of this autosave
+     * @param columns The number of tile columns of the canvas
+     * @param rows The number of tile rows of the canvas
+     * @param changed The indices of the changed tiles
+     * @param pixels The pixels of each changed tile, null for background
+     */
+    public void update(long previous, long generation, int columns, int rows,
+            int[] changed, byte[][] pixels) throws IOException {
+        if (columns * rows > MAX_TILES)
+            return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            boolean full = changed.length == columns * rows;
+            if (!readHeader(channel, columns, rows, previous)) {
+                if (!full) {
+                    invalidate(channel);
+                    return;
+                }
+                startHeader(columns, rows);
+            }
+            invalidate(channel);
+            for (int i = 0; i < changed.length; i++) {
+                int tile = changed[i];
+                if (pixels[i] == null) {
+                    header.put(PRESENT_OFFSET + tile, (byte) 0);
+                    continue;
+                }
+                ByteBuffer src = ByteBuffer.wrap(pixels[i]);
+                long position = slot(tile);
+                while (src.hasRemaining())
+                    position += channel.write(src, position);
+                header.put(PRESENT_OFFSET + tile, (byte) 1);
+            }
+            channel.force(false);
+            writeHeader(channel, generation);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Start writing a complete copy of the canvas.  Used when the autosave
+     * had to be restored without the cache.  The file is kept open until
+     * the copy is finished or abandoned.  Returns false if the canvas has
+     * too many tiles to cache.
+     */
+    public boolean beginRebuild(int columns, int rows) throws IOException {
+        abandonRebuild();
+        if (columns * rows > MAX_TILES)
+            return false;
+        startHeader(columns, rows);
+        file.delete();
+        rebuilding = new RandomAccessFile(file, "rw");
+        return true;
+    }
+
+    /**
+     * Write one tile of a complete copy started with beginRebuild().
+     */
+    public void rebuildTile(int tile, byte[] pixels) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(pixels);
+        long position = slot(tile);
+        FileChannel channel = rebuilding.getChannel();
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+        header.put(PRESENT_OFFSET + tile, (byte) 1);
+    }
+
+    /**
+     * Finish a complete copy, marking it as matching an autosave generation.
+     */
+    public void finishRebuild(long generation) throws IOException {
+        try {
+            FileChannel channel = rebuilding.getChannel();
+            channel.force(false);
+            writeHeader(channel, generation);
+        } finally {
+            abandonRebuild();
+        }
+    }
+
+    /**
+     * Stop a complete copy part way.  The file is left without a generation,
+     * so it is never used.
+     */
+    public void abandonRebuild() {
+        if (rebuilding == null)
+            return;
+        try {
+            rebuilding.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        rebuilding = null;
+    }
+
+    /**
+     * Load the cached tiles onto a canvas if the cache matches the autosave
+     * generation and the canvas's layout.  Must be called on the OpenGL
+     * thread.  Returns false without touching the canvas if it doesn't.
+     */
+    public boolean restore(CanvasTiles tiles, long generation) {
+        if (generation == 0 || !file.exists())
+            return false;
+        int columns = tiles.getColumns();
+        int rows = tiles.getRows();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() < HEADER_BYTES)
+                    return false;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                        0, channel.size());
+                if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION
+                        || mapped.getInt(8) != TILE_SIZE || mapped.getInt(12) != columns
+                        || mapped.getInt(16) != rows
+                        || mapped.getLong(GENERATION_OFFSET) != generation)
+                    return false;
+                /* A file cut short is missing tiles, which would never be
+                 * written again once the canvas is marked clean */
+                for (int tile = 0; tile < columns * rows; tile++) {
+                    if (mapped.get(PRESENT_OFFSET + tile) != 0
+                            && slot(tile) + TILE_BYTES > channel.size())
+                        return false;
+                }
+
+                tiles.clear();
+                int restored = 0;
+                for (int tile = 0; tile < columns * rows; tile++) {
+                    if (mapped.get(PRESENT_OFFSET + tile) == 0)
+                        continue;
+                    long position = slot(tile);
+                    mapped.limit((int) position + TILE_BYTES);
+                    mapped.position((int) position);
+                    tiles.loadTile(tile % columns, tile / columns, mapped.slice());
+                    mapped.clear();
+                    restored++;
+                }
+                Log.d(PaintPaint.NAME, "Restored " + restored + " tiles from the resume cache");
+                return true;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /* Position of a tile's slot in the file */
+    private static long slot(int tile) {
+        return HEADER_BYTES + (long) tile * TILE_BYTES;
+    }
+
+    /* Read the header from disk, returning true if it is valid for the
+     * given layout and generation. */
+    private boolean readHeader(FileChannel channel, int columns, int rows, long generation)
+            throws IOException {
+        header.clear();
+        if (channel.size() < HEADER_BYTES)
+            return false;
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                return false;
+        }
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                && header.getInt(8) == TILE_SIZE && header.getInt(12) == columns
+                && header.getInt(16) == rows && header.getLong(GENERATION_OFFSET) == generation
+                && generation != 0;
+    }
+
+    private void startHeader(int columns, int rows) {
+        header.clear();
+        for (int i = 0; i < HEADER_BYTES; i++)
+            header.put(i, (byte) 0);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, TILE_SIZE);
+        header.putInt(12, columns);
+        header.putInt(16, rows);
+    }
+
+    /* Mark the file as not matching any generation while it changes */
+    private void invalidate(FileChannel channel) throws IOException {
+        ByteBuffer zero = ByteBuffer.allocate(8);
+        long position = GENERATION_OFFSET;
+        while (zero.hasRemaining())
+            position += channel.write(zero, position);
+        channel.force(false);
+    }
+
+    private void writeHeader(FileChannel channel, long generation) throws IOException {
+        header.putLong(GENERATION_OFFSET, generation);
+        header.clear();
+        long position = 0;
+        while (header.hasRemaining())
+            position += channel.write(header, position);
+        channel.force(false);
+    }
+
+}
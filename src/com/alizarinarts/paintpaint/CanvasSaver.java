@@ -0,0 +1,315 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+import android.os.Process;
+
+import android.util.Log;
+
+/**
+ * Encodes canvas snapshots as PNG files on a background thread.
+ *
+ * The OpenGL thread only takes a snapshot of the canvas and hands it to
+ * save().  Encoding and writing happen on a single background thread, one
+ * save at a time, so painting isn't held up.  Each file is written to a
+ * temporary file next to it which is then renamed over it, so a reader never
+ * sees a partly written image.
+ *
+ * A save to a file that already has a save waiting to start replaces the
+ * waiting snapshot instead of queueing another one, since only the newest
+ * snapshot would survive anyway.  Both saves' listeners are told when the
+ * file is written.
+ *
+ * Snapshots are as big as the document, so rather than making a new one
+ * for every save the OpenGL thread takes one from obtainSnapshot(), and the
+ * saver puts it back once it has been written or replaced.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasSaver implements Executor {
+
+    /**
+     * Told when a save has finished.  Called on the save thread.
+     */
+    public interface SaveListener {
+        /**
+         * @param file The file that was saved
+         * @param success False if the file couldn't be written
+         */
+        void onSaveFinished(File file, boolean success);
+    }
+
+    /* The save thread goes away when it has been idle this long */
+    private static final long IDLE_SECONDS = 30;
+
+    /* Snapshots kept for reuse: one being written and one waiting */
+    private static final int MAX_SNAPSHOTS = 2;
+
+    private final ThreadPoolExecutor executor;
+
+    /* Saves that haven't started yet, by file path.  Guarded by this. */
+    private final HashMap<String, SaveJob> waiting = new HashMap<String, SaveJob>();
+
+    /* Snapshots that have been written, ready for reuse.  Guarded by
+     * this. */
+    private final List<Bitmap> snapshots = new ArrayList<Bitmap>(MAX_SNAPSHOTS);
+
+    /* Reused for encoding.  Only touched on the save thread. */
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+    /* Statistics */
+    private volatile int saves;
+    private volatile int coalesced;
+    private volatile int failures;
+    private volatile long lastSnapshotNanos;
+    private volatile long lastSnapshotBytesAllocated;
+    private volatile long lastWaitNanos;
+    private volatile long lastEncodeNanos;
+    private volatile long lastWriteNanos;
+
+    /* Records how long each save takes, may be null */
+    private volatile CanvasMetrics metrics;
+
+    public CanvasSaver() {
+        executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }}, PaintPaint.NAME + " save");
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return a mutable ARGB_8888 Bitmap to take a snapshot into, reusing one
+     * that has already been written if it is the right size.  Bitmaps of
+     * another size are recycled.
+     */
+    public Bitmap obtainSnapshot(int w, int h) {
+        synchronized (this) {
+            while (!snapshots.isEmpty()) {
+                Bitmap snapshot = snapshots.remove(snapshots.size() - 1);
+                if (snapshot.getWidth() == w && snapshot.getHeight() == h) {
+                    lastSnapshotBytesAllocated = 0;
+                    return snapshot;
+                }
+                snapshot.recycle();
+            }
+        }
+        lastSnapshotBytesAllocated = (long) w * h * 4;
+        return Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+    }
+
+    /* Put a snapshot back for obtainSnapshot(), or recycle it if enough are
+     * kept already */
+    private synchronized void releaseSnapshot(Bitmap snapshot) {
+        if (snapshots.size() < MAX_SNAPSHOTS)
+            snapshots.add(snapshot);
+        else
+            snapshot.recycle();
+    }
+
+    /**
+     * Queue a snapshot to be saved.  The saver takes ownership of the
+     * snapshot and puts it back for obtainSnapshot() once it has been
+     * written.
+     *
+     * @param snapshot A Bitmap that nothing else will change
+     * @param file Where to save the snapshot
+     * @param snapshotNanos How long taking the snapshot took, for statistics
+     * @param listener Told when the save finishes, may be null
+     */
+    public void save(Bitmap snapshot, File file, long snapshotNanos, SaveListener listener) {
+        lastSnapshotNanos = snapshotNanos;
+        String path = file.getAbsolutePath();
+        SaveJob job;
+        synchronized (this) {
+            job = waiting.get(path);
+            if (job != null) {
+                /* Only the newest snapshot matters */
+                releaseSnapshot(job.snapshot);
+                job.snapshot = snapshot;
+                if (listener != null)
+                    job.listeners.add(listener);
+                coalesced++;
+                return;
+            }
+            job = new SaveJob(path, file, snapshot, listener);
+            waiting.put(path, job);
+        }
+        executor.execute(job);
+    }
+
+    /**
+     * Record how long each save takes to encode and write.
+     *
+     * @param metrics Where to record them, or null to stop
+     */
+    public void setMetrics(CanvasMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Run some other file writing task on the save thread, after the saves
+     * already queued.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    private class SaveJob implements Runnable {
+        final String path;
+        final File file;
+        final long queued = System.nanoTime();
+        Bitmap snapshot;
+        final List<SaveListener> listeners = new ArrayList<SaveListener>(1);
+
+        SaveJob(String path, File file, Bitmap snapshot, SaveListener listener) {
+            this.path = path;
+            this.file = file;
+            this.snapshot = snapshot;
+            if (listener != null)
+                listeners.add(listener);
+        }
+
+        public void run() {
+            Bitmap bitmap;
+            synchronized (CanvasSaver.this) {
+                /* Later saves to this file start a new job from here on */
+                waiting.remove(path);
+                bitmap = snapshot;
+            }
+            long start = System.nanoTime();
+            lastWaitNanos = start - queued;
+
+            encoded.reset();
+            bitmap.compress(CompressFormat.PNG, 100, encoded);
+            releaseSnapshot(bitmap);
+            long encodedTime = System.nanoTime();
+            lastEncodeNanos = encodedTime - start;
+
+            boolean success = write(file);
+            lastWriteNanos = System.nanoTime() - encodedTime;
+            CanvasMetrics saveMetrics = metrics;
+            if (saveMetrics != null)
+                saveMetrics.recordSave(lastEncodeNanos + lastWriteNanos);
+            saves++;
+            if (!success)
+                failures++;
+            Log.d(PaintPaint.NAME, "Saved " + file.getName() + ": snapshot "
+                    + lastSnapshotNanos / 1000000f + "ms allocating "
+                    + lastSnapshotBytesAllocated + " bytes, wait "
+                    + lastWaitNanos / 1000000f + "ms, encode "
+                    + lastEncodeNanos / 1000000f + "ms, write "
+                    + lastWriteNanos / 1000000f + "ms");
+
+            for (int i = 0; i < listeners.size(); i++)
+                listeners.get(i).onSaveFinished(file, success);
+        }
+    }
+
+    /* Write the encoded image to a temporary file and rename it into place */
+    private boolean write(File file) {
+        File dir = file.getParentFile();
+        if (dir != null)
+            dir.mkdirs();
+        File temp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            encoded.writeTo(fos);
+            fos.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(PaintPaint.NAME, "Couldn't rename " + temp + " to " + file);
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Number of files saved, including failed saves.
+     */
+    public int getSaves() {
+        return saves;
+    }
+
+    /**
+     * Number of saves replaced by a newer save to the same file before they
+     * started.
+     */
+    public int getCoalesced() {
+        return coalesced;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Time the OpenGL thread spent taking the last snapshot in nanoseconds.
+     */
+    public long getLastSnapshotNanos() {
+        return lastSnapshotNanos;
+    }
+
+    /**
+     * Bytes allocated for the last snapshot.  0 once snapshots are reused.
+     */
+    public long getLastSnapshotBytesAllocated() {
+        return lastSnapshotBytesAllocated;
+    }
+
+    /**
+     * Time the last save waited for the save thread in nanoseconds.
+     */
+    public long getLastWaitNanos() {
+        return lastWaitNanos;
+    }
+
+    /**
+     * Time taken to encode the last save as a PNG in nanoseconds.
+     */
+    public long getLastEncodeNanos() {
+        return lastEncodeNanos;
+    }
+
+    /**
+     * Time taken to write and rename the last save in nanoseconds.
+     */
+    public long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+}
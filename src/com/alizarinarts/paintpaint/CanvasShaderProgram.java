@@ -1,97 +1,88 @@
 package com.alizarinarts.paintpaint;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-
-
-import android.content.res.AssetManager;
-
 import static android.opengl.GLES20.*;
 
-import android.util.Log;
-
 /**
- * A class used to group the GLSL shaders and compiled program together.
- * Handles the compilation of shaders into a program.
+ * A linked GLSL program and the locations of everything the renderer sets
+ * on it.  Programs are built by CanvasShaders.
+ *
+ * The locations of the program's attributes and uniforms are looked up once
+ * when it is linked so they never have to be queried by name while drawing.
  *
  * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
  */
 public class CanvasShaderProgram {
 
-    private AssetManager assets;
-
     private int program;
-    private int vertexShader;
-    private int fragmentShader;
-
-    public CanvasShaderProgram(String vertexSrc, String fragmentSrc, AssetManager assets) {
-        this.assets = assets;
-
-        program = glCreateProgram();
-
-        /* Bind the shaders to the program */
-        int vs = makeShader(vertexSrc);
-        int fs = makeShader(fragmentSrc);
-        glAttachShader(program, vs);
-        glAttachShader(program, fs);
-
-        /* Link the program and handle any errors */
-        int linkStatus[] = new int[1];
-        glLinkProgram(program);
-        glGetProgramiv(program, GL_LINK_STATUS, linkStatus, 0);
-        if (linkStatus[0] == 0) {
-            Log.e(PaintPaint.NAME, "ERROR LINKING");
-            Log.e(PaintPaint.NAME, glGetProgramInfoLog(program));
-            glDeleteProgram(program);
-            return;
-        }
-    }
+
+    /* Attribute locations */
+    private int aVertexPosition;
+    private int aTextureCoord;
+
+    /* Uniform locations */
+    private int uProjMatrix;
+    private int uZoom;
+    private int uOffset;
+    private int uTextureScale;
+    private int uTexture;
+    private int uMask;
+    private int uColor;
 
     /**
-     * Generate a shader from a source file.  Returns the shader's identifier.
-     *
-     * @param fileName The path to the fragment or vertex shader to compile.
+     * @param program A successfully linked program
      */
-    private int makeShader(String fileName) {
-        // Read the shader source code
-        String buffer = "";
-        try {
-            InputStream is = assets.open("shaders/" + fileName);
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            String line = null;
-
-            while ((line = br.readLine()) != null) {
-                buffer += line + "\n";
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        // Build the shader.
-        int shaderType = 0;
-        if (fileName.endsWith(".vert")) {
-            shaderType = GL_VERTEX_SHADER;
-        } else if (fileName.endsWith(".frag")) {
-            shaderType = GL_FRAGMENT_SHADER;
-        }
-        int shader = glCreateShader(shaderType);
-        glShaderSource(shader, buffer);
-        glCompileShader(shader);
-        return shader;
+    CanvasShaderProgram(int program) {
+        this.program = program;
+
+        /* Resolve the locations of everything the renderer sets */
+        aVertexPosition = glGetAttribLocation(program, "aVertexPosition");
+        aTextureCoord = glGetAttribLocation(program, "aTextureCoord");
+        uProjMatrix = glGetUniformLocation(program, "uProjMatrix");
+        uZoom = glGetUniformLocation(program, "uZoom");
+        uOffset = glGetUniformLocation(program, "uOffset");
+        uTextureScale = glGetUniformLocation(program, "uTextureScale");
+        uTexture = glGetUniformLocation(program, "uTexture");
+        uMask = glGetUniformLocation(program, "uMask");
+        uColor = glGetUniformLocation(program, "uColor");
+
+        /* The color texture is always on unit 0 and the mask on unit 1.
+         * Programs that don't use one of them get a location of -1, which
+         * OpenGL ignores. */
+        CanvasGLState.useProgram(program);
+        glUniform1i(uTexture, 0);
+        glUniform1i(uMask, 1);
     }
 
     int getProgram() {
         return program;
     }
 
-    int getVertexShader() {
-        return vertexShader;
+    int getVertexPositionLocation() {
+        return aVertexPosition;
+    }
+
+    int getTextureCoordLocation() {
+        return aTextureCoord;
+    }
+
+    int getProjMatrixLocation() {
+        return uProjMatrix;
+    }
+
+    int getZoomLocation() {
+        return uZoom;
+    }
+
+    int getOffsetLocation() {
+        return uOffset;
+    }
+
+    int getTextureScaleLocation() {
+        return uTextureScale;
     }
 
-    int getFragmentShader() {
-        return fragmentShader;
+    int getColorLocation() {
+        return uColor;
     }
 
 }
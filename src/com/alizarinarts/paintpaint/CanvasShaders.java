@@ -0,0 +1,346 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.content.res.AssetManager;
+
+import static android.opengl.GLES20.*;
+import android.opengl.GLES30;
+
+import android.os.Build;
+
+import android.util.Log;
+
+/**
+ * Builds the renderer's shader programs.
+ *
+ * Each pass uses a variant of the same shader sources, specialised by
+ * feature flags that are defined at the top of the sources before they are
+ * compiled.  The sources are read from the assets once and kept for every
+ * context after.
+ *
+ * Compiling and linking is the slowest part of creating a surface, so where
+ * the driver can hand back linked programs they are kept in a cache
+ * directory, named by a hash of the driver and the variant's sources, and
+ * loaded instead of compiled the next time a context is created.  Anything
+ * that changes the driver or the sources changes the name, so stale
+ * programs are never loaded.  If the driver rejects a cached program it is
+ * deleted and the variant is compiled again.
+ *
+ * OpenGL ES 2.0 only has program binaries through GL_OES_get_program_binary,
+ * which Android has no Java binding for, so they are only cached when the
+ * context is OpenGL ES 3.0 or later, where they are core.  Android hands out
+ * a 3.0 context for a 2.0 request on most devices that support it.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasShaders {
+
+    /* Feature flags */
+
+    /** Draw brush dabs onto the tiles rather than tiles onto the screen */
+    public static final String BRUSH = "BRUSH";
+
+    private final AssetManager assets;
+
+    /* Where linked programs are kept, null to not keep them */
+    private final File cacheDir;
+
+    /* Sources read so far, by asset name */
+    private final HashMap<String, String> sources = new HashMap<String, String>();
+
+    /* Identifies the driver of the current context, null until it has been
+     * asked */
+    private String driver;
+    private boolean binaries;
+
+    /* Statistics since the last reset */
+    private int built;
+    private int loaded;
+    private long nanos;
+
+    /**
+     * @param assets Where the shader sources are, under shaders/
+     * @param cacheDir Where to keep linked programs.  May be null.
+     */
+    public CanvasShaders(AssetManager assets, File cacheDir) {
+        this.assets = assets;
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Forget everything about the last context.  Call this when a new
+     * context is created.
+     */
+    public void reset() {
+        driver = null;
+        built = 0;
+        loaded = 0;
+        nanos = 0;
+    }
+
+    /**
+     * Build a program from a vertex and a fragment shader with some feature
+     * flags defined.
+     *
+     * @param vertex The vertex shader's name in the shaders assets
+     * @param fragment The fragment shader's name in the shaders assets
+     * @param defines The feature flags to define
+     * @throws RuntimeException If the program can't be built.  The driver's
+     * log is written to the Android log.
+     */
+    public CanvasShaderProgram build(String vertex, String fragment, String... defines) {
+        long start = System.nanoTime();
+        if (driver == null)
+            askDriver();
+
+        StringBuilder header = new StringBuilder();
+        for (String define : defines)
+            header.append("#define ").append(define).append('\n');
+        String vertexSource = header + getSource(vertex);
+        String fragmentSource = header + getSource(fragment);
+        String name = vertex + " + " + fragment
+                + (defines.length > 0 ? " " + Arrays.toString(defines) : "");
+
+        File file = null;
+        int program = 0;
+        if (binaries) {
+            file = new File(cacheDir, hash(driver + '\0' + vertexSource + '\0' + fragmentSource));
+            program = Binaries.load(file);
+        }
+        if (program != 0) {
+            loaded++;
+        } else {
+            program = link(name, vertexSource, fragmentSource, file);
+            built++;
+        }
+        nanos += System.nanoTime() - start;
+        return new CanvasShaderProgram(program);
+    }
+
+    /* Find out which driver is drawing and whether it can save programs */
+    private void askDriver() {
+        String version = glGetString(GL_VERSION);
+        driver = glGetString(GL_VENDOR) + "/" + glGetString(GL_RENDERER) + "/" + version;
+        binaries = cacheDir != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && version != null && version.startsWith("OpenGL ES ")
+                && !version.startsWith("OpenGL ES 2") && Binaries.isSupported();
+        Log.d(PaintPaint.NAME, "Shader driver: " + driver + ", cached programs: " + binaries);
+    }
+
+    /* Read a shader's source from the assets, or from memory after the first
+     * time */
+    private String getSource(String name) {
+        String source = sources.get(name);
+        if (source != null)
+            return source;
+        StringBuilder text = new StringBuilder();
+        try {
+            Reader reader = new InputStreamReader(assets.open("shaders/" + name), "UTF-8");
+            try {
+                char[] buffer = new char[4096];
+                int n;
+                while ((n = reader.read(buffer)) > 0)
+                    text.append(buffer, 0, n);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read shader " + name, e);
+        }
+        source = text.toString();
+        sources.put(name, source);
+        return source;
+    }
+
+    /* Compile and link a program, saving it to file if file isn't null */
+    private int link(String name, String vertexSource, String fragmentSource, File file) {
+        int vertexShader = compile(name, GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = compile(name, GL_FRAGMENT_SHADER, fragmentSource);
+
+        int program = CanvasGLResources.createProgram();
+        if (file != null)
+            Binaries.makeRetrievable(program);
+        glAttachShader(program, vertexShader);
+        glAttachShader(program, fragmentShader);
+        glLinkProgram(program);
+
+        /* A linked program doesn't need its shaders any more */
+        glDetachShader(program, vertexShader);
+        glDetachShader(program, fragmentShader);
+        glDeleteShader(vertexShader);
+        glDeleteShader(fragmentShader);
+
+        int[] status = new int[1];
+        glGetProgramiv(program, GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = glGetProgramInfoLog(program);
+            CanvasGLState.deleteProgram(program);
+            Log.e(PaintPaint.NAME, "Couldn't link " + name + ":\n" + log);
+            throw new RuntimeException("Couldn't link " + name + ": " + log);
+        }
+
+        if (file != null)
+            Binaries.save(program, file);
+        return program;
+    }
+
+    private static int compile(String name, int type, String source) {
+        int shader = glCreateShader(type);
+        glShaderSource(shader, source);
+        glCompileShader(shader);
+        int[] status = new int[1];
+        glGetShaderiv(shader, GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = glGetShaderInfoLog(shader);
+            glDeleteShader(shader);
+            String stage = type == GL_VERTEX_SHADER ? "vertex" : "fragment";
+            Log.e(PaintPaint.NAME, "Couldn't compile the " + stage + " shader of " + name + ":\n" + log);
+            throw new RuntimeException("Couldn't compile the " + stage + " shader of " + name + ": " + log);
+        }
+        return shader;
+    }
+
+    /* A file name made from a SHA-1 hash of some text */
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest)
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return name.append(".bin").toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(text.hashCode()) + ".bin";
+        } catch (IOException e) {
+            return Integer.toHexString(text.hashCode()) + ".bin";
+        }
+    }
+
+    /**
+     * Number of programs compiled and linked since the last reset.
+     */
+    public int getBuilt() {
+        return built;
+    }
+
+    /**
+     * Number of programs loaded from the cache since the last reset.
+     */
+    public int getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Time spent building programs since the last reset in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /*
+     * The OpenGL ES 3.0 calls, kept apart so older Android versions never
+     * load GLES30.
+     */
+    private static class Binaries {
+
+        static boolean isSupported() {
+            int[] formats = new int[1];
+            glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+            return formats[0] > 0;
+        }
+
+        static void makeRetrievable(int program) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
+
+        /* Returns the loaded program, or 0 if there is no usable one */
+        static int load(File file) {
+            if (!file.exists())
+                return 0;
+            int format;
+            ByteBuffer binary;
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(file));
+                try {
+                    format = in.readInt();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    binary = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+                    binary.put(bytes).position(0);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                file.delete();
+                return 0;
+            }
+
+            int program = CanvasGLResources.createProgram();
+            GLES30.glProgramBinary(program, format, binary, binary.capacity());
+            int[] status = new int[1];
+            glGetProgramiv(program, GL_LINK_STATUS, status, 0);
+            if (status[0] == 0) {
+                /* Usually a driver update that kept its version string */
+                Log.d(PaintPaint.NAME, "Discarding cached program " + file.getName());
+                CanvasGLState.deleteProgram(program);
+                file.delete();
+                return 0;
+            }
+            return program;
+        }
+
+        static void save(int program, File file) {
+            int[] length = new int[1];
+            glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+            if (length[0] <= 0)
+                return;
+            ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+            IntBuffer written = IntBuffer.allocate(1);
+            IntBuffer format = IntBuffer.allocate(1);
+            GLES30.glGetProgramBinary(program, length[0], written, format, binary);
+            byte[] bytes = new byte[written.get(0)];
+            binary.position(0);
+            binary.get(bytes);
+
+            /* Written to the side and renamed, so a cached program is never
+             * half written */
+            File dir = file.getParentFile();
+            File temp = new File(dir, file.getName() + ".tmp");
+            try {
+                dir.mkdirs();
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+                try {
+                    out.writeInt(format.get(0));
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file))
+                    temp.delete();
+            } catch (IOException e) {
+                Log.e(PaintPaint.NAME, "Couldn't cache program " + file.getName() + ": " + e);
+                temp.delete();
+            }
+        }
+
+    }
+
+}
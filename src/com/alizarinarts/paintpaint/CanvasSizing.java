@@ -0,0 +1,103 @@
+package com.alizarinarts.paintpaint;
+
+import android.app.ActivityManager;
+
+import android.content.Context;
+
+import static android.opengl.GLES20.*;
+
+import android.util.Log;
+
+/**
+ * Decides how big a document can be on this device.
+ *
+ * A new document is the size of the screen and an opened image keeps its
+ * own size, as long as the device can hold it.  Otherwise it is scaled down,
+ * keeping its shape, until it fits these limits:
+ *
+ * Neither side may be longer than GL_MAX_TEXTURE_SIZE.  The canvas itself is
+ * tiled so it could be longer, but the saved image couldn't be shown by the
+ * hardware accelerated views that display it.
+ *
+ * Loading or saving a document holds a few copies of it in memory at once:
+ * the Bitmap, its pixels and the readback.  Those have to fit in half of the
+ * app's heap.
+ *
+ * The tiles of a fully drawn document have to fit in a quarter of the memory
+ * the system has free, since the GPU shares it.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasSizing {
+
+    /* Bytes of heap each pixel of a document can need while it is loaded
+     * or saved */
+    private static final int HEAP_BYTES_PER_PIXEL = 12;
+
+    /* The shares of the heap and of free memory a document may use */
+    private static final int HEAP_SHARE = 2;
+    private static final int FREE_MEMORY_SHARE = 4;
+
+    private final ActivityManager activityManager;
+
+    /* The limits, read by update() */
+    private int maxTextureSize = 2048;
+    private long maxPixels;
+    private long maxTileBytes;
+
+    public CanvasSizing(Context context) {
+        activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    }
+
+    /**
+     * Read the limits of the device.  Must be called on the OpenGL thread
+     * once the context has been created.
+     */
+    public void update() {
+        int[] value = new int[1];
+        glGetIntegerv(GL_MAX_TEXTURE_SIZE, value, 0);
+        if (value[0] > 0)
+            maxTextureSize = value[0];
+
+        maxPixels = (long) activityManager.getMemoryClass() * (1 << 20)
+                / HEAP_SHARE / HEAP_BYTES_PER_PIXEL;
+        ActivityManager.MemoryInfo memory = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memory);
+        maxTileBytes = memory.availMem / FREE_MEMORY_SHARE;
+
+        Log.d(PaintPaint.NAME, "Canvas limits: " + maxTextureSize + " pixels a side, "
+                + maxPixels + " pixels, " + maxTileBytes / (1 << 20) + "MB of tiles");
+    }
+
+    /**
+     * Return the size a document of the given size can have on this device,
+     * as width and height.
+     */
+    public int[] fit(int width, int height) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        double scale = Math.min(1, (double) maxTextureSize / Math.max(width, height));
+        if (maxPixels > 0)
+            scale = Math.min(scale, Math.sqrt((double) maxPixels / ((long) width * height)));
+        int w = Math.max(1, (int) (width * scale));
+        int h = Math.max(1, (int) (height * scale));
+
+        /* Tiles are whole, so shrink a little more if their rounding up
+         * goes over */
+        while (maxTileBytes > 0 && getTileBytes(w, h) > maxTileBytes && w > 1 && h > 1) {
+            w = Math.max(1, w * 15 / 16);
+            h = Math.max(1, h * 15 / 16);
+        }
+        return new int[] { w, h };
+    }
+
+    /**
+     * GPU memory used by the tiles of a document once all of it is drawn on.
+     */
+    public static long getTileBytes(int width, int height) {
+        long columns = (width + CanvasTiles.TILE_SIZE - 1) / CanvasTiles.TILE_SIZE;
+        long rows = (height + CanvasTiles.TILE_SIZE - 1) / CanvasTiles.TILE_SIZE;
+        return columns * rows * CanvasTiles.TILE_SIZE * CanvasTiles.TILE_SIZE * 4;
+    }
+
+}
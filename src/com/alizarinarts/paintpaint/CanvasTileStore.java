@@ -0,0 +1,599 @@
+package com.alizarinarts.paintpaint;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/**
+ * The autosave, stored as the canvas's individual tiles so that only the
+ * tiles that changed since the last autosave have to be read back and
+ * written.
+ *
+ * The store is a directory holding a data file and an index.  Changed tiles
+ * are compressed separately and appended to the end of the data file.  The
+ * index is small and is rewritten on every save.  It holds the position and
+ * length of the newest copy of each tile, with a length of 0 for tiles that
+ * are the background color.  The index is written to a temporary file and
+ * renamed into place after the data it refers to has been synced, so a save
+ * that is cut short leaves the previous autosave intact.
+ *
+ * Old copies of rewritten tiles pile up in the data file, so once it is
+ * mostly dead space the live tiles are copied into a new data file with the
+ * next number and the old one is deleted.
+ *
+ * Snapshots of the changed tiles are taken on the OpenGL thread and are
+ * written on the CanvasSaver's thread.  Tiles are marked clean when they are
+ * snapshotted, so the tiles of a write that fails are handed back and marked
+ * dirty again by the next save.  They are also written uncompressed
+ * to a CanvasResumeCache, which restores much faster than inflating the
+ * store.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasTileStore {
+
+    private static final int MAGIC = 0x50505453; // "PPTS"
+    private static final int VERSION = 1;
+
+    private static final int TILE_SIZE = CanvasTiles.TILE_SIZE;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    /* Compact once the data file is this many times the size of the live
+     * tiles and at least this many bytes */
+    private static final int COMPACT_RATIO = 2;
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+
+    private final File dir;
+    private final File indexFile;
+    private final CanvasSaver saver;
+    private final CanvasResumeCache cache;
+
+    /* The index as last written.  Guarded by this. */
+    private boolean indexLoaded = false;
+    private long generation;
+    private int dataNumber;
+    private int columns;
+    private int rows;
+    private long[] offsets;
+    private int[] lengths;
+
+    /* Snapshots queued but not yet written.  Guarded by this. */
+    private int pending;
+
+    /* Tiles whose write failed, and the shape of the canvas they were
+     * taken from.  Guarded by itself so taking a snapshot never waits for a
+     * write. */
+    private final ArrayList<int[]> unsaved = new ArrayList<int[]>();
+    private int unsavedColumns;
+    private int unsavedRows;
+
+    /* Tile sized arrays reused between snapshots.  Guarded by itself so
+     * taking a snapshot never waits for a write. */
+    private final ArrayList<byte[]> freeTiles = new ArrayList<byte[]>();
+
+    /* Staging buffer for reading tiles back.  OpenGL thread only. */
+    private ByteBuffer readBuffer;
+
+    /* Compression state.  Only used while holding the lock. */
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[TILE_BYTES + 1024];
+
+    /* Statistics of the last save and restore */
+    private volatile int lastTilesWritten;
+    private volatile long lastBytesWritten;
+    private volatile long lastSnapshotNanos;
+    private volatile long lastWriteNanos;
+    private volatile long lastRestoreNanos;
+    private volatile boolean lastRestoreCached;
+    private volatile int compactions;
+
+    /**
+     * @param dir The directory to keep the store in
+     * @param saver Its thread is used to write the store
+     */
+    public CanvasTileStore(File dir, CanvasSaver saver) {
+        this.dir = dir;
+        this.saver = saver;
+        indexFile = new File(dir, "index");
+        cache = new CanvasResumeCache(new File(dir, "resume.raw"));
+    }
+
+    /**
+     * Snapshot the tiles that changed since the last save and queue them to
+     * be written.  Must be called on the OpenGL thread.  Does nothing if no
+     * tiles changed.
+     */
+    public void save(CanvasTiles tiles) {
+        long start = System.nanoTime();
+        int c = tiles.getColumns();
+        int r = tiles.getRows();
+        synchronized (unsaved) {
+            /* A canvas of another shape has been marked all dirty since */
+            if (unsavedColumns == c && unsavedRows == r) {
+                for (int[] failed : unsaved) {
+                    for (int tile : failed)
+                        tiles.markDirty(tile % c, tile / c);
+                }
+            }
+            unsaved.clear();
+        }
+        int count = 0;
+        for (int row = 0; row < r; row++) {
+            for (int column = 0; column < c; column++) {
+                if (tiles.isDirty(column, row))
+                    count++;
+            }
+        }
+        if (count == 0)
+            return;
+
+        if (readBuffer == null)
+            readBuffer = ByteBuffer.allocateDirect(TILE_BYTES);
+        final int[] changed = new int[count];
+        final byte[][] pixels = new byte[count][];
+        int n = 0;
+        for (int row = 0; row < r; row++) {
+            for (int column = 0; column < c; column++) {
+                if (!tiles.isDirty(column, row))
+                    continue;
+                changed[n] = row * c + column;
+                if (tiles.readTile(column, row, TILE_SIZE, TILE_SIZE, readBuffer)) {
+                    pixels[n] = obtainTile();
+                    readBuffer.position(0);
+                    readBuffer.get(pixels[n]);
+                }
+                tiles.markClean(column, row);
+                n++;
+            }
+        }
+        lastSnapshotNanos = System.nanoTime() - start;
+
+        final int snapshotColumns = c;
+        final int snapshotRows = r;
+        synchronized (this) {
+            pending++;
+        }
+        saver.execute(new Runnable() {public void run() {
+            write(snapshotColumns, snapshotRows, changed, pixels);
+        }});
+    }
+
+    private byte[] obtainTile() {
+        synchronized (freeTiles) {
+            int last = freeTiles.size() - 1;
+            if (last >= 0)
+                return freeTiles.remove(last);
+        }
+        return new byte[TILE_BYTES];
+    }
+
+    private void recycleTile(byte[] tile) {
+        synchronized (freeTiles) {
+            freeTiles.add(tile);
+        }
+    }
+
+    /* Append the changed tiles to the data file and rewrite the index */
+    private synchronized void write(int c, int r, int[] changed, byte[][] pixels) {
+        long start = System.nanoTime();
+        long bytes = 0;
+        boolean saved = false;
+        try {
+            loadIndex();
+            if (columns != c || rows != r) {
+                /* The canvas changed shape, which only happens after a
+                 * restore has marked every tile dirty, so start over. */
+                Log.d(PaintPaint.NAME, "Tile store geometry changed, starting over");
+                resetIndex(c, r, dataNumber + 1);
+            }
+            dir.mkdirs();
+            File data = dataFile(dataNumber);
+            RandomAccessFile out = new RandomAccessFile(data, "rw");
+            try {
+                long offset = out.length();
+                out.seek(offset);
+                for (int i = 0; i < changed.length; i++) {
+                    int tile = changed[i];
+                    if (pixels[i] == null) {
+                        offsets[tile] = 0;
+                        lengths[tile] = 0;
+                        continue;
+                    }
+                    int length = compress(pixels[i]);
+                    out.write(compressed, 0, length);
+                    offsets[tile] = offset;
+                    lengths[tile] = length;
+                    offset += length;
+                    bytes += length;
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            long previous = generation;
+            generation++;
+            writeIndex();
+            saved = true;
+            compactIfNeeded();
+            try {
+                cache.update(previous, generation, c, r, changed, pixels);
+            } catch (IOException e) {
+                /* The store is still good without the cache */
+                e.printStackTrace();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            /* The index on disk is still the last good one */
+            indexLoaded = false;
+            if (!saved) {
+                synchronized (unsaved) {
+                    if (unsavedColumns != c || unsavedRows != r)
+                        unsaved.clear();
+                    unsavedColumns = c;
+                    unsavedRows = r;
+                    unsaved.add(changed);
+                }
+            }
+        } finally {
+            for (int i = 0; i < pixels.length; i++) {
+                if (pixels[i] != null)
+                    recycleTile(pixels[i]);
+            }
+            pending--;
+            notifyAll();
+        }
+        if (!saved) {
+            Log.e(PaintPaint.NAME, "Couldn't autosave " + changed.length
+                    + " tiles, they will be written with the next autosave");
+            return;
+        }
+        lastTilesWritten = changed.length;
+        lastBytesWritten = bytes;
+        lastWriteNanos = System.nanoTime() - start;
+        Log.d(PaintPaint.NAME, "Autosaved " + changed.length + " tiles, " + bytes
+                + " bytes in " + lastWriteNanos / 1000000f + "ms (snapshot "
+                + lastSnapshotNanos / 1000000f + "ms)");
+    }
+
+    private int compress(byte[] tile) {
+        deflater.reset();
+        deflater.setInput(tile);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, length);
+                compressed = grown;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    /* Copy the live tiles into a new data file once the old one is mostly
+     * dead space. */
+    private void compactIfNeeded() throws IOException {
+        File data = dataFile(dataNumber);
+        long live = 0;
+        for (int i = 0; i < lengths.length; i++)
+            live += lengths[i];
+        long size = data.length();
+        if (size < COMPACT_MIN_BYTES || size < live * COMPACT_RATIO)
+            return;
+
+        File compacted = dataFile(dataNumber + 1);
+        RandomAccessFile in = new RandomAccessFile(data, "r");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+            out.setLength(0);
+            long offset = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                if (lengths[i] == 0)
+                    continue;
+                if (compressed.length < lengths[i])
+                    compressed = new byte[lengths[i]];
+                in.seek(offsets[i]);
+                in.readFully(compressed, 0, lengths[i]);
+                out.write(compressed, 0, lengths[i]);
+                offsets[i] = offset;
+                offset += lengths[i];
+            }
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+        dataNumber++;
+        writeIndex();
+        compactions++;
+        Log.d(PaintPaint.NAME, "Compacted tile store from " + size + " to " + live + " bytes");
+    }
+
+    /**
+     * Load the autosaved tiles into a canvas.  Must be called on the OpenGL
+     * thread.  Waits for any queued saves to be written first.  Returns false
+     * if there is no autosave, leaving the canvas untouched, or if it can't
+     * all be read, leaving the canvas clear.
+     */
+    public synchronized boolean restore(CanvasTiles tiles) {
+        long start = System.nanoTime();
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        indexLoaded = false;
+        try {
+            if (!loadIndex() || generation == 0)
+                return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        if (cache.restore(tiles, generation)) {
+            tiles.markAllClean();
+            lastRestoreCached = true;
+            lastRestoreNanos = System.nanoTime() - start;
+            Log.d(PaintPaint.NAME, "Restored from the resume cache in "
+                    + lastRestoreNanos / 1000000f + "ms");
+            return true;
+        }
+        lastRestoreCached = false;
+
+        tiles.clear();
+        boolean sameShape = columns == tiles.getColumns() && rows == tiles.getRows();
+        byte[] pixels = obtainTile();
+        if (readBuffer == null)
+            readBuffer = ByteBuffer.allocateDirect(TILE_BYTES);
+        int restored = 0;
+        boolean complete = false;
+        try {
+            RandomAccessFile in = new RandomAccessFile(dataFile(dataNumber), "r");
+            try {
+                for (int row = 0; row < Math.min(rows, tiles.getRows()); row++) {
+                    for (int column = 0; column < Math.min(columns, tiles.getColumns()); column++) {
+                        int i = row * columns + column;
+                        if (lengths[i] == 0)
+                            continue;
+                        readTile(in, i, pixels);
+                        readBuffer.clear();
+                        readBuffer.put(pixels);
+                        tiles.loadTile(column, row, readBuffer);
+                        restored++;
+                    }
+                }
+                complete = true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+        } finally {
+            recycleTile(pixels);
+        }
+        if (!complete) {
+            /* Autosaving part of the store would overwrite the rest of it,
+             * so leave the canvas to be restored some other way */
+            tiles.clear();
+            Log.e(PaintPaint.NAME, "Couldn't restore the tile store after "
+                    + restored + " tiles");
+            return false;
+        }
+        /* A new canvas starts out all dirty.  If it matches the store it is
+         * now clean, otherwise every tile has to be written again. */
+        if (sameShape) {
+            tiles.markAllClean();
+            /* Rebuild the resume cache from the store for next time, away
+             * from the OpenGL thread */
+            final long restoredGeneration = generation;
+            saver.execute(new Runnable() {public void run() {
+                rebuildCache(restoredGeneration);
+            }});
+        }
+
+        lastRestoreNanos = System.nanoTime() - start;
+        Log.d(PaintPaint.NAME, "Restored " + restored + " tiles in "
+                + lastRestoreNanos / 1000000f + "ms");
+        return true;
+    }
+
+    /* Inflate a tile of the data file.  Only used while holding the
+     * lock. */
+    private void readTile(RandomAccessFile in, int tile, byte[] pixels)
+            throws IOException, DataFormatException {
+        if (compressed.length < lengths[tile])
+            compressed = new byte[lengths[tile]];
+        in.seek(offsets[tile]);
+        in.readFully(compressed, 0, lengths[tile]);
+        inflater.reset();
+        inflater.setInput(compressed, 0, lengths[tile]);
+        /* A short tile would keep the last tile's pixels */
+        if (inflater.inflate(pixels) != TILE_BYTES || !inflater.finished())
+            throw new DataFormatException("Tile " + tile + " is truncated");
+    }
+
+    /* Write every tile of the store to the resume cache.  Runs on the saver's
+     * thread after a restore that couldn't use the cache.  A save since the
+     * restore has already brought the cache up to date or left it invalid,
+     * so then there is nothing to do. */
+    private synchronized void rebuildCache(long restoredGeneration) {
+        if (generation != restoredGeneration)
+            return;
+        long start = System.nanoTime();
+        byte[] pixels = obtainTile();
+        int rebuilt = 0;
+        try {
+            if (!cache.beginRebuild(columns, rows))
+                return;
+            RandomAccessFile in = new RandomAccessFile(dataFile(dataNumber), "r");
+            try {
+                for (int i = 0; i < columns * rows; i++) {
+                    if (lengths[i] == 0)
+                        continue;
+                    readTile(in, i, pixels);
+                    cache.rebuildTile(i, pixels);
+                    rebuilt++;
+                }
+            } finally {
+                in.close();
+            }
+            cache.finishRebuild(generation);
+            Log.d(PaintPaint.NAME, "Rebuilt the resume cache with " + rebuilt + " tiles in "
+                    + (System.nanoTime() - start) / 1000000f + "ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+        } finally {
+            cache.abandonRebuild();
+            recycleTile(pixels);
+        }
+    }
+
+    /*
+     * Read the index from disk if it hasn't been already.  Returns false and
+     * starts an empty index if there is no valid index.
+     */
+    private boolean loadIndex() throws IOException {
+        if (indexLoaded)
+            return true;
+        indexLoaded = true;
+        if (!indexFile.exists()) {
+            resetIndex(0, 0, 0);
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readInt() != TILE_SIZE) {
+                Log.e(PaintPaint.NAME, "Unknown tile store index, ignoring it");
+                resetIndex(0, 0, 0);
+                return false;
+            }
+            generation = in.readLong();
+            dataNumber = in.readInt();
+            columns = in.readInt();
+            rows = in.readInt();
+            offsets = new long[columns * rows];
+            lengths = new int[columns * rows];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private void resetIndex(int c, int r, int number) {
+        columns = c;
+        rows = r;
+        dataNumber = number;
+        offsets = new long[c * r];
+        lengths = new int[c * r];
+    }
+
+    private void writeIndex() throws IOException {
+        File temp = new File(dir, "index.tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(TILE_SIZE);
+            out.writeLong(generation);
+            out.writeInt(dataNumber);
+            out.writeInt(columns);
+            out.writeInt(rows);
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(indexFile))
+            throw new IOException("Couldn't rename " + temp + " to " + indexFile);
+        /* The previous data file is no longer referenced */
+        if (dataNumber > 0)
+            dataFile(dataNumber - 1).delete();
+    }
+
+    private File dataFile(int number) {
+        return new File(dir, "tiles-" + number + ".dat");
+    }
+
+    /**
+     * The generation of the newest autosave, counting up from 1 with each
+     * save.  0 if nothing has been saved.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Number of tiles written by the last save.
+     */
+    public int getLastTilesWritten() {
+        return lastTilesWritten;
+    }
+
+    /**
+     * Compressed bytes written by the last save, not counting the index.
+     */
+    public long getLastBytesWritten() {
+        return lastBytesWritten;
+    }
+
+    /**
+     * Time the OpenGL thread spent reading back the last save's tiles.
+     */
+    public long getLastSnapshotNanos() {
+        return lastSnapshotNanos;
+    }
+
+    public long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    public long getLastRestoreNanos() {
+        return lastRestoreNanos;
+    }
+
+    /**
+     * True if the last restore was loaded from the resume cache.
+     */
+    public boolean wasLastRestoreCached() {
+        return lastRestoreCached;
+    }
+
+    public int getCompactions() {
+        return compactions;
+    }
+
+}
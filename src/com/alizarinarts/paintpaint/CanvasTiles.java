@@ -0,0 +1,443 @@
+package com.alizarinarts.paintpaint;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+
+import static android.opengl.GLES20.*;
+import android.opengl.Matrix;
+
+import android.util.Log;
+
+/**
+ * The canvas's pixels, stored as a grid of fixed size tiles.
+ *
+ * Tiles are only given a texture the first time something is drawn on them,
+ * so a mostly blank canvas uses little GPU memory and the canvas can be far
+ * larger than the biggest texture the GPU supports.  Tiles that have never
+ * been drawn on are the background color.
+ *
+ * Tile (0, 0) is at the bottom left of the canvas.  All of the tiles are
+ * drawn through one framebuffer object that has the tile being drawn on
+ * attached to it.  The framebuffer belongs to the renderer, which keeps it
+ * for as long as the context lasts rather than making one per canvas.
+ *
+ * New tiles are filled with the background color by clearing them on the
+ * GPU, so no pixels are made on the CPU or uploaded for them.
+ *
+ * Tiles are only given mipmaps when they are shown zoomed out.  Drawing on
+ * a tile marks its mipmaps stale and they are made again the next time it
+ * is shown zoomed out, so only the tiles that changed are redone.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasTiles {
+
+    /* Width and height of a tile in pixels */
+    static final int TILE_SIZE = 256;
+
+    /* Color of tiles that haven't been drawn on */
+    static final int BACKGROUND = 0xffffffff;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+
+    /* Texture of each tile, row by row from the bottom.  0 if unallocated. */
+    private final int[] textures;
+    private int allocated;
+
+    /* Tiles changed since they were last marked clean by the autosave.  A
+     * new canvas is all dirty since the autosave may hold another one. */
+    private final boolean[] dirty;
+
+    /* Tiles whose texture has mipmaps, and tiles whose mipmaps are out of
+     * date or missing */
+    private final boolean[] mipmapped;
+    private final boolean[] mipmapsStale;
+    private int mipmappedCount;
+    private int mipmapsBuilt;
+
+    /* The framebuffer the tiles are drawn through and its attached tile */
+    private final int framebuffer;
+    private int attached;
+    private boolean checked = false;
+
+    /* Projection from canvas pixels to the tile being drawn on */
+    private final float[] tileMatrix = new float[16];
+
+    /* Saves tiles before they are drawn on, may be null */
+    private CanvasHistory history;
+
+    /**
+     * Create an empty canvas.  No tile textures are allocated until they are
+     * drawn on.
+     *
+     * @param width The width of the canvas in pixels
+     * @param height The height of the canvas in pixels
+     * @param framebuffer A framebuffer object to draw on the tiles through.
+     * It isn't deleted with the canvas.
+     */
+    public CanvasTiles(int width, int height, int framebuffer) {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        textures = new int[columns * rows];
+        dirty = new boolean[columns * rows];
+        mipmapped = new boolean[columns * rows];
+        mipmapsStale = new boolean[columns * rows];
+        markAllDirty();
+        this.framebuffer = framebuffer;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Return the texture of a tile, or 0 if it hasn't been drawn on.
+     */
+    public int getTexture(int column, int row) {
+        return textures[row * columns + column];
+    }
+
+    /**
+     * Return the texture of a tile, creating it if it doesn't exist yet.
+     * A new texture is cleared through the tiles' framebuffer, which is left
+     * bound, so call this before binding a framebuffer to copy from.
+     */
+    public int ensureTexture(int column, int row) {
+        int i = row * columns + column;
+        if (textures[i] == 0) {
+            createTexture(i, null);
+            attach(textures[i]);
+            glClearColor(((BACKGROUND >> 24) & 0xff) / 255f, ((BACKGROUND >> 16) & 0xff) / 255f,
+                    ((BACKGROUND >> 8) & 0xff) / 255f, (BACKGROUND & 0xff) / 255f);
+            glClear(GL_COLOR_BUFFER_BIT);
+        }
+        return textures[i];
+    }
+
+    /* Give a tile a texture with some pixels, or undefined ones if pixels
+     * is null */
+    private void createTexture(int i, ByteBuffer pixels) {
+        textures[i] = CanvasUtils.makeTexture(TILE_SIZE, TILE_SIZE, pixels);
+        /* Shown scaled and rotated by the view */
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        mipmapsStale[i] = true;
+        allocated++;
+    }
+
+    /**
+     * Make a tile's mipmaps if it has changed since they were last made, so
+     * it can be shown zoomed out.  Does nothing to tiles that haven't been
+     * drawn on.
+     */
+    public void updateMipmaps(int column, int row) {
+        int i = row * columns + column;
+        if (textures[i] == 0 || !mipmapsStale[i])
+            return;
+        CanvasGLState.bindTexture(CanvasUtils.UPLOAD_UNIT, textures[i]);
+        glGenerateMipmap(GL_TEXTURE_2D);
+        if (!mipmapped[i]) {
+            /* Only once the mipmaps exist, as the texture would be
+             * incomplete without them */
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+            CanvasGLResources.setBytes(CanvasGLResources.TEXTURE, textures[i],
+                    TILE_SIZE * TILE_SIZE * 4 * 4 / 3);
+            mipmapped[i] = true;
+            mipmappedCount++;
+        }
+        mipmapsStale[i] = false;
+        mipmapsBuilt++;
+    }
+
+    /**
+     * Prepare to draw on a tile.  The tile is created if needed and attached
+     * to the framebuffer, the viewport is set to cover the part of it inside
+     * the canvas and the projection uniform is set to map canvas pixels onto
+     * it.  Tiles on the right and top edges of a canvas that isn't a whole
+     * number of tiles are only partly inside it, and nothing is drawn on the
+     * rest.
+     *
+     * @param projHandle The location of the bound program's projection uniform
+     */
+    public void bindTile(int column, int row, int projHandle) {
+        if (history != null)
+            history.capture(column, row);
+        attach(ensureTexture(column, row));
+        markDirty(column, row);
+        int left = column * TILE_SIZE;
+        int bottom = row * TILE_SIZE;
+        int w = Math.min(TILE_SIZE, width - left);
+        int h = Math.min(TILE_SIZE, height - bottom);
+        glViewport(0, 0, w, h);
+        Matrix.orthoM(tileMatrix, 0, left, left + w, bottom, bottom + h, -1f, 1f);
+        glUniformMatrix4fv(projHandle, 1, false, tileMatrix, 0);
+    }
+
+    /**
+     * Read the pixels of a tile into a buffer as RGBA bytes, bottom row
+     * first.  Returns false without reading anything if the tile hasn't been
+     * drawn on, in which case it is the background color.
+     *
+     * @param w The number of columns to read from the tile's left edge
+     * @param h The number of rows to read from the tile's bottom edge
+     * @param out The buffer to read into, at least w * h * 4 bytes long
+     */
+    public boolean readTile(int column, int row, int w, int h, ByteBuffer out) {
+        int texture = getTexture(column, row);
+        if (texture == 0)
+            return false;
+        attach(texture);
+        out.position(0);
+        glReadPixels(0, 0, w, h, GL_RGBA, GL_UNSIGNED_BYTE, out);
+        return true;
+    }
+
+    /**
+     * Bind the framebuffer with a tile attached to it so it can be read or
+     * copied from.  Returns false without binding anything if the tile
+     * hasn't been drawn on.
+     */
+    boolean attachTile(int column, int row) {
+        int texture = getTexture(column, row);
+        if (texture == 0)
+            return false;
+        attach(texture);
+        return true;
+    }
+
+    /* Bind the framebuffer with a tile's texture attached to it */
+    private void attach(int texture) {
+        CanvasGLState.bindFramebuffer(framebuffer);
+        if (attached != texture) {
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
+            attached = texture;
+            if (!checked) {
+                checkFramebuffer();
+                checked = true;
+            }
+        }
+    }
+
+    /* Log the completeness of the framebuffer.
+     * Reference: http://www.songho.ca/opengl/gl_fbo.html
+     */
+    private void checkFramebuffer() {
+        switch(glCheckFramebufferStatus(GL_FRAMEBUFFER)) {
+        case GL_FRAMEBUFFER_COMPLETE:
+            Log.d(PaintPaint.NAME,"The fbo is complete");
+            break;
+        case GL_FRAMEBUFFER_INCOMPLETE_ATTACHMENT:
+            Log.d(PaintPaint.NAME,"GL_FRAMEBUFFER_INCOMPLETE_ATTACHMENT");
+            break;
+        case GL_FRAMEBUFFER_INCOMPLETE_MISSING_ATTACHMENT:
+            Log.d(PaintPaint.NAME,"GL_FRAMEBUFFER_INCOMPLETE_MISSING_ATTACHMENT");
+            break;
+        case GL_FRAMEBUFFER_INCOMPLETE_DIMENSIONS:
+            Log.d(PaintPaint.NAME,"GL_FRAMEBUFFER_INCOMPLETE_DIMENSIONS");
+            break;
+        }
+    }
+
+    /**
+     * Replace the canvas with a bitmap.  The bitmap's bottom left corner is
+     * placed at the bottom left of the canvas and only the tiles it covers
+     * are allocated.
+     *
+     * @param bitmap The bitmap to load, or null to leave the canvas blank.
+     */
+    public void load(Bitmap bitmap) {
+        clear();
+        if (bitmap == null)
+            return;
+
+        /* OpenGL textures start at the bottom so flip the bitmap first */
+        int bw = bitmap.getWidth();
+        int bh = bitmap.getHeight();
+        int[] pixels = new int[bw * bh];
+        bitmap.getPixels(pixels, 0, bw, 0, 0, bw, bh);
+        CanvasPixelOps.flipVertical(pixels, bw, bh);
+        CanvasPixelOps.premultiply(pixels, bw, bh);
+
+        ByteBuffer tile = ByteBuffer.allocateDirect(TILE_SIZE * TILE_SIZE * 4);
+        int w = Math.min(bw, width);
+        int h = Math.min(bh, height);
+        for (int row = 0; row * TILE_SIZE < h; row++) {
+            for (int column = 0; column * TILE_SIZE < w; column++) {
+                int x = column * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                int tw = Math.min(TILE_SIZE, w - x);
+                int th = Math.min(TILE_SIZE, h - y);
+                CanvasPixelOps.argbToRgba(pixels, y * bw + x, bw, tile, tw, th);
+                if (tw == TILE_SIZE && th == TILE_SIZE) {
+                    loadTile(column, row, tile);
+                } else {
+                    CanvasGLState.bindTexture(CanvasUtils.UPLOAD_UNIT, ensureTexture(column, row));
+                    tile.position(0);
+                    glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, tw, th,
+                            GL_RGBA, GL_UNSIGNED_BYTE, tile);
+                }
+                markDirty(column, row);
+            }
+        }
+        Log.d(PaintPaint.NAME, "Loaded canvas into " + allocated + " tiles");
+    }
+
+    /**
+     * Replace a tile's pixels without marking it dirty.  Used to restore
+     * tiles that were saved by the autosave.
+     *
+     * @param pixels A full tile of RGBA bytes, bottom row first
+     */
+    public void loadTile(int column, int row, ByteBuffer pixels) {
+        int i = row * columns + column;
+        pixels.position(0);
+        if (textures[i] == 0) {
+            /* Create the texture from the pixels instead of the background */
+            createTexture(i, pixels);
+            return;
+        }
+        CanvasGLState.bindTexture(CanvasUtils.UPLOAD_UNIT, textures[i]);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, TILE_SIZE, TILE_SIZE,
+                GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+        mipmapsStale[i] = true;
+    }
+
+    /**
+     * Return true if a tile has changed since it was last marked clean.
+     */
+    public boolean isDirty(int column, int row) {
+        return dirty[row * columns + column];
+    }
+
+    public void markClean(int column, int row) {
+        dirty[row * columns + column] = false;
+    }
+
+    /**
+     * Mark a tile as changed, for the autosave and the tile's mipmaps.
+     */
+    public void markDirty(int column, int row) {
+        dirty[row * columns + column] = true;
+        mipmapsStale[row * columns + column] = true;
+    }
+
+    /**
+     * Mark every tile as changed, so the next autosave writes all of them.
+     */
+    public void markAllDirty() {
+        for (int i = 0; i < dirty.length; i++)
+            dirty[i] = true;
+    }
+
+    public void markAllClean() {
+        for (int i = 0; i < dirty.length; i++)
+            dirty[i] = false;
+    }
+
+    /**
+     * Return a tile to the background color, releasing its texture.
+     */
+    public void clearTile(int column, int row) {
+        int i = row * columns + column;
+        if (textures[i] != 0) {
+            if (attached == textures[i])
+                attached = 0;
+            CanvasGLState.deleteTexture(textures[i]);
+            textures[i] = 0;
+            allocated--;
+            forgetMipmaps(i);
+        }
+        dirty[i] = true;
+    }
+
+    /**
+     * Return every tile to the background color, releasing their textures.
+     * The history is forgotten as well.
+     */
+    public void clear() {
+        if (history != null)
+            history.reset();
+        for (int i = 0; i < textures.length; i++) {
+            if (textures[i] != 0) {
+                CanvasGLState.deleteTexture(textures[i]);
+                textures[i] = 0;
+                dirty[i] = true;
+                forgetMipmaps(i);
+            }
+        }
+        allocated = 0;
+        attached = 0;
+    }
+
+    private void forgetMipmaps(int i) {
+        if (mipmapped[i])
+            mipmappedCount--;
+        mipmapped[i] = false;
+        mipmapsStale[i] = false;
+    }
+
+    /**
+     * Release all of the canvas's tile textures.  The framebuffer is left
+     * for the next canvas, with nothing attached to it.
+     */
+    public void delete() {
+        if (attached != 0) {
+            CanvasGLState.bindFramebuffer(framebuffer);
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, 0, 0);
+        }
+        clear();
+    }
+
+    /**
+     * Keep the tiles drawn on in a history so they can be undone.
+     *
+     * @param history The history, or null to stop keeping one
+     */
+    public void setHistory(CanvasHistory history) {
+        this.history = history;
+    }
+
+    public CanvasHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Number of tiles that have a texture.
+     */
+    public int getAllocatedTiles() {
+        return allocated;
+    }
+
+    /**
+     * GPU memory used by the tile textures in bytes.
+     */
+    public long getAllocatedBytes() {
+        return (long) allocated * TILE_SIZE * TILE_SIZE * 4
+                + (long) mipmappedCount * TILE_SIZE * TILE_SIZE * 4 / 3;
+    }
+
+    /**
+     * Number of times a tile's mipmaps have been made.
+     */
+    public int getMipmapsBuilt() {
+        return mipmapsBuilt;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.alizarinarts.paintpaint;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Marks sections of work for systrace, so the stages a touch goes through
+ * can be lined up against each other and against the system's own frames.
+ *
+ * Sections nest and must end on the thread they began on.  Before Android
+ * 4.3 there is no tracing and these do nothing.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasTrace {
+
+    private static final boolean ENABLED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private CanvasTrace() {
+    }
+
+    public static void begin(String name) {
+        if (ENABLED)
+            Sections.begin(name);
+    }
+
+    public static void end() {
+        if (ENABLED)
+            Sections.end();
+    }
+
+    /*
+     * The calls to Trace, kept apart so older Android versions never load it.
+     */
+    private static class Sections {
+
+        static void begin(String name) {
+            Trace.beginSection(name);
+        }
+
+        static void end() {
+            Trace.endSection();
+        }
+
+    }
+
+}
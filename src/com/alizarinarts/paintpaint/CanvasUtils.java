@@ -4,10 +4,8 @@ import android.graphics.Bitmap;
 
 import static android.opengl.GLES20.*;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-
-import android.opengl.GLUtils;
 
 
 /**
@@ -18,73 +16,70 @@ import android.opengl.GLUtils;
  */
 public class CanvasUtils {
 
+    /* Textures are bound to this unit while they are created and uploaded so
+     * the textures bound for drawing are left alone. */
+    static final int UPLOAD_UNIT = 7;
+
     /*
-     * Create an OpenGL texture and load it onto the GPU
-     * Just for testing purposes for now. Returns the texture's identifier.
+     * Create an OpenGL texture from RGBA pixel data and load it onto the GPU.
+     * Returns the texture's identifier.
      *
-     * x and y must be powers of 2
+     * The texture clamps to its edges and has no mipmaps, so it can be any
+     * size OpenGL ES 2.0 allows, not just powers of 2.
      *
      * @param x the width of the texture
      * @param y the height of the texture
-     * @param color the color value
+     * @param pixels the texture's pixels, x*y*4 bytes of RGBA, or null to
+     * leave them undefined for the GPU to fill
      */
-    public static int makeTexture(int x, int y, int color) {
-        int[] tid = new int[1];
-        ByteBuffer bb = ByteBuffer.allocateDirect(x*y*4);
-        IntBuffer  ib = bb.asIntBuffer();
-
-        //int color = 0x0000ffff;
-        for (int i = 0; i < x * y; i++) {
-            ib.put(color);
-        }
-
+    public static int makeTexture(int x, int y, Buffer pixels) {
         // Create and bind a single texture object.
-        glGenTextures(1, tid, 0);
-        glBindTexture(GL_TEXTURE_2D, tid[0]);
+        int tid = CanvasGLResources.genTexture();
+        CanvasGLState.bindTexture(UPLOAD_UNIT, tid);
 
         // Copy the texture to the GPU
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, x, y, 0, GL_RGBA, GL_UNSIGNED_BYTE, bb);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, x, y, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
         
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
 
-        // Unbind texture
-        glBindTexture(GL_TEXTURE_2D, 0);
-
-        return tid[0];
+        CanvasGLResources.setBytes(CanvasGLResources.TEXTURE, tid, x * y * 4);
+        return tid;
     }
 
-    /* Make a texture from a bitmap or a new blank canvas if Bitmap is null
+    /**
+     * Convert a Bitmap to premultiplied RGBA bytes with the bottom row
+     * first, ready to upload to OpenGL, which loads textures bottom up.
      *
-     * @param bitmap the bitmap to use on the texture
-     */
-    public static int makeTexture(Bitmap bitmap, int w, int h) {
-        int textureId = makeTexture(w, h, 0xffffffff);
-        if (bitmap != null) {
-            Bitmap flippedbmp = flipBitmap(bitmap);
-            glBindTexture(GL_TEXTURE_2D, textureId);
-            GLUtils.texSubImage2D(GL_TEXTURE_2D, 0, 0, 0, flippedbmp);
-            glBindTexture(GL_TEXTURE_2D, 0);
-        }
-        return textureId;
-    }
-
-    /** Flips the pixels in a Bitmap to be mirrored vertically.  This is needed
-     * for OpenGL to draw the texture properly as loads texture bottom up.
-     * @return a new Bitmap that is identical to the argument but flipped.
-     * @param bitmap The Bitmap to flip the pixels of
+     * @param bitmap The Bitmap to convert
      */
-    static public Bitmap flipBitmap(Bitmap bitmap) {
+    public static ByteBuffer getTexturePixels(Bitmap bitmap) {
         int w = bitmap.getWidth();
         int h = bitmap.getHeight();
         int[] pixels = new int[w*h];
         bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
-        for (int y = 0; y < h; y++) {
-        for (int x = 0; x < w; x++) {
-            pixels[y*w+x] = bitmap.getPixel(x, h-1-y);
-        }}
-        bitmap = Bitmap.createBitmap(pixels, w, h, Bitmap.Config.ARGB_8888);
-        return bitmap;
+        return getTexturePixels(pixels, w, h);
+    }
+
+    /* Make a texture from ARGB pixels, top row first.  The pixels are
+     * changed.
+     */
+    public static int makeTexture(int[] argb, int w, int h) {
+        return makeTexture(w, h, getTexturePixels(argb, w, h));
+    }
+
+    /*
+     * Convert ARGB pixels, top row first, to premultiplied RGBA bytes with
+     * the bottom row first.  The pixels are changed.
+     */
+    private static ByteBuffer getTexturePixels(int[] pixels, int w, int h) {
+        CanvasPixelOps.flipVertical(pixels, w, h);
+        CanvasPixelOps.premultiply(pixels, w, h);
+        ByteBuffer bb = ByteBuffer.allocateDirect(w*h*4);
+        CanvasPixelOps.argbToRgba(pixels, 0, w, bb, w, h);
+        return bb;
     }
 
 }
@@ -0,0 +1,195 @@
+package com.alizarinarts.paintpaint;
+
+/**
+ * How the canvas is placed on the screen: scaled, rotated about the canvas
+ * origin and then moved.  It only affects the display pass.  Dabs are drawn
+ * onto the tiles in canvas pixels, so touches are mapped back through it
+ * before they are drawn.
+ *
+ * Both the canvas and the screen have their origin at the bottom left, so
+ * the identity places the canvas 1:1 at the bottom left of the screen.
+ *
+ * The UI thread changes the view as the user pans and zooms while the
+ * OpenGL thread draws with it, so every method is synchronized.  The
+ * renderer takes a copy with set() once per frame, which only needs
+ * doing when getVersion() has changed.
+ *
+ * @author <a href="mailto:rose.e.shere@gmail.com">Rose Shere</a>
+ */
+public class CanvasViewTransform {
+
+    /* Limits of the zoom level */
+    public static final float MIN_SCALE = 1 / 16f;
+    public static final float MAX_SCALE = 32f;
+
+    private float scale = 1;
+    private float angle = 0;
+    private float cos = 1;
+    private float sin = 0;
+    private float x = 0;
+    private float y = 0;
+
+    /* Changed every time the view is */
+    private int version;
+
+    /**
+     * Place the canvas 1:1 at the bottom left of the screen.
+     */
+    public synchronized void reset() {
+        scale = 1;
+        setAngle(0);
+        x = 0;
+        y = 0;
+        version++;
+    }
+
+    /**
+     * Show all of a document in the middle of a screen, unrotated and no
+     * larger than 1:1.
+     */
+    public synchronized void fit(int documentWidth, int documentHeight,
+            int screenWidth, int screenHeight) {
+        scale = Math.min(1, Math.min((float) screenWidth / documentWidth,
+                (float) screenHeight / documentHeight));
+        setAngle(0);
+        /* Whole pixels, so a document that fits is drawn unfiltered */
+        x = Math.round((screenWidth - documentWidth * scale) / 2);
+        y = Math.round((screenHeight - documentHeight * scale) / 2);
+        version++;
+    }
+
+    /**
+     * Copy another view.
+     */
+    public synchronized void set(CanvasViewTransform other) {
+        synchronized (other) {
+            scale = other.scale;
+            angle = other.angle;
+            cos = other.cos;
+            sin = other.sin;
+            x = other.x;
+            y = other.y;
+            version = other.version;
+        }
+    }
+
+    /**
+     * Move the canvas across the screen.
+     *
+     * @param dx Screen pixels to move right
+     * @param dy Screen pixels to move up
+     */
+    public synchronized void pan(float dx, float dy) {
+        x += dx;
+        y += dy;
+        version++;
+    }
+
+    /**
+     * Zoom about a point on the screen, which stays over the same part of
+     * the canvas.
+     *
+     * @param factor How much larger to make the canvas
+     */
+    public synchronized void zoom(float factor, float focusX, float focusY) {
+        float zoomed = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        factor = zoomed / scale;
+        scale = zoomed;
+        x = focusX + (x - focusX) * factor;
+        y = focusY + (y - focusY) * factor;
+        version++;
+    }
+
+    /**
+     * Rotate about a point on the screen.
+     *
+     * @param radians How far to rotate anticlockwise
+     */
+    public synchronized void rotate(float radians, float focusX, float focusY) {
+        float c = (float) Math.cos(radians);
+        float s = (float) Math.sin(radians);
+        float dx = x - focusX;
+        float dy = y - focusY;
+        x = focusX + dx * c - dy * s;
+        y = focusY + dx * s + dy * c;
+        setAngle(angle + radians);
+        version++;
+    }
+
+    private void setAngle(float radians) {
+        angle = radians;
+        cos = (float) Math.cos(radians);
+        sin = (float) Math.sin(radians);
+    }
+
+    public synchronized float getScale() {
+        return scale;
+    }
+
+    /**
+     * Rotation of the canvas in radians anticlockwise.
+     */
+    public synchronized float getAngle() {
+        return angle;
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Screen X coordinate of a canvas pixel.
+     */
+    public synchronized float screenX(float canvasX, float canvasY) {
+        return scale * (canvasX * cos - canvasY * sin) + x;
+    }
+
+    /**
+     * Screen Y coordinate of a canvas pixel.
+     */
+    public synchronized float screenY(float canvasX, float canvasY) {
+        return scale * (canvasX * sin + canvasY * cos) + y;
+    }
+
+    /**
+     * Canvas X coordinate of a screen pixel.
+     */
+    public synchronized float canvasX(float screenX, float screenY) {
+        float dx = screenX - x;
+        float dy = screenY - y;
+        return (dx * cos + dy * sin) / scale;
+    }
+
+    /**
+     * Canvas Y coordinate of a screen pixel.
+     */
+    public synchronized float canvasY(float screenX, float screenY) {
+        float dx = screenX - x;
+        float dy = screenY - y;
+        return (dy * cos - dx * sin) / scale;
+    }
+
+    /**
+     * Write the view as a column major OpenGL matrix from canvas pixels to
+     * screen pixels.
+     */
+    public synchronized void getMatrix(float[] m) {
+        m[0] = scale * cos;
+        m[1] = scale * sin;
+        m[2] = 0;
+        m[3] = 0;
+        m[4] = -scale * sin;
+        m[5] = scale * cos;
+        m[6] = 0;
+        m[7] = 0;
+        m[8] = 0;
+        m[9] = 0;
+        m[10] = 1;
+        m[11] = 0;
+        m[12] = x;
+        m[13] = y;
+        m[14] = 0;
+        m[15] = 1;
+    }
+
+}
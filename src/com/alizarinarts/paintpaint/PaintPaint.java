@@ -5,4 +5,7 @@ import android.app.Application;
 public class PaintPaint extends Application{
     public static String NAME = "PaintPaint";
     public static String AUTOSAVE = ".autosave.png";
+    public static String AUTOSAVE_TILES = ".autosave";
+    public static String STROKE_JOURNAL = ".strokes";
+    public static String METRICS = "metrics";
 }